@@ -0,0 +1,42 @@
+package de.m_marvin.http;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the construction of {@link PathInfo} from request targets, with and without query and percent encoded characters.
+ * @author Marvin Koehler
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathInfoBenchmark {
+	
+	@Param({ "/index.html", "/api/v1/users/1234/orders?limit=50&offset=100&sort=date", "/files/my%20documents/%C3%BCbersicht.pdf?q=a+b%26c#top" })
+	public String target;
+	
+	@Benchmark
+	public PathInfo construct() {
+		return new PathInfo(this.target);
+	}
+	
+	@Benchmark
+	public String queryParameter() {
+		return new PathInfo(this.target).getQueryParameter("limit");
+	}
+	
+}
@@ -0,0 +1,133 @@
+package de.m_marvin.http.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.m_marvin.http.HttpCode;
+import de.m_marvin.http.HttpHeaders;
+import de.m_marvin.http.ResponseInfo;
+
+/**
+ * Measures the end to end request throughput of an server over loopback connections.<br>
+ * Each benchmark thread sends its requests over its own keep-alive connection and waits for the response before sending the next request.
+ * The engine parameter selects the blocking engine (0) or the number of event loops of the selector engine.
+ * @author Marvin Koehler
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class LoopbackBenchmark {
+	
+	protected static final byte[] BODY = "Hello World!".getBytes(StandardCharsets.UTF_8);
+	
+	@State(Scope.Benchmark)
+	public static class Server {
+		
+		@Param({ "0", "2" })
+		public int engine;
+		
+		protected HttpServer server;
+		protected int port;
+		
+		@Setup
+		public void setup() throws IOException {
+			try (ServerSocket socket = new ServerSocket(0)) {
+				this.port = socket.getLocalPort();
+			}
+			this.server = new HttpServer(this.port);
+			if (this.engine > 0) this.server.setSelectorEngine(this.engine);
+			this.server.setKeepAlive(60000, Integer.MAX_VALUE);
+			this.server.setGetHandler((path, attributes) -> ResponseInfo.ofBytes(HttpCode.OK, "OK", BODY).addAdditionalInfo(HttpHeaders.CONTENT_TYPE, "text/plain"));
+			this.server.open();
+		}
+		
+		@TearDown
+		public void teardown() throws IOException {
+			this.server.close();
+		}
+		
+	}
+	
+	@State(Scope.Thread)
+	public static class Connection {
+		
+		protected static final byte[] REQUEST = "GET /hello HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+		
+		protected Socket socket;
+		protected InputStream input;
+		protected OutputStream output;
+		protected final byte[] buffer = new byte[4096];
+		
+		@Setup
+		public void setup(Server server) throws IOException {
+			this.socket = new Socket(InetAddress.getLoopbackAddress(), server.port);
+			this.socket.setTcpNoDelay(true);
+			this.input = this.socket.getInputStream();
+			this.output = this.socket.getOutputStream();
+		}
+		
+		@TearDown
+		public void teardown() throws IOException {
+			this.socket.close();
+		}
+		
+		/**
+		 * Sends the request and reads the response header and the payload with the announced Content-Length.
+		 * @return The number of received bytes
+		 */
+		protected int exchange() throws IOException {
+			this.output.write(REQUEST);
+			int length = 0;
+			int headerEnd = -1;
+			while (headerEnd < 0) {
+				int read = this.input.read(this.buffer, length, this.buffer.length - length);
+				if (read < 0) throw new EOFException("Connection closed by the server!");
+				length += read;
+				for (int i = 3; i < length; i++) {
+					if (this.buffer[i] == '\n' && this.buffer[i - 1] == '\r' && this.buffer[i - 2] == '\n' && this.buffer[i - 3] == '\r') {
+						headerEnd = i + 1;
+						break;
+					}
+				}
+			}
+			String header = new String(this.buffer, 0, headerEnd, StandardCharsets.US_ASCII);
+			int fieldStart = header.indexOf(HttpHeaders.CONTENT_LENGTH + ": ") + HttpHeaders.CONTENT_LENGTH.length() + 2;
+			int contentLength = Integer.parseInt(header.substring(fieldStart, header.indexOf('\r', fieldStart)));
+			int remaining = headerEnd + contentLength - length;
+			if (remaining > 0) this.input.readNBytes(remaining);
+			return headerEnd + contentLength;
+		}
+		
+	}
+	
+	@Benchmark
+	public int request(Connection connection) throws IOException {
+		return connection.exchange();
+	}
+	
+}
@@ -0,0 +1,86 @@
+package de.m_marvin.http.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.m_marvin.http.HttpCode;
+import de.m_marvin.http.RequestInfo;
+import de.m_marvin.http.ResponseInfo;
+
+/**
+ * Measures the parsing of request headers by the {@link RequestParser} and the creation and dispatching of the {@link RequestInfo}.
+ * @author Marvin Koehler
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParsingBenchmark {
+	
+	protected static final String MINIMAL = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n";
+	protected static final String BROWSER = "GET /static/scripts/app.js?version=42&lang=en HTTP/1.1\r\n"
+			+ "Host: www.example.com\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:120.0) Gecko/20100101 Firefox/120.0\r\n"
+			+ "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+			+ "Accept-Language: en-US,en;q=0.5\r\n"
+			+ "Accept-Encoding: gzip, deflate, br\r\n"
+			+ "Connection: keep-alive\r\n"
+			+ "Cookie: session=6f1c2b0e9a4d4b7e8c3f; theme=dark\r\n"
+			+ "If-None-Match: \"5d8c72a5edda8d6a\"\r\n"
+			+ "Cache-Control: max-age=0\r\n\r\n";
+	
+	@Param({ "minimal", "browser" })
+	public String request;
+	
+	protected ByteBuffer input;
+	protected RequestParser parser;
+	protected HttpServer server;
+	
+	@Setup
+	public void setup() {
+		this.input = ByteBuffer.wrap((this.request.equals("minimal") ? MINIMAL : BROWSER).getBytes(StandardCharsets.US_ASCII));
+		this.server = new HttpServer(0);
+		this.server.setGetHandler((path, attributes) -> new ResponseInfo(HttpCode.OK, "OK", null));
+		this.parser = this.server.createRequestParser();
+	}
+	
+	@Benchmark
+	public boolean parseHeader() throws IOException {
+		this.parser.reset();
+		return this.parser.parse(this.input.clear());
+	}
+	
+	@Benchmark
+	public RequestInfo createRequest() throws IOException {
+		this.parser.reset();
+		this.parser.parse(this.input.clear());
+		return this.server.createRequest(this.parser, null);
+	}
+	
+	@Benchmark
+	public ResponseInfo handleMessage() throws IOException {
+		this.parser.reset();
+		this.parser.parse(this.input.clear());
+		RequestInfo request = this.server.createRequest(this.parser, null);
+		return this.server.handleMessage(request, this.server.createRequestBody(request, InputStream.nullInputStream(), null));
+	}
+	
+}
@@ -0,0 +1,72 @@
+package de.m_marvin.http.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.m_marvin.http.HttpCode;
+import de.m_marvin.http.HttpHeaders;
+import de.m_marvin.http.ResponseInfo;
+
+/**
+ * Measures the encoding of response headers into the reusable header buffer of an connection.
+ * @author Marvin Koehler
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseWritingBenchmark {
+	
+	protected HttpServer server;
+	protected ByteBuffer buffer;
+	protected HttpHeaders minimal;
+	protected HttpHeaders typical;
+	
+	@Setup
+	public void setup() {
+		this.server = new HttpServer(0);
+		this.buffer = ByteBuffer.allocate(HttpServer.HEADER_BUFFER_SIZE);
+		this.minimal = new HttpHeaders();
+		this.minimal.put(HttpHeaders.CONTENT_LENGTH, "0");
+		this.typical = new HttpHeaders();
+		this.typical.put(HttpHeaders.CONTENT_TYPE, "text/html; charset=utf-8");
+		this.typical.put(HttpHeaders.CONTENT_LENGTH, "10240");
+		this.typical.put(HttpHeaders.CACHE_CONTROL, "max-age=3600");
+		this.typical.put(HttpHeaders.ETAG, "\"5d8c72a5edda8d6a\"");
+		this.typical.put(HttpHeaders.LAST_MODIFIED, "Tue, 15 Nov 1994 08:12:31 GMT");
+		this.typical.put(HttpHeaders.CONNECTION, "keep-alive");
+		this.typical.put("Keep-Alive", "timeout=5, max=100");
+	}
+	
+	@Benchmark
+	public ByteBuffer encodeMinimal() {
+		return this.server.encodeHeader(this.buffer, HttpCode.OK, "OK", this.minimal);
+	}
+	
+	@Benchmark
+	public ByteBuffer encodeTypical() {
+		return this.server.encodeHeader(this.buffer, HttpCode.OK, "OK", this.typical);
+	}
+	
+	@Benchmark
+	public ByteBuffer encodeResponse() {
+		// Includes the creation of the response and its header fields by an handler
+		ResponseInfo response = ResponseInfo.ofBytes(HttpCode.OK, "OK", new byte[0]).addAdditionalInfo(HttpHeaders.CONTENT_TYPE, "text/plain");
+		return this.server.encodeHeader(this.buffer, response.getResponseCode(), response.getResponseMessage(), response.getAttributes());
+	}
+	
+}
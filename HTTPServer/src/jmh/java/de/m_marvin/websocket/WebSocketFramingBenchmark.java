@@ -0,0 +1,83 @@
+package de.m_marvin.websocket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the masking of WebSocket payloads and the round trip of an frame between two WebSockets over an loopback connection.<br>
+ * The client side masks its frames like an browser would, so the round trip includes the encoding, masking, decoding and unmasking of the frame.
+ * @author Marvin Koehler
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebSocketFramingBenchmark {
+	
+	@Param({ "125", "4096", "65536" })
+	public int size;
+	
+	protected byte[] payload;
+	protected int mask;
+	protected WebSocket client;
+	protected WebSocket server;
+	
+	@Setup
+	public void setup() throws IOException {
+		this.payload = new byte[this.size];
+		ThreadLocalRandom.current().nextBytes(this.payload);
+		this.mask = ThreadLocalRandom.current().nextInt();
+		try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			Socket clientSocket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+			Socket serverSocket = listener.accept();
+			this.client = new WebSocket(clientSocket, 0x10000, true, false);
+			this.server = new WebSocket(serverSocket, 0x10000, false, false);
+		}
+	}
+	
+	@TearDown
+	public void teardown() throws IOException, InterruptedException {
+		this.client.closeSocket(WebSocketCode.CLOSE_NORMALY, "", TimeUnit.SECONDS, 1);
+		this.server.closeSocket(WebSocketCode.CLOSE_NORMALY, "", TimeUnit.SECONDS, 1);
+	}
+	
+	@Benchmark
+	public byte[] mask() {
+		WebSocket.applyMask(this.payload, 0, this.payload.length, this.mask, 0);
+		return this.payload;
+	}
+	
+	@Benchmark
+	public byte[] maskUnaligned() {
+		// Continuation of an payload which was received in multiple reads
+		WebSocket.applyMask(this.payload, 1, this.payload.length - 1, this.mask, 3);
+		return this.payload;
+	}
+	
+	@Benchmark
+	public byte[] roundTrip() throws IOException {
+		this.client.sendBinary(this.payload);
+		return this.server.getInputStream().readNBytes(this.payload.length);
+	}
+	
+}
@@ -0,0 +1,267 @@
+package de.m_marvin.http;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.m_marvin.simplelogging.Log;
+
+/**
+ * Pool of reusable byte buffers for the socket I/O of the server and WebSockets.<br>
+ * Buffers are grouped in power of two size classes, each thread keeps a small cache of released buffers per size class,
+ * further buffers are kept in an shared pool up to a limit. Requests larger than the largest size class are allocated without pooling.<br>
+ * Virtual threads do not use a cache, they usually end with their connection and would take the cached buffers with them.<br>
+ * The {@link #DIRECT} pool provides direct buffers for channel I/O, the {@link #HEAP} pool array backed buffers for stream I/O.<br>
+ * If leak detection is enabled, the pool reports buffers which where garbage collected without being released, together with the place where they where acquired.
+ * It can be enabled for the shared pools by setting the system property <code>de.m_marvin.http.leakDetection</code> to true.
+ * @author Marvin Koehler
+ *
+ */
+public class BufferPool {
+	
+	public static final int MIN_SIZE_SHIFT = 9;
+	public static final int MAX_SIZE_SHIFT = 16;
+	public static final int DEFAULT_THREAD_CACHE_SIZE = 8;
+	public static final int DEFAULT_MAX_POOLED = 256;
+	
+	public static final BufferPool DIRECT = new BufferPool(true, DEFAULT_THREAD_CACHE_SIZE, DEFAULT_MAX_POOLED);
+	public static final BufferPool HEAP = new BufferPool(false, DEFAULT_THREAD_CACHE_SIZE, DEFAULT_MAX_POOLED);
+	
+	protected static final Cleaner CLEANER = Cleaner.create();
+	protected static final int SIZE_CLASSES = MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1;
+	private static final MethodHandle IS_VIRTUAL = findIsVirtual();
+	
+	private static MethodHandle findIsVirtual() {
+		try {
+			return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * @return true if the current thread is an virtual thread, always false before JDK 21
+	 */
+	protected static boolean isVirtualThread() {
+		if (IS_VIRTUAL == null) return false;
+		try {
+			return (boolean) IS_VIRTUAL.invokeExact(Thread.currentThread());
+		} catch (Throwable e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * An buffer acquired from the pool, which has to be released after it is no longer used.
+	 */
+	public static class PooledBuffer implements AutoCloseable {
+		
+		protected final BufferPool pool;
+		protected final ByteBuffer buffer;
+		protected final int sizeClass;
+		protected final LeakState state;
+		
+		protected PooledBuffer(BufferPool pool, ByteBuffer buffer, int sizeClass) {
+			this.pool = pool;
+			this.buffer = buffer;
+			this.sizeClass = sizeClass;
+			this.state = new LeakState(pool);
+			CLEANER.register(this, this.state);
+		}
+		
+		/**
+		 * @return The buffer, which is cleared when it is acquired
+		 */
+		public ByteBuffer buffer() {
+			return this.buffer;
+		}
+		
+		/**
+		 * Returns the buffer to the pool, it must not be used afterwards.
+		 * @throws IllegalStateException If the buffer was already released
+		 */
+		public void release() {
+			if (!this.state.acquired.compareAndSet(true, false)) throw new IllegalStateException("Buffer already released!");
+			this.state.site = null;
+			this.pool.recycle(this);
+		}
+		
+		/**
+		 * Gives up the buffer without returning it to the pool, for buffers which might still be accessed by an other thread.
+		 */
+		public void discard() {
+			if (this.state.acquired.compareAndSet(true, false)) this.pool.discarded.increment();
+		}
+		
+		@Override
+		public void close() {
+			release();
+		}
+		
+	}
+	
+	/**
+	 * The state of an pooled buffer, which is checked by the cleaner after the buffer was garbage collected.<br>
+	 * It must not reference the buffer itself.
+	 */
+	protected static class LeakState implements Runnable {
+		
+		protected final BufferPool pool;
+		protected final AtomicBoolean acquired = new AtomicBoolean();
+		protected volatile Throwable site;
+		
+		protected LeakState(BufferPool pool) {
+			this.pool = pool;
+		}
+		
+		@Override
+		public void run() {
+			if (!this.acquired.get()) return;
+			this.pool.leaks.increment();
+			if (this.site != null) Log.defaultLogger().error("Pooled buffer was garbage collected without being released!", this.site);
+		}
+		
+	}
+	
+	protected static class ThreadCache {
+		
+		protected final PooledBuffer[][] buffers;
+		protected final int[] counts = new int[SIZE_CLASSES];
+		
+		protected ThreadCache(int size) {
+			this.buffers = new PooledBuffer[SIZE_CLASSES][size];
+		}
+		
+	}
+	
+	public static record Metrics(long acquired, long released, long discarded, long allocated, long allocatedBytes, long cacheHits, long oversized, long leaks, long pooled) {
+		
+		/**
+		 * @return The number of buffers currently in use
+		 */
+		public long outstanding() {
+			return this.acquired - this.released - this.discarded;
+		}
+		
+	}
+	
+	protected final boolean direct;
+	protected final int maxPooled;
+	protected final ThreadLocal<ThreadCache> threadCache;
+	protected final Queue<PooledBuffer>[] pools;
+	protected final AtomicInteger[] pooledCounts;
+	protected volatile boolean leakDetection = Boolean.getBoolean("de.m_marvin.http.leakDetection");
+	
+	protected final LongAdder acquired = new LongAdder();
+	protected final LongAdder released = new LongAdder();
+	protected final LongAdder discarded = new LongAdder();
+	protected final LongAdder allocated = new LongAdder();
+	protected final LongAdder allocatedBytes = new LongAdder();
+	protected final LongAdder cacheHits = new LongAdder();
+	protected final LongAdder oversized = new LongAdder();
+	protected final LongAdder leaks = new LongAdder();
+	
+	/**
+	 * @param direct If the pool provides direct buffers
+	 * @param threadCacheSize The number of buffers per size class cached by each thread
+	 * @param maxPooled The number of buffers per size class kept in the shared pool
+	 */
+	public BufferPool(boolean direct, int threadCacheSize, int maxPooled) {
+		this.direct = direct;
+		this.maxPooled = maxPooled;
+		this.threadCache = ThreadLocal.withInitial(() -> new ThreadCache(threadCacheSize));
+		@SuppressWarnings("unchecked")
+		Queue<PooledBuffer>[] pools = (Queue<PooledBuffer>[]) new Queue<?>[SIZE_CLASSES];
+		this.pools = pools;
+		this.pooledCounts = new AtomicInteger[SIZE_CLASSES];
+		for (int i = 0; i < SIZE_CLASSES; i++) {
+			this.pools[i] = new ConcurrentLinkedQueue<>();
+			this.pooledCounts[i] = new AtomicInteger();
+		}
+	}
+	
+	/**
+	 * Enables the recording of the place where each buffer is acquired, which is reported if the buffer is garbage collected without being released.
+	 */
+	public void setLeakDetection(boolean leakDetection) {
+		this.leakDetection = leakDetection;
+	}
+	
+	public boolean isDirect() {
+		return this.direct;
+	}
+	
+	protected static int sizeClass(int size) {
+		if (size <= 1 << MIN_SIZE_SHIFT) return 0;
+		int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+		return shift > MAX_SIZE_SHIFT ? -1 : shift - MIN_SIZE_SHIFT;
+	}
+	
+	protected PooledBuffer allocate(int capacity, int sizeClass) {
+		this.allocated.increment();
+		this.allocatedBytes.add(capacity);
+		return new PooledBuffer(this, this.direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity), sizeClass);
+	}
+	
+	/**
+	 * Acquires an buffer with at least the requested capacity.
+	 * @param capacity The minimal capacity of the buffer
+	 * @return The buffer, which has to be released after it is no longer used
+	 */
+	public PooledBuffer acquire(int capacity) {
+		this.acquired.increment();
+		int sizeClass = sizeClass(capacity);
+		PooledBuffer buffer = null;
+		if (sizeClass < 0) {
+			this.oversized.increment();
+			buffer = allocate(capacity, -1);
+		} else {
+			ThreadCache cache = isVirtualThread() ? null : this.threadCache.get();
+			if (cache != null && cache.counts[sizeClass] > 0) {
+				int index = --cache.counts[sizeClass];
+				buffer = cache.buffers[sizeClass][index];
+				cache.buffers[sizeClass][index] = null;
+				this.cacheHits.increment();
+			} else {
+				buffer = this.pools[sizeClass].poll();
+				if (buffer != null) {
+					this.pooledCounts[sizeClass].decrementAndGet();
+				} else {
+					buffer = allocate(1 << (sizeClass + MIN_SIZE_SHIFT), sizeClass);
+				}
+			}
+		}
+		buffer.buffer.clear();
+		buffer.state.site = this.leakDetection ? new Throwable("Buffer acquired here") : null;
+		buffer.state.acquired.set(true);
+		return buffer;
+	}
+	
+	protected void recycle(PooledBuffer buffer) {
+		this.released.increment();
+		if (buffer.sizeClass < 0) return;
+		ThreadCache cache = isVirtualThread() ? null : this.threadCache.get();
+		if (cache != null && cache.counts[buffer.sizeClass] < cache.buffers[buffer.sizeClass].length) {
+			cache.buffers[buffer.sizeClass][cache.counts[buffer.sizeClass]++] = buffer;
+		} else if (this.pooledCounts[buffer.sizeClass].incrementAndGet() <= this.maxPooled) {
+			this.pools[buffer.sizeClass].offer(buffer);
+		} else {
+			// The pool is full, the buffer is left to the garbage collector
+			this.pooledCounts[buffer.sizeClass].decrementAndGet();
+		}
+	}
+	
+	public Metrics getMetrics() {
+		long pooled = 0;
+		for (AtomicInteger count : this.pooledCounts) pooled += count.get();
+		return new Metrics(this.acquired.sum(), this.released.sum(), this.discarded.sum(), this.allocated.sum(), this.allocatedBytes.sum(), this.cacheHits.sum(), this.oversized.sum(), this.leaks.sum(), pooled);
+	}
+	
+}
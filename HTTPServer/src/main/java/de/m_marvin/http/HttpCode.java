@@ -1,5 +1,7 @@
 package de.m_marvin.http;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * The possible status codes send from the server.
  * @author Marvin Koehler
@@ -76,12 +78,27 @@ public enum HttpCode {
 	NOT_EXTENDED("Not Extended", 510),
 	NETWORK_AUTHENTICATION_REQUIRED("Network Authentication Required", 511);
 	
+	private static final HttpCode[] BY_CODE = new HttpCode[600];
+	
+	static {
+		for (HttpCode e : values()) BY_CODE[e.code] = e;
+	}
+	
 	private final String name;
 	private final int code;
+	private final byte[] statusLine;
 	
 	private HttpCode(String name, int code) {
 		this.name = name;
 		this.code = code;
+		this.statusLine = statusLine(this, name);
+	}
+	
+	/**
+	 * Encodes the HTTP/1.1 status line for the code and an custom message, including the line break.
+	 */
+	public static byte[] statusLine(HttpCode code, String message) {
+		return ("HTTP/1.1 " + code.code + " " + message + "\r\n").getBytes(StandardCharsets.UTF_8);
 	}
 	
 	public int code() {
@@ -92,10 +109,15 @@ public enum HttpCode {
 		return name;
 	}
 	
+	/**
+	 * @return The encoded HTTP/1.1 status line with the standard message, including the line break, the array must not be modified
+	 */
+	public byte[] getStatusLine() {
+		return statusLine;
+	}
+	
 	public static HttpCode of(int code) {
-		for (HttpCode e : values())
-			if (e.code() == code) return e;
-		return null;
+		return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
 	}
 	
 }
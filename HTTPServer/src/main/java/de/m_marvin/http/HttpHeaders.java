@@ -0,0 +1,544 @@
+package de.m_marvin.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * The header fields of an request or response.<br>
+ * Field names are compared ignoring case, well known names are stored as the interned constants of this class, so that they are always sent in their canonical form.
+ * Fields can occur multiple times, the values are kept separate and in the order they where added.<br>
+ * The fields are stored in flat arrays with an open addressed index, which can be cleared and reused without allocating new memory.<br>
+ * As {@link Map} the headers map each field name to its combined, comma separated values, putting a value replaces all previous values of the field.
+ * Unlike other maps, keys are compared ignoring case.
+ * @author Marvin Koehler
+ *
+ */
+public class HttpHeaders extends AbstractMap<String, String> {
+	
+	public static final String HOST = "Host";
+	public static final String CONNECTION = "Connection";
+	public static final String CONTENT_LENGTH = "Content-Length";
+	public static final String CONTENT_TYPE = "Content-Type";
+	public static final String CONTENT_ENCODING = "Content-Encoding";
+	public static final String CONTENT_LOCATION = "Content-Location";
+	public static final String TRANSFER_ENCODING = "Transfer-Encoding";
+	public static final String ACCEPT = "Accept";
+	public static final String ACCEPT_ENCODING = "Accept-Encoding";
+	public static final String ACCEPT_LANGUAGE = "Accept-Language";
+	public static final String USER_AGENT = "User-Agent";
+	public static final String COOKIE = "Cookie";
+	public static final String SET_COOKIE = "Set-Cookie";
+	public static final String REFERER = "Referer";
+	public static final String ORIGIN = "Origin";
+	public static final String CACHE_CONTROL = "Cache-Control";
+	public static final String PRAGMA = "Pragma";
+	public static final String EXPIRES = "Expires";
+	public static final String ETAG = "ETag";
+	public static final String LAST_MODIFIED = "Last-Modified";
+	public static final String IF_NONE_MATCH = "If-None-Match";
+	public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+	public static final String RANGE = "Range";
+	public static final String VARY = "Vary";
+	public static final String ALLOW = "Allow";
+	public static final String LOCATION = "Location";
+	public static final String DATE = "Date";
+	public static final String SERVER = "Server";
+	public static final String RETRY_AFTER = "Retry-After";
+	public static final String EXPECT = "Expect";
+	public static final String AUTHORIZATION = "Authorization";
+	public static final String UPGRADE = "Upgrade";
+	public static final String SEC_WEBSOCKET_KEY = "Sec-WebSocket-Key";
+	public static final String SEC_WEBSOCKET_VERSION = "Sec-WebSocket-Version";
+	public static final String SEC_WEBSOCKET_PROTOCOL = "Sec-WebSocket-Protocol";
+	public static final String SEC_WEBSOCKET_EXTENSIONS = "Sec-WebSocket-Extensions";
+	public static final String SEC_WEBSOCKET_ACCEPT = "Sec-WebSocket-Accept";
+	
+	protected static final String[] KNOWN_NAMES = {
+			HOST, CONNECTION, CONTENT_LENGTH, CONTENT_TYPE, CONTENT_ENCODING, CONTENT_LOCATION, TRANSFER_ENCODING, ACCEPT, ACCEPT_ENCODING, ACCEPT_LANGUAGE,
+			USER_AGENT, COOKIE, SET_COOKIE, REFERER, ORIGIN, CACHE_CONTROL, PRAGMA, EXPIRES, ETAG, LAST_MODIFIED, IF_NONE_MATCH, IF_MODIFIED_SINCE, RANGE,
+			VARY, ALLOW, LOCATION, DATE, SERVER, RETRY_AFTER, EXPECT, AUTHORIZATION, UPGRADE,
+			SEC_WEBSOCKET_KEY, SEC_WEBSOCKET_VERSION, SEC_WEBSOCKET_PROTOCOL, SEC_WEBSOCKET_EXTENSIONS, SEC_WEBSOCKET_ACCEPT
+	};
+	protected static final String[] KNOWN_TABLE = new String[128];
+	protected static final byte[][] KNOWN_TABLE_BYTES = new byte[KNOWN_TABLE.length][];
+	protected static final byte[][] KNOWN_TABLE_PREFIXES = new byte[KNOWN_TABLE.length][];
+	protected static final byte[] CRLF = { '\r', '\n' };
+	
+	static {
+		for (String name : KNOWN_NAMES) {
+			int slot = hash(name) & (KNOWN_TABLE.length - 1);
+			while (KNOWN_TABLE[slot] != null) slot = (slot + 1) & (KNOWN_TABLE.length - 1);
+			KNOWN_TABLE[slot] = name;
+			KNOWN_TABLE_BYTES[slot] = name.getBytes(StandardCharsets.US_ASCII);
+			KNOWN_TABLE_PREFIXES[slot] = (name + ": ").getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+	
+	public static final int DEFAULT_CAPACITY = 16;
+	
+	protected String[] names;
+	protected String[] values;
+	protected int[] hashes;
+	protected int[] next;
+	protected int[] index;
+	protected int entries = 0;
+	protected int valueCount = 0;
+	protected int nameCount = 0;
+	protected Set<Map.Entry<String, String>> entrySet;
+	
+	public HttpHeaders() {
+		this(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * @param capacity The number of values which can be stored without growing the arrays
+	 */
+	public HttpHeaders(int capacity) {
+		// The index requires a power of two size
+		capacity = Integer.highestOneBit(Math.max(capacity, 4) * 2 - 1);
+		this.names = new String[capacity];
+		this.values = new String[capacity];
+		this.hashes = new int[capacity];
+		this.next = new int[capacity];
+		this.index = new int[capacity * 2];
+	}
+	
+	/**
+	 * Creates headers containing the fields of the map, the values of an other {@link HttpHeaders} are copied separately.
+	 */
+	public HttpHeaders(Map<String, String> fields) {
+		this(Math.max(fields.size(), DEFAULT_CAPACITY));
+		putAll(fields);
+	}
+	
+	/**
+	 * Returns the map as headers, without copying it if it already is an instance of {@link HttpHeaders}.<br>
+	 * Allows passing plain maps to code which expects headers.
+	 */
+	public static HttpHeaders of(Map<String, String> fields) {
+		return fields instanceof HttpHeaders headers ? headers : new HttpHeaders(fields);
+	}
+	
+	protected static int lowerCase(int c) {
+		return c >= 'A' && c <= 'Z' ? c | 0x20 : c;
+	}
+	
+	protected static int hash(String name) {
+		int h = 0;
+		for (int i = 0; i < name.length(); i++) h = 31 * h + lowerCase(name.charAt(i));
+		return h ^ (h >>> 16);
+	}
+	
+	protected static int hash(byte[] data, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++) h = 31 * h + lowerCase(data[i] & 0xFF);
+		return h ^ (h >>> 16);
+	}
+	
+	protected static boolean nameEquals(String a, String b) {
+		return a == b || a.equalsIgnoreCase(b);
+	}
+	
+	protected static String intern(String name, int hash) {
+		int slot = hash & (KNOWN_TABLE.length - 1);
+		String known;
+		while ((known = KNOWN_TABLE[slot]) != null) {
+			if (nameEquals(known, name)) return known;
+			slot = (slot + 1) & (KNOWN_TABLE.length - 1);
+		}
+		return name;
+	}
+	
+	/**
+	 * Returns the canonical constant of a well known field name, or the name itself if it is not known.
+	 */
+	public static String intern(String name) {
+		return intern(name, hash(name));
+	}
+	
+	/**
+	 * Returns the canonical constant of a well known field name, or an new string if it is not known.<br>
+	 * Used to create the names of received fields without allocating strings for the well known ones.
+	 * @param data The array containing the ASCII encoded name
+	 * @param start The index of the first byte of the name
+	 * @param end The index after the last byte of the name
+	 */
+	public static String intern(byte[] data, int start, int end) {
+		int slot = hash(data, start, end) & (KNOWN_TABLE.length - 1);
+		byte[] known;
+		while ((known = KNOWN_TABLE_BYTES[slot]) != null) {
+			if (known.length == end - start) {
+				int i = 0;
+				while (i < known.length && lowerCase(known[i]) == lowerCase(data[start + i] & 0xFF)) i++;
+				if (i == known.length) return KNOWN_TABLE[slot];
+			}
+			slot = (slot + 1) & (KNOWN_TABLE.length - 1);
+		}
+		return new String(data, start, end - start, StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * @return The index of the first value of the field, or -1 if the field is not present
+	 */
+	protected int find(String name, int hash) {
+		int mask = this.index.length - 1;
+		int slot = hash & mask;
+		int entry;
+		while ((entry = this.index[slot]) != 0) {
+			entry--;
+			if (this.hashes[entry] == hash && nameEquals(this.names[entry], name)) return entry;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+	
+	protected int find(Object name) {
+		return name instanceof String s ? find(s, hash(s)) : -1;
+	}
+	
+	protected void insertIndex(int entry) {
+		int mask = this.index.length - 1;
+		int slot = this.hashes[entry] & mask;
+		while (this.index[slot] != 0) slot = (slot + 1) & mask;
+		this.index[slot] = entry + 1;
+	}
+	
+	/**
+	 * Rebuilds the index, removed values are dropped from the arrays if compact is set.
+	 */
+	protected void rebuild(boolean compact) {
+		if (compact) {
+			int target = 0;
+			for (int i = 0; i < this.entries; i++) {
+				if (this.names[i] == null) continue;
+				this.names[target] = this.names[i];
+				this.values[target] = this.values[i];
+				this.hashes[target] = this.hashes[i];
+				target++;
+			}
+			Arrays.fill(this.names, target, this.entries, null);
+			Arrays.fill(this.values, target, this.entries, null);
+			this.entries = target;
+		}
+		if (this.index.length < this.names.length * 2) this.index = new int[this.names.length * 2];
+		Arrays.fill(this.index, 0);
+		int[] last = new int[this.index.length];
+		for (int i = 0; i < this.entries; i++) {
+			if (this.names[i] == null) continue;
+			this.next[i] = -1;
+			int first = find(this.names[i], this.hashes[i]);
+			if (first < 0) {
+				insertIndex(i);
+				last[indexSlot(i)] = i;
+			} else {
+				int slot = indexSlot(first);
+				this.next[last[slot]] = i;
+				last[slot] = i;
+			}
+		}
+	}
+	
+	protected int indexSlot(int entry) {
+		int mask = this.index.length - 1;
+		int slot = this.hashes[entry] & mask;
+		while (this.index[slot] != entry + 1) slot = (slot + 1) & mask;
+		return slot;
+	}
+	
+	protected void ensureCapacity() {
+		if (this.entries < this.names.length) return;
+		if (this.valueCount < this.entries) {
+			// Reclaim the space of removed values before growing
+			rebuild(true);
+			if (this.entries < this.names.length) return;
+		}
+		int capacity = this.names.length * 2;
+		this.names = Arrays.copyOf(this.names, capacity);
+		this.values = Arrays.copyOf(this.values, capacity);
+		this.hashes = Arrays.copyOf(this.hashes, capacity);
+		this.next = Arrays.copyOf(this.next, capacity);
+		rebuild(false);
+	}
+	
+	/**
+	 * Adds an value to the field, keeping the values already present.
+	 */
+	public HttpHeaders add(String name, String value) {
+		if (name == null || value == null) throw new NullPointerException("Header name and value can not be null!");
+		ensureCapacity();
+		int hash = hash(name);
+		int entry = this.entries++;
+		this.names[entry] = intern(name, hash);
+		this.values[entry] = value;
+		this.hashes[entry] = hash;
+		this.next[entry] = -1;
+		this.valueCount++;
+		int first = find(name, hash);
+		if (first < 0) {
+			insertIndex(entry);
+			this.nameCount++;
+		} else {
+			while (this.next[first] >= 0) first = this.next[first];
+			this.next[first] = entry;
+		}
+		return this;
+	}
+	
+	/**
+	 * Sets the value of the field, replacing all values already present.
+	 */
+	public HttpHeaders set(String name, String value) {
+		put(name, value);
+		return this;
+	}
+	
+	/**
+	 * @return The first value of the field, or null if the field is not present
+	 */
+	public String getFirst(String name) {
+		int entry = find(name, hash(name));
+		return entry < 0 ? null : this.values[entry];
+	}
+	
+	/**
+	 * @return All values of the field in the order they where added, or an empty list if the field is not present
+	 */
+	public List<String> getAll(String name) {
+		int entry = find(name, hash(name));
+		if (entry < 0) return Collections.emptyList();
+		if (this.next[entry] < 0) return Collections.singletonList(this.values[entry]);
+		List<String> values = new ArrayList<>();
+		for (; entry >= 0; entry = this.next[entry]) values.add(this.values[entry]);
+		return values;
+	}
+	
+	/**
+	 * Calls the consumer for every value of every field, in the order they where added.<br>
+	 * Fields with multiple values are passed once per value.
+	 */
+	public void forEachValue(BiConsumer<String, String> consumer) {
+		for (int i = 0; i < this.entries; i++) {
+			if (this.names[i] != null) consumer.accept(this.names[i], this.values[i]);
+		}
+	}
+	
+	/**
+	 * @return The number of values of all fields
+	 */
+	public int valueCount() {
+		return this.valueCount;
+	}
+	
+	/**
+	 * @return The pre-encoded "Name: " prefix of an interned well known field name, or null
+	 */
+	protected static byte[] knownPrefix(String name, int hash) {
+		int slot = hash & (KNOWN_TABLE.length - 1);
+		String known;
+		while ((known = KNOWN_TABLE[slot]) != null) {
+			if (known == name) return KNOWN_TABLE_PREFIXES[slot];
+			slot = (slot + 1) & (KNOWN_TABLE.length - 1);
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the buffer if it has at least the required number of bytes remaining, otherwise an larger buffer containing its written bytes.
+	 */
+	public static ByteBuffer ensureRemaining(ByteBuffer buffer, int required) {
+		if (buffer.remaining() >= required) return buffer;
+		int capacity = Math.max(buffer.capacity() * 2, buffer.position() + required);
+		ByteBuffer larger = buffer.isDirect() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+		return larger.put(buffer.flip());
+	}
+	
+	protected static ByteBuffer putString(ByteBuffer buffer, String s) {
+		buffer = ensureRemaining(buffer, s.length());
+		int start = buffer.position();
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 0x80) {
+				// Not plain ASCII, encode the whole string as UTF-8
+				byte[] encoded = s.getBytes(StandardCharsets.UTF_8);
+				buffer.position(start);
+				return ensureRemaining(buffer, encoded.length).put(encoded);
+			}
+			buffer.put((byte) c);
+		}
+		return buffer;
+	}
+	
+	/**
+	 * Appends the fields to the buffer as header lines, one line per value.<br>
+	 * The names of well known fields are copied from pre-encoded arrays, other names and the values are encoded without intermediate strings.
+	 * @return The buffer, or an larger buffer containing its bytes if the fields did not fit into it
+	 */
+	public ByteBuffer encode(ByteBuffer buffer) {
+		for (int i = 0; i < this.entries; i++) {
+			String name = this.names[i];
+			if (name == null) continue;
+			byte[] prefix = knownPrefix(name, this.hashes[i]);
+			if (prefix != null) {
+				buffer = ensureRemaining(buffer, prefix.length).put(prefix);
+			} else {
+				buffer = putString(buffer, name);
+				buffer = ensureRemaining(buffer, 2).put((byte) ':').put((byte) ' ');
+			}
+			buffer = putString(buffer, this.values[i]);
+			buffer = ensureRemaining(buffer, CRLF.length).put(CRLF);
+		}
+		return buffer;
+	}
+	
+	protected String combined(int entry) {
+		if (this.next[entry] < 0) return this.values[entry];
+		StringBuilder builder = new StringBuilder(this.values[entry]);
+		for (entry = this.next[entry]; entry >= 0; entry = this.next[entry]) builder.append(", ").append(this.values[entry]);
+		return builder.toString();
+	}
+	
+	/**
+	 * @return The values of the field combined into an comma separated list, or null if the field is not present
+	 */
+	@Override
+	public String get(Object name) {
+		int entry = find(name);
+		return entry < 0 ? null : combined(entry);
+	}
+	
+	@Override
+	public boolean containsKey(Object name) {
+		return find(name) >= 0;
+	}
+	
+	@Override
+	public int size() {
+		return this.nameCount;
+	}
+	
+	@Override
+	public String put(String name, String value) {
+		if (name == null || value == null) throw new NullPointerException("Header name and value can not be null!");
+		int entry = find(name, hash(name));
+		if (entry < 0) {
+			add(name, value);
+			return null;
+		}
+		String previous = combined(entry);
+		this.values[entry] = value;
+		int removed = this.next[entry];
+		if (removed >= 0) {
+			this.next[entry] = -1;
+			for (; removed >= 0; removed = this.next[removed]) {
+				this.names[removed] = null;
+				this.values[removed] = null;
+				this.valueCount--;
+			}
+		}
+		return previous;
+	}
+	
+	@Override
+	public String remove(Object name) {
+		int entry = find(name);
+		if (entry < 0) return null;
+		String previous = combined(entry);
+		for (; entry >= 0; entry = this.next[entry]) {
+			this.names[entry] = null;
+			this.values[entry] = null;
+			this.valueCount--;
+		}
+		this.nameCount--;
+		// The index has to be rebuilt, removing single slots would break the probe sequences of other names
+		rebuild(false);
+		return previous;
+	}
+	
+	/**
+	 * Removes all fields, the allocated arrays are kept for reuse.
+	 */
+	@Override
+	public void clear() {
+		Arrays.fill(this.names, 0, this.entries, null);
+		Arrays.fill(this.values, 0, this.entries, null);
+		Arrays.fill(this.index, 0);
+		this.entries = 0;
+		this.valueCount = 0;
+		this.nameCount = 0;
+	}
+	
+	/**
+	 * @return The fields with their combined values, in the order the fields where first added
+	 */
+	@Override
+	public Set<Map.Entry<String, String>> entrySet() {
+		if (this.entrySet == null) this.entrySet = new AbstractSet<>() {
+			
+			@Override
+			public Iterator<Map.Entry<String, String>> iterator() {
+				return new Iterator<Map.Entry<String, String>>() {
+					
+					protected int position = advance(0);
+					protected String current;
+					
+					protected int advance(int position) {
+						// Only the first value of a field starts an entry
+						while (position < HttpHeaders.this.entries && (HttpHeaders.this.names[position] == null || find(HttpHeaders.this.names[position], HttpHeaders.this.hashes[position]) != position)) position++;
+						return position;
+					}
+					
+					@Override
+					public boolean hasNext() {
+						return this.position < HttpHeaders.this.entries;
+					}
+					
+					@Override
+					public Map.Entry<String, String> next() {
+						if (!hasNext()) throw new NoSuchElementException();
+						String name = HttpHeaders.this.names[this.position];
+						this.current = name;
+						Map.Entry<String, String> entry = new SimpleEntry<>(name, combined(this.position)) {
+							private static final long serialVersionUID = 1L;
+							
+							@Override
+							public String setValue(String value) {
+								super.setValue(value);
+								return put(name, value);
+							}
+						};
+						this.position = advance(this.position + 1);
+						return entry;
+					}
+					
+					@Override
+					public void remove() {
+						if (this.current == null) throw new IllegalStateException();
+						// Removing does not move the values, the position stays valid
+						HttpHeaders.this.remove(this.current);
+						this.current = null;
+					}
+					
+				};
+			}
+			
+			@Override
+			public int size() {
+				return HttpHeaders.this.nameCount;
+			}
+			
+		};
+		return this.entrySet;
+	}
+	
+}
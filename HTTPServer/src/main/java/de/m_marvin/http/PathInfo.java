@@ -1,78 +1,179 @@
 package de.m_marvin.http;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
+import java.io.ByteArrayOutputStream;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 
 /**
- * The URL path for an http request, contains path, query values and the fragment name.
+ * The URL path for an http request, contains path, query values and the fragment name.<br>
+ * The request target is scanned once for the positions of the query and fragment, the path is decoded directly,
+ * the query and fragment only when they are accessed. Parts without percent encoding are not copied through the decoder.
  * @author Marvin Koehler
  *
  */
 public class PathInfo {
 	
-	public String path;
-	public Map<String, String> query;
-	public String fragment;
+	protected final String target;
+	protected final String path;
+	protected final int queryStart;
+	protected final int fragmentStart;
+	protected Map<String, List<String>> queryParameters;
+	protected Map<String, String> query;
+	protected String fragment;
 	
+	/**
+	 * @param resourcePath The request target, consisting of the path and optional query and fragment
+	 * @throws IllegalArgumentException If the path contains invalid percent encoding
+	 */
 	public PathInfo(String resourcePath) {
-		this.path = resolvePercentageCodes(resourcePath.split("\\?")[0].split("#")[0]);
-		this.query = new HashMap<>();
-		String as = resourcePath.substring(this.path.length());
-		if (as.contains("?")) {
-			String[] queryStrings = as.split("\\?")[1].split("#")[0].split("&");
-			for (String q : queryStrings) {
-				String[] a = q.split("=");
-				this.query.put(resolvePercentageCodes(a[0]), a.length == 2 ? resolvePercentageCodes(a[1]) : "");
+		this.target = resourcePath;
+		int queryStart = -1;
+		int fragmentStart = -1;
+		for (int i = 0; i < resourcePath.length(); i++) {
+			char c = resourcePath.charAt(i);
+			if (c == '?' && queryStart < 0) {
+				queryStart = i;
+			} else if (c == '#') {
+				fragmentStart = i;
+				break;
 			}
 		}
-		if (as.contains("#")) {
-			this.fragment = resolvePercentageCodes(as.split("#")[1].split("\\?")[0]);
-		}
-		if (this.path.equals("/")) this.path = "/index.html";
+		this.queryStart = queryStart;
+		this.fragmentStart = fragmentStart;
+		int pathEnd = queryStart >= 0 ? queryStart : fragmentStart >= 0 ? fragmentStart : resourcePath.length();
+		String path = decode(resourcePath, 0, pathEnd, false);
+		this.path = path.equals("/") ? "/index.html" : path;
 	}
 	
+	/**
+	 * Decodes the percent encoding of the string, using the UTF-8 charset.
+	 * @throws IllegalArgumentException If the string contains an invalid percent encoding
+	 */
 	public static String resolvePercentageCodes(String encodedString) {
-		try {
-			return URLDecoder.decode(encodedString, StandardCharsets.UTF_8.toString());
-		} catch (UnsupportedEncodingException e) {
-			System.err.println("Failed to encode URL!");
-			e.printStackTrace();
-			return "";
+		return decode(encodedString, 0, encodedString.length(), true);
+	}
+	
+	/**
+	 * Decodes the percent encoding of a section of the string.
+	 * @param plusAsSpace If '+' should be decoded as space, as in the query of an URL
+	 * @throws IllegalArgumentException If the section contains an invalid percent encoding
+	 */
+	protected static String decode(String s, int start, int end, boolean plusAsSpace) {
+		int first = start;
+		while (first < end && s.charAt(first) != '%' && !(plusAsSpace && s.charAt(first) == '+')) first++;
+		if (first == end) return start == 0 && end == s.length() ? s : s.substring(start, end);
+		StringBuilder decoded = new StringBuilder(end - start);
+		decoded.append(s, start, first);
+		ByteArrayOutputStream bytes = null;
+		for (int i = first; i < end; i++) {
+			char c = s.charAt(i);
+			if (c == '%') {
+				if (bytes == null) bytes = new ByteArrayOutputStream();
+				bytes.reset();
+				while (i < end && s.charAt(i) == '%') {
+					if (i + 2 >= end) throw new IllegalArgumentException("Incomplete percent encoding in: " + s);
+					int high = Character.digit(s.charAt(i + 1), 16);
+					int low = Character.digit(s.charAt(i + 2), 16);
+					if (high < 0 || low < 0) throw new IllegalArgumentException("Invalid percent encoding in: " + s);
+					bytes.write(high << 4 | low);
+					i += 3;
+				}
+				decoded.append(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+				i--;
+			} else if (c == '+' && plusAsSpace) {
+				decoded.append(' ');
+			} else {
+				decoded.append(c);
+			}
 		}
+		return decoded.toString();
 	}
 	
+	protected Map<String, List<String>> parseQuery() {
+		if (this.queryStart < 0) return Collections.emptyMap();
+		int end = this.fragmentStart >= 0 ? this.fragmentStart : this.target.length();
+		Map<String, List<String>> parameters = new LinkedHashMap<>();
+		int start = this.queryStart + 1;
+		while (start < end) {
+			int pairEnd = this.target.indexOf('&', start);
+			if (pairEnd < 0 || pairEnd > end) pairEnd = end;
+			if (pairEnd > start) {
+				int separator = this.target.indexOf('=', start);
+				if (separator < 0 || separator > pairEnd) separator = pairEnd;
+				String key = decode(this.target, start, separator, true);
+				String value = separator < pairEnd ? decode(this.target, separator + 1, pairEnd, true) : "";
+				parameters.computeIfAbsent(key, k -> new ArrayList<>(1)).add(value);
+			}
+			start = pairEnd + 1;
+		}
+		return parameters;
+	}
+	
+	/**
+	 * @return All query parameters with all of their values, in the order of the request target
+	 */
+	public Map<String, List<String>> getQueryParameters() {
+		if (this.queryParameters == null) this.queryParameters = Collections.unmodifiableMap(parseQuery());
+		return this.queryParameters;
+	}
+	
+	/**
+	 * @return All values of the query parameter, or an empty list if the parameter is not present
+	 */
+	public List<String> getQueryParameters(String name) {
+		List<String> values = getQueryParameters().get(name);
+		return values != null ? Collections.unmodifiableList(values) : Collections.emptyList();
+	}
+	
+	/**
+	 * @return The first value of the query parameter, or null if the parameter is not present
+	 */
+	public String getQueryParameter(String name) {
+		List<String> values = getQueryParameters().get(name);
+		return values != null ? values.get(0) : null;
+	}
+	
+	/**
+	 * @return The query parameters, if a parameter occurs multiple times only its last value is contained
+	 */
 	public Map<String, String> getQuery() {
-		return query;
+		if (this.query == null) {
+			Map<String, String> query = new LinkedHashMap<>();
+			for (Map.Entry<String, List<String>> parameter : getQueryParameters().entrySet()) {
+				query.put(parameter.getKey(), parameter.getValue().get(parameter.getValue().size() - 1));
+			}
+			this.query = Collections.unmodifiableMap(query);
+		}
+		return this.query;
 	}
 	
+	/**
+	 * @return The decoded fragment, or null if the target has no fragment
+	 */
 	public String getFragment() {
-		return fragment;
+		if (this.fragment == null && this.fragmentStart >= 0) this.fragment = decode(this.target, this.fragmentStart + 1, this.target.length(), false);
+		return this.fragment;
 	}
 	
 	public String getPath() {
-		return path;
+		return this.path;
+	}
+	
+	/**
+	 * @return The request target as received, without any decoding
+	 */
+	public String getRawTarget() {
+		return this.target;
 	}
 	
 	@Override
 	public String toString() {
-		StringBuilder sb = new StringBuilder();
-		sb.append(this.getPath());
-		if (!this.getQuery().isEmpty()) {
-			sb.append("?");
-			int i = 0;
-			for (Entry<String, String> e : this.getQuery().entrySet()) {
-				if (i++ > 0) sb.append("&");
-				sb.append(e.getKey()).append("=").append(e.getValue());
-			}
-		}
-		if (!this.getFragment().isEmpty()) {
-			sb.append("#").append(this.getFragment());
-		}
-		return sb.toString();
+		int pathEnd = this.queryStart >= 0 ? this.queryStart : this.fragmentStart >= 0 ? this.fragmentStart : this.target.length();
+		return this.getPath() + this.target.substring(pathEnd);
 	}
 	
 }
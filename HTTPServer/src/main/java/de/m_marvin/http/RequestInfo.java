@@ -0,0 +1,106 @@
+package de.m_marvin.http;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+
+/**
+ * The parsed header of an http request received by the server.
+ * @author Marvin Koehler
+ *
+ */
+public class RequestInfo {
+	
+	public static final String HTTP_1_0 = "HTTP/1.0";
+	public static final String HTTP_1_1 = "HTTP/1.1";
+	
+	protected final HttpRequest requestType;
+	protected final PathInfo path;
+	protected final String protocol;
+	protected final HttpHeaders attributes;
+	protected final long payloadLength;
+	protected final InetSocketAddress remoteAddress;
+	
+	/**
+	 * @param attributes The header fields of the request, plain maps are copied into {@link HttpHeaders}
+	 */
+	public RequestInfo(HttpRequest requestType, PathInfo path, String protocol, Map<String, String> attributes, long payloadLength) {
+		this(requestType, path, protocol, attributes, payloadLength, null);
+	}
+	
+	/**
+	 * @param attributes The header fields of the request, plain maps are copied into {@link HttpHeaders}
+	 * @param remoteAddress The address of the client, or null if not known
+	 */
+	public RequestInfo(HttpRequest requestType, PathInfo path, String protocol, Map<String, String> attributes, long payloadLength, InetSocketAddress remoteAddress) {
+		this.requestType = requestType;
+		this.path = path;
+		this.protocol = protocol;
+		this.attributes = HttpHeaders.of(attributes);
+		this.payloadLength = payloadLength;
+		this.remoteAddress = remoteAddress;
+	}
+	
+	public HttpRequest getRequestType() {
+		return requestType;
+	}
+	
+	public PathInfo getPath() {
+		return path;
+	}
+	
+	public String getProtocol() {
+		return protocol;
+	}
+	
+	/**
+	 * Returns the header fields of the request.<br>
+	 * The headers of requests received by the server are reused for the next request of the connection, handlers which keep them beyond the response have to copy them.
+	 */
+	public HttpHeaders getAttributes() {
+		return attributes;
+	}
+	
+	public long getPayloadLength() {
+		return payloadLength;
+	}
+	
+	/**
+	 * @return The address of the client, or null if not known
+	 */
+	public InetSocketAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+	
+	/**
+	 * @return true if the request payload is sent with chunked transfer encoding
+	 */
+	public boolean isChunked() {
+		return hasToken(this.attributes.get(HttpHeaders.TRANSFER_ENCODING), "chunked");
+	}
+	
+	/**
+	 * Checks if the client allows the connection to be reused for further requests.<br>
+	 * HTTP/1.1 connections are persistent unless the client sends "Connection: close", HTTP/1.0 connections only if the client sends "Connection: keep-alive".
+	 */
+	public boolean isPersistent() {
+		String connection = this.attributes.get(HttpHeaders.CONNECTION);
+		if (HTTP_1_1.equals(this.protocol)) return !hasToken(connection, "close");
+		return HTTP_1_0.equals(this.protocol) && hasToken(connection, "keep-alive");
+	}
+	
+	/**
+	 * Checks if the comma separated header value contains the token, ignoring case.
+	 */
+	public static boolean hasToken(String value, String token) {
+		if (value == null) return false;
+		int start = 0;
+		while (start <= value.length()) {
+			int end = value.indexOf(',', start);
+			if (end < 0) end = value.length();
+			if (value.substring(start, end).trim().equalsIgnoreCase(token)) return true;
+			start = end + 1;
+		}
+		return false;
+	}
+	
+}
@@ -1,31 +1,176 @@
 package de.m_marvin.http;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.LinkedHashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 
 public class ResponseInfo {
 	
+	/**
+	 * Writes the payload of a streamed response, see {@link ResponseInfo#ofWriter(HttpCode, String, BodyWriter)}.
+	 */
+	@FunctionalInterface
+	public static interface BodyWriter {
+		
+		/**
+		 * Called after the status line and header fields where sent to the client.<br>
+		 * Flushing the stream sends all written bytes to the client immediately, the stream is closed by the server after this method returned.
+		 * @param body The stream for the payload
+		 */
+		public void writeBody(OutputStream body) throws IOException;
+		
+	}
+	
+	public static final String[] NOT_MODIFIED_FIELDS = { HttpHeaders.ETAG, HttpHeaders.LAST_MODIFIED, HttpHeaders.CACHE_CONTROL, HttpHeaders.EXPIRES, HttpHeaders.VARY, HttpHeaders.CONTENT_LOCATION };
+	
 	protected HttpCode responseCode;
 	protected String responseMessage;
-	protected Map<String, String> attributes = new LinkedHashMap<>();
+	protected HttpHeaders attributes = new HttpHeaders();
 	protected Optional<InputStream> contentSource;
 	protected CompletableFuture<Socket> keepSocket = null;
+	protected Optional<FileChannel> fileSource = Optional.empty();
+	protected Optional<ByteBuffer> bufferSource = Optional.empty();
+	protected Optional<BodyWriter> writerSource = Optional.empty();
+	protected long filePosition;
+	protected long fileLength;
 	
 	public ResponseInfo(HttpCode code, String message, InputStream contentSource) {
 		this.responseCode = code;
 		this.responseMessage = message;
 		this.contentSource = Optional.ofNullable(contentSource);
 	}
-
+	
+	/**
+	 * Creates a response which sends the bytes of the array, the Content-Length is set automatically.<br>
+	 * The array is not copied and must not be modified while the response is sent, which allows sharing it between responses.
+	 * @param code The status code of the response
+	 * @param message The status message of the response
+	 * @param content The payload to send
+	 */
+	public static ResponseInfo ofBytes(HttpCode code, String message, byte[] content) {
+		return ofBuffer(code, message, ByteBuffer.wrap(content));
+	}
+	
+	/**
+	 * Creates a response which sends the remaining bytes of the buffer, the Content-Length is set automatically.
+	 * @param code The status code of the response
+	 * @param message The status message of the response
+	 * @param content The payload to send
+	 */
+	public static ResponseInfo ofBuffer(HttpCode code, String message, ByteBuffer content) {
+		ResponseInfo response = new ResponseInfo(code, message, null);
+		response.bufferSource = Optional.of(content);
+		response.addAdditionalInfo(HttpHeaders.CONTENT_LENGTH, content.remaining());
+		return response;
+	}
+	
+	/**
+	 * Creates a response which sends the content of the file.<br>
+	 * The server transfers the file directly from the file system to the socket if possible, the Content-Length is set automatically.
+	 * @param code The status code of the response
+	 * @param message The status message of the response
+	 * @param file The file to send
+	 * @throws IOException If the file could not be opened
+	 */
+	public static ResponseInfo ofFile(HttpCode code, String message, Path file) throws IOException {
+		BasicFileAttributes fileAttributes = Files.readAttributes(file, BasicFileAttributes.class);
+		long lastModified = fileAttributes.lastModifiedTime().toMillis();
+		return ofFile(code, message, FileChannel.open(file, StandardOpenOption.READ))
+				.setValidators(Validators.makeWeakETag(fileAttributes.size(), lastModified), lastModified);
+	}
+	
+	/**
+	 * Creates a response which sends the content of the file, the channel is closed after the response was sent.
+	 * @param code The status code of the response
+	 * @param message The status message of the response
+	 * @param channel The channel of the file to send
+	 * @throws IOException If the size of the file could not be read
+	 */
+	public static ResponseInfo ofFile(HttpCode code, String message, FileChannel channel) throws IOException {
+		return ofFile(code, message, channel, 0, channel.size());
+	}
+	
+	/**
+	 * Creates a response which sends a section of the file, the channel is closed after the response was sent.
+	 * @param code The status code of the response
+	 * @param message The status message of the response
+	 * @param channel The channel of the file to send
+	 * @param position The position of the first byte to send
+	 * @param length The number of bytes to send
+	 */
+	public static ResponseInfo ofFile(HttpCode code, String message, FileChannel channel, long position, long length) {
+		ResponseInfo response = new ResponseInfo(code, message, null);
+		response.fileSource = Optional.of(channel);
+		response.filePosition = position;
+		response.fileLength = length;
+		response.addAdditionalInfo(HttpHeaders.CONTENT_LENGTH, length);
+		return response;
+	}
+	
+	/**
+	 * Creates a response with a streamed payload, which is written by the writer after the header was sent.<br>
+	 * If no Content-Length is set, the payload is sent with chunked transfer encoding (or by closing the connection for HTTP/1.0 clients),
+	 * so that the response can be generated while it is sent, without buffering it completely in memory.
+	 * @param code The status code of the response
+	 * @param message The status message of the response
+	 * @param writer The writer of the payload
+	 */
+	public static ResponseInfo ofWriter(HttpCode code, String message, BodyWriter writer) {
+		ResponseInfo response = new ResponseInfo(code, message, null);
+		response.writerSource = Optional.of(writer);
+		return response;
+	}
+	
+	/**
+	 * Creates a bodyless 304 (Not Modified) response, which carries the validator and caching fields of the full response.
+	 * @param fullAttributes The attributes of the full response
+	 */
+	public static ResponseInfo notModified(Map<String, String> fullAttributes) {
+		ResponseInfo response = new ResponseInfo(HttpCode.NOT_MODIFIED, "Not Modified", null);
+		HttpHeaders headers = HttpHeaders.of(fullAttributes);
+		for (String field : NOT_MODIFIED_FIELDS) {
+			for (String value : headers.getAll(field)) response.attributes.add(field, value);
+		}
+		return response;
+	}
+	
+	/**
+	 * Sets the header field, replacing any value already present.
+	 */
 	public ResponseInfo addAdditionalInfo(String key, Object value) {
 		this.attributes.put(key, value.toString());
 		return this;
 	}
 	
+	/**
+	 * Adds an value to the header field, keeping the values already present, for fields like Set-Cookie which are sent once per value.
+	 */
+	public ResponseInfo appendAdditionalInfo(String key, Object value) {
+		this.attributes.add(key, value.toString());
+		return this;
+	}
+	
+	/**
+	 * Sets the ETag and Last-Modified fields, which allow the server to answer conditional requests with 304 (Not Modified).
+	 * @param etag The entity tag of the content, or null
+	 * @param lastModified The modification time of the content in milliseconds, or -1 if not known
+	 */
+	public ResponseInfo setValidators(String etag, long lastModified) {
+		if (etag != null) this.attributes.put(HttpHeaders.ETAG, etag);
+		if (lastModified >= 0) this.attributes.put(HttpHeaders.LAST_MODIFIED, Validators.formatDate(lastModified));
+		return this;
+	}
+	
 	public CompletableFuture<Socket> keepSocket() {
 		this.keepSocket = new CompletableFuture<Socket>();
 		return this.keepSocket;
@@ -39,7 +184,7 @@ public class ResponseInfo {
 		return responseMessage;
 	}
 	
-	public Map<String, String> getAttributes() {
+	public HttpHeaders getAttributes() {
 		return attributes;
 	}
 	
@@ -47,10 +192,63 @@ public class ResponseInfo {
 		return contentSource;
 	}
 	
+	public Optional<ByteBuffer> getBufferSource() {
+		return bufferSource;
+	}
+	
+	public Optional<BodyWriter> getWriterSource() {
+		return writerSource;
+	}
+	
+	public Optional<FileChannel> getFileSource() {
+		return fileSource;
+	}
+	
+	public long getFilePosition() {
+		return filePosition;
+	}
+	
+	public long getFileLength() {
+		return fileLength;
+	}
+	
+	/**
+	 * @return true if the response has a payload, either from an stream, buffer, file or writer
+	 */
+	public boolean hasContent() {
+		return this.contentSource.isPresent() || this.bufferSource.isPresent() || this.fileSource.isPresent() || this.writerSource.isPresent();
+	}
+	
+	/**
+	 * @return true if the payload is sent with chunked transfer encoding
+	 */
+	public boolean isChunked() {
+		return RequestInfo.hasToken(this.attributes.get(HttpHeaders.TRANSFER_ENCODING), "chunked");
+	}
+	
+	/**
+	 * Closes the content source of this response, if any.
+	 */
+	public void closeContent() throws IOException {
+		if (this.contentSource.isPresent()) this.contentSource.get().close();
+		if (this.fileSource.isPresent()) this.fileSource.get().close();
+	}
+	
+	public boolean isSocketKept() {
+		return this.keepSocket != null;
+	}
+	
 	public boolean freeSocket(Socket socket) {
 		if (this.keepSocket == null) return true;
 		this.keepSocket.complete(socket);
 		return false;
 	}
 	
+	/**
+	 * Fails the future of {@link #keepSocket()} if the connection of the request can not be taken over.
+	 */
+	public void refuseSocket(Throwable cause) {
+		if (this.keepSocket != null) this.keepSocket.completeExceptionally(cause);
+	}
+	
 }
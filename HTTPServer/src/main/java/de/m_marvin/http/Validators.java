@@ -0,0 +1,94 @@
+package de.m_marvin.http;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Utility methods for the validators of conditional requests (ETag and Last-Modified).
+ * @author Marvin Koehler
+ *
+ */
+public class Validators {
+	
+	public static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+	
+	private Validators() {}
+	
+	/**
+	 * Creates a strong entity tag from a hash of the content.
+	 */
+	public static String makeETag(byte[] content) {
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		return "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(content.length) + "\"";
+	}
+	
+	/**
+	 * Creates a weak entity tag from the size and modification time of an file.
+	 */
+	public static String makeWeakETag(long size, long lastModified) {
+		return "W/\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+	}
+	
+	public static String formatDate(long epochMillis) {
+		return HTTP_DATE.format(Instant.ofEpochMilli(epochMillis));
+	}
+	
+	/**
+	 * @return The time in milliseconds, or -1 if the date could not be parsed
+	 */
+	public static long parseDate(String date) {
+		try {
+			return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Evaluates the If-None-Match and If-Modified-Since conditions of the request against the validators of the current representation.<br>
+	 * If-Modified-Since is ignored if the request contains an If-None-Match condition.
+	 * @param requestAttributes The header fields of the request
+	 * @param etag The entity tag of the current representation, or null
+	 * @param lastModified The modification time of the current representation, or -1 if not known
+	 * @return true if the client already holds the current representation and a 304 (Not Modified) response can be send
+	 */
+	public static boolean isNotModified(Map<String, String> requestAttributes, String etag, long lastModified) {
+		String ifNoneMatch = requestAttributes.get("If-None-Match");
+		if (ifNoneMatch != null) {
+			return etag != null && matchesETag(ifNoneMatch, etag);
+		}
+		String ifModifiedSince = requestAttributes.get("If-Modified-Since");
+		if (ifModifiedSince != null && lastModified >= 0) {
+			long since = parseDate(ifModifiedSince);
+			return since >= 0 && lastModified / 1000 <= since / 1000;
+		}
+		return false;
+	}
+	
+	/**
+	 * Compares the entity tag against the list of an If-None-Match field, using the weak comparison.
+	 */
+	public static boolean matchesETag(String tagList, String etag) {
+		String opaque = opaqueTag(etag);
+		int start = 0;
+		while (start < tagList.length()) {
+			int end = tagList.indexOf(',', start);
+			if (end < 0) end = tagList.length();
+			String tag = tagList.substring(start, end).trim();
+			if (tag.equals("*") || opaqueTag(tag).equals(opaque)) return true;
+			start = end + 1;
+		}
+		return false;
+	}
+	
+	protected static String opaqueTag(String etag) {
+		return etag.startsWith("W/") ? etag.substring(2) : etag;
+	}
+	
+}
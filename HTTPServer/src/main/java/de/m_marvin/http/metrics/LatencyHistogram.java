@@ -0,0 +1,123 @@
+package de.m_marvin.http.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds, with log-linear buckets similar to an HdrHistogram.<br>
+ * Each power of two range is split into 32 linear sub-buckets, so the recorded values keep a precision of about three percent
+ * from one nanosecond up to the maximum of about 36 minutes, larger values are recorded as the maximum.<br>
+ * The counters are striped over multiple arrays selected by the recording thread, so that concurrent recording threads rarely contend on the same counter.
+ * @author Marvin Koehler
+ *
+ */
+public class LatencyHistogram {
+	
+	protected static final int SUB_BUCKET_BITS = 6;
+	protected static final int SUB_BUCKET_HALF = 1 << (SUB_BUCKET_BITS - 1);
+	protected static final int MAX_MAGNITUDE = 40;
+	protected static final int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 3) * SUB_BUCKET_HALF;
+	protected static final int STRIPES = Math.min(8, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors())));
+	
+	protected final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+	protected final LongAdder sum = new LongAdder();
+	
+	public LatencyHistogram() {
+		for (int i = 0; i < STRIPES; i++) this.stripes[i] = new AtomicLongArray(BUCKETS);
+	}
+	
+	protected static int bucketIndex(long value) {
+		if (value < (1 << SUB_BUCKET_BITS)) return value < 0 ? 0 : (int) value;
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		if (magnitude > MAX_MAGNITUDE) return BUCKETS - 1;
+		int shift = magnitude - SUB_BUCKET_BITS + 1;
+		return shift * SUB_BUCKET_HALF + (int) (value >>> shift);
+	}
+	
+	/**
+	 * @return The highest value recorded in the bucket
+	 */
+	protected static long bucketValue(int index) {
+		if (index < (1 << SUB_BUCKET_BITS)) return index;
+		int shift = index / SUB_BUCKET_HALF - 1;
+		long subBucket = index - shift * SUB_BUCKET_HALF;
+		return ((subBucket + 1) << shift) - 1;
+	}
+	
+	/**
+	 * Records an duration.
+	 * @param nanos The duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		this.stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)].getAndIncrement(bucketIndex(nanos));
+		this.sum.add(nanos);
+	}
+	
+	/**
+	 * Sums up the stripes of the histogram, the recording is not paused while the snapshot is taken.
+	 */
+	public Snapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		for (AtomicLongArray stripe : this.stripes) {
+			for (int i = 0; i < BUCKETS; i++) counts[i] += stripe.get(i);
+		}
+		return new Snapshot(counts, this.sum.sum());
+	}
+	
+	/**
+	 * An immutable copy of the histogram counters.
+	 */
+	public static class Snapshot {
+		
+		protected final long[] counts;
+		protected final long count;
+		protected final long sum;
+		
+		protected Snapshot(long[] counts, long sum) {
+			this.counts = counts;
+			long count = 0;
+			for (long c : counts) count += c;
+			this.count = count;
+			this.sum = sum;
+		}
+		
+		public long getCount() {
+			return this.count;
+		}
+		
+		/**
+		 * @return The sum of all recorded values in nanoseconds
+		 */
+		public long getSum() {
+			return this.sum;
+		}
+		
+		public double getMean() {
+			return this.count == 0 ? 0 : (double) this.sum / this.count;
+		}
+		
+		/**
+		 * @param quantile The quantile between 0 and 1, for example 0.99 for the 99th percentile
+		 * @return The value below which the given fraction of the recorded values lie, in nanoseconds
+		 */
+		public long getValueAtQuantile(double quantile) {
+			if (this.count == 0) return 0;
+			long rank = Math.max(1, (long) Math.ceil(quantile * this.count));
+			long seen = 0;
+			for (int i = 0; i < this.counts.length; i++) {
+				seen += this.counts[i];
+				if (seen >= rank) return bucketValue(i);
+			}
+			return bucketValue(this.counts.length - 1);
+		}
+		
+		public long getMax() {
+			for (int i = this.counts.length - 1; i >= 0; i--) {
+				if (this.counts[i] > 0) return bucketValue(i);
+			}
+			return 0;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,44 @@
+package de.m_marvin.http.metrics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import de.m_marvin.http.HttpCode;
+import de.m_marvin.http.HttpHeaders;
+import de.m_marvin.http.PathInfo;
+import de.m_marvin.http.ResponseInfo;
+import de.m_marvin.http.server.HttpServer;
+import de.m_marvin.http.server.RequestBody;
+import de.m_marvin.http.server.Router;
+
+/**
+ * Handler which answers requests with the metrics of an server in the Prometheus text exposition format.<br>
+ * Can be mounted as route, for example <code>router.get("/metrics", new MetricsEndpoint(server.getMetrics()))</code>.
+ * @author Marvin Koehler
+ *
+ */
+public class MetricsEndpoint implements Router.RouteHandler, HttpServer.GetRequestHandler {
+	
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	
+	protected final ServerMetrics metrics;
+	
+	public MetricsEndpoint(ServerMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	@Override
+	public ResponseInfo handleRequest(PathInfo path, HttpHeaders attributes) {
+		StringBuilder text = new StringBuilder(4096);
+		this.metrics.writePrometheus(text);
+		return ResponseInfo.ofBytes(HttpCode.OK, "OK", text.toString().getBytes(StandardCharsets.UTF_8))
+				.addAdditionalInfo(HttpHeaders.CONTENT_TYPE, CONTENT_TYPE)
+				.addAdditionalInfo(HttpHeaders.CACHE_CONTROL, "no-store");
+	}
+	
+	@Override
+	public ResponseInfo handleRequest(PathInfo path, HttpHeaders attributes, Map<String, String> parameters, RequestBody body) {
+		return handleRequest(path, attributes);
+	}
+	
+}
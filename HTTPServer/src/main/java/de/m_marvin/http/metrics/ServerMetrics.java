@@ -0,0 +1,302 @@
+package de.m_marvin.http.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import de.m_marvin.http.BufferPool;
+import de.m_marvin.http.HttpCode;
+
+/**
+ * Records the metrics of an {@link de.m_marvin.http.server.HttpServer HttpServer}: request counts per status code and route, request latencies,
+ * transfered bytes, timeouts and parse errors.<br>
+ * All counters are recorded without locking, so that the recording does not slow down the request handling.
+ * The metrics can be exported through JMX with {@link #registerMBean(String)} or in the Prometheus text format with {@link MetricsEndpoint}.
+ * @author Marvin Koehler
+ *
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+	
+	public static final String JMX_DOMAIN = "de.m_marvin.http";
+	protected static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+	
+	/**
+	 * The metrics of the requests dispatched to one route of an {@link de.m_marvin.http.server.Router Router}.
+	 */
+	public static class RouteMetrics {
+		
+		protected final LongAdder requests = new LongAdder();
+		// Responses per status class, index 1 to 5 for 1xx to 5xx
+		protected final LongAdder[] statusClasses = new LongAdder[6];
+		protected final LatencyHistogram latency = new LatencyHistogram();
+		
+		protected RouteMetrics() {
+			for (int i = 0; i < this.statusClasses.length; i++) this.statusClasses[i] = new LongAdder();
+		}
+		
+		public long getRequests() {
+			return this.requests.sum();
+		}
+		
+		public LatencyHistogram getLatency() {
+			return this.latency;
+		}
+		
+	}
+	
+	protected final LongAdder requests = new LongAdder();
+	protected final LongAdder bytesReceived = new LongAdder();
+	protected final LongAdder bytesSent = new LongAdder();
+	protected final LongAdder timeouts = new LongAdder();
+	protected final LongAdder parseErrors = new LongAdder();
+	protected final AtomicReferenceArray<LongAdder> statusCounts = new AtomicReferenceArray<>(600);
+	protected final LatencyHistogram latency = new LatencyHistogram();
+	protected final Map<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+	protected volatile IntSupplier connections = () -> 0;
+	protected volatile IntSupplier inFlight = () -> 0;
+	protected ObjectName objectName;
+	
+	/**
+	 * Sets the sources of the connection and in flight request gauges, called by the server when it is opened.
+	 */
+	public void setGauges(IntSupplier connections, IntSupplier inFlight) {
+		this.connections = connections;
+		this.inFlight = inFlight;
+	}
+	
+	/**
+	 * Records an answered request.
+	 * @param code The status code of the response
+	 * @param nanos The time from the reception of the request header until the response was sent
+	 */
+	public void recordRequest(HttpCode code, long nanos) {
+		this.requests.increment();
+		statusCounter(code.code()).increment();
+		this.latency.record(nanos);
+	}
+	
+	protected LongAdder statusCounter(int code) {
+		LongAdder counter = this.statusCounts.get(code);
+		if (counter == null) {
+			this.statusCounts.compareAndSet(code, null, new LongAdder());
+			counter = this.statusCounts.get(code);
+		}
+		return counter;
+	}
+	
+	/**
+	 * Records an request dispatched by the router.
+	 * @param route The pattern of the route
+	 * @param code The status code returned by the handler
+	 * @param nanos The time the handler took to create the response
+	 */
+	public void recordRoute(String route, HttpCode code, long nanos) {
+		RouteMetrics metrics = this.routes.get(route);
+		if (metrics == null) metrics = this.routes.computeIfAbsent(route, r -> new RouteMetrics());
+		metrics.requests.increment();
+		if (code != null) metrics.statusClasses[code.code() / 100].increment();
+		metrics.latency.record(nanos);
+	}
+	
+	public void recordBytesReceived(long bytes) {
+		this.bytesReceived.add(bytes);
+	}
+	
+	public void recordBytesSent(long bytes) {
+		this.bytesSent.add(bytes);
+	}
+	
+	public void recordTimeout() {
+		this.timeouts.increment();
+	}
+	
+	public void recordParseError() {
+		this.parseErrors.increment();
+	}
+	
+	public LatencyHistogram getLatency() {
+		return this.latency;
+	}
+	
+	/**
+	 * @return The metrics of the routes which received requests, by their pattern
+	 */
+	public Map<String, RouteMetrics> getRoutes() {
+		return this.routes;
+	}
+	
+	@Override
+	public long getRequests() {
+		return this.requests.sum();
+	}
+	
+	@Override
+	public long getBytesReceived() {
+		return this.bytesReceived.sum();
+	}
+	
+	@Override
+	public long getBytesSent() {
+		return this.bytesSent.sum();
+	}
+	
+	@Override
+	public long getTimeouts() {
+		return this.timeouts.sum();
+	}
+	
+	@Override
+	public long getParseErrors() {
+		return this.parseErrors.sum();
+	}
+	
+	@Override
+	public int getActiveConnections() {
+		return this.connections.getAsInt();
+	}
+	
+	@Override
+	public int getRequestsInFlight() {
+		return this.inFlight.getAsInt();
+	}
+	
+	@Override
+	public long getOpenWebSockets() {
+		return WebSocketMetrics.GLOBAL.getOpen();
+	}
+	
+	@Override
+	public double getLatencyMeanMillis() {
+		return this.latency.snapshot().getMean() / 1e6;
+	}
+	
+	@Override
+	public double getLatencyP50Millis() {
+		return this.latency.snapshot().getValueAtQuantile(0.5) / 1e6;
+	}
+	
+	@Override
+	public double getLatencyP99Millis() {
+		return this.latency.snapshot().getValueAtQuantile(0.99) / 1e6;
+	}
+	
+	@Override
+	public double getLatencyP999Millis() {
+		return this.latency.snapshot().getValueAtQuantile(0.999) / 1e6;
+	}
+	
+	@Override
+	public double getLatencyMaxMillis() {
+		return this.latency.snapshot().getMax() / 1e6;
+	}
+	
+	@Override
+	public Map<String, Long> getResponsesByStatus() {
+		Map<String, Long> responses = new TreeMap<>();
+		for (int i = 0; i < this.statusCounts.length(); i++) {
+			LongAdder counter = this.statusCounts.get(i);
+			if (counter != null) responses.put(Integer.toString(i), counter.sum());
+		}
+		return responses;
+	}
+	
+	@Override
+	public Map<String, Long> getRequestsByRoute() {
+		Map<String, Long> requests = new TreeMap<>();
+		this.routes.forEach((route, metrics) -> requests.put(route, metrics.getRequests()));
+		return requests;
+	}
+	
+	/**
+	 * Registers the metrics at the platform MBean server, under the name <code>de.m_marvin.http:type=HttpServer,name=[name]</code>.
+	 * @param name The name identifying the server
+	 * @throws JMException If the registration failed, for example because the name is already in use
+	 */
+	public synchronized void registerMBean(String name) throws JMException {
+		unregisterMBean();
+		ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=HttpServer,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		this.objectName = objectName;
+	}
+	
+	public synchronized void unregisterMBean() throws JMException {
+		if (this.objectName == null) return;
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+		this.objectName = null;
+	}
+	
+	/**
+	 * Writes all metrics in the Prometheus text exposition format, including the WebSocket and buffer pool metrics of the process.
+	 */
+	public void writePrometheus(StringBuilder out) {
+		counter(out, "http_requests_total", "Answered requests", getRequests());
+		out.append("# HELP http_responses_total Responses by status code\n# TYPE http_responses_total counter\n");
+		for (int i = 0; i < this.statusCounts.length(); i++) {
+			LongAdder counter = this.statusCounts.get(i);
+			if (counter != null) out.append("http_responses_total{code=\"").append(i).append("\"} ").append(counter.sum()).append('\n');
+		}
+		out.append("# HELP http_request_duration_seconds Time from the reception of the request until the response was sent\n# TYPE http_request_duration_seconds summary\n");
+		summary(out, "http_request_duration_seconds", "", this.latency.snapshot());
+		if (!this.routes.isEmpty()) {
+			out.append("# HELP http_route_requests_total Requests dispatched by the router by route and status class\n# TYPE http_route_requests_total counter\n");
+			this.routes.forEach((route, metrics) -> {
+				for (int i = 1; i < metrics.statusClasses.length; i++) {
+					long count = metrics.statusClasses[i].sum();
+					if (count > 0) out.append("http_route_requests_total{route=\"").append(escapeLabel(route)).append("\",code=\"").append(i).append("xx\"} ").append(count).append('\n');
+				}
+			});
+			out.append("# HELP http_route_duration_seconds Time the handler of the route took to create the response\n# TYPE http_route_duration_seconds summary\n");
+			this.routes.forEach((route, metrics) -> summary(out, "http_route_duration_seconds", "route=\"" + escapeLabel(route) + "\",", metrics.latency.snapshot()));
+		}
+		counter(out, "http_received_bytes_total", "Bytes received from the clients", getBytesReceived());
+		counter(out, "http_sent_bytes_total", "Bytes sent to the clients", getBytesSent());
+		counter(out, "http_timeouts_total", "Requests not received within the reception timeout", getTimeouts());
+		counter(out, "http_parse_errors_total", "Requests rejected because of an invalid header", getParseErrors());
+		gauge(out, "http_connections", "Open connections", getActiveConnections());
+		gauge(out, "http_requests_in_flight", "Requests currently handled", getRequestsInFlight());
+		WebSocketMetrics webSockets = WebSocketMetrics.GLOBAL;
+		gauge(out, "websocket_open", "Open WebSockets", webSockets.getOpen());
+		counter(out, "websocket_frames_received_total", "Received WebSocket frames", webSockets.getFramesReceived());
+		counter(out, "websocket_frames_sent_total", "Sent WebSocket frames", webSockets.getFramesSent());
+		counter(out, "websocket_received_bytes_total", "Received WebSocket payload bytes", webSockets.getBytesReceived());
+		counter(out, "websocket_sent_bytes_total", "Sent WebSocket payload bytes", webSockets.getBytesSent());
+		out.append("# HELP bufferpool_outstanding Pooled buffers currently in use\n# TYPE bufferpool_outstanding gauge\n");
+		out.append("bufferpool_outstanding{pool=\"direct\"} ").append(BufferPool.DIRECT.getMetrics().outstanding()).append('\n');
+		out.append("bufferpool_outstanding{pool=\"heap\"} ").append(BufferPool.HEAP.getMetrics().outstanding()).append('\n');
+	}
+	
+	protected static void counter(StringBuilder out, String name, String help, long value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" counter\n");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+	
+	protected static void gauge(StringBuilder out, String name, String help, long value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" gauge\n");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+	
+	/**
+	 * Writes the quantiles, sum and count of an latency histogram in seconds.
+	 * @param labels Additional labels, each followed by a comma
+	 */
+	protected static void summary(StringBuilder out, String name, String labels, LatencyHistogram.Snapshot snapshot) {
+		for (double quantile : QUANTILES) {
+			out.append(name).append('{').append(labels).append("quantile=\"").append(quantile).append("\"} ").append(snapshot.getValueAtQuantile(quantile) / 1e9).append('\n');
+		}
+		String labelSet = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+		out.append(name).append("_sum").append(labelSet).append(' ').append(snapshot.getSum() / 1e9).append('\n');
+		out.append(name).append("_count").append(labelSet).append(' ').append(snapshot.getCount()).append('\n');
+	}
+	
+	protected static String escapeLabel(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+	
+}
@@ -0,0 +1,48 @@
+package de.m_marvin.http.metrics;
+
+import java.util.Map;
+
+/**
+ * The management interface of the {@link ServerMetrics}, exported through JMX.
+ * @author Marvin Koehler
+ *
+ */
+public interface ServerMetricsMXBean {
+	
+	public long getRequests();
+	
+	public long getBytesReceived();
+	
+	public long getBytesSent();
+	
+	public long getTimeouts();
+	
+	public long getParseErrors();
+	
+	public int getActiveConnections();
+	
+	public int getRequestsInFlight();
+	
+	public long getOpenWebSockets();
+	
+	public double getLatencyMeanMillis();
+	
+	public double getLatencyP50Millis();
+	
+	public double getLatencyP99Millis();
+	
+	public double getLatencyP999Millis();
+	
+	public double getLatencyMaxMillis();
+	
+	/**
+	 * @return The number of responses per status code
+	 */
+	public Map<String, Long> getResponsesByStatus();
+	
+	/**
+	 * @return The number of requests per route pattern of the router
+	 */
+	public Map<String, Long> getRequestsByRoute();
+	
+}
@@ -0,0 +1,78 @@
+package de.m_marvin.http.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of all {@link de.m_marvin.websocket.WebSocket WebSockets} of the process, recorded without locking.
+ * @author Marvin Koehler
+ *
+ */
+public class WebSocketMetrics {
+	
+	public static final WebSocketMetrics GLOBAL = new WebSocketMetrics();
+	
+	protected final LongAdder opened = new LongAdder();
+	protected final LongAdder closed = new LongAdder();
+	protected final LongAdder framesReceived = new LongAdder();
+	protected final LongAdder framesSent = new LongAdder();
+	protected final LongAdder bytesReceived = new LongAdder();
+	protected final LongAdder bytesSent = new LongAdder();
+	
+	public void recordOpen() {
+		this.opened.increment();
+	}
+	
+	public void recordClose() {
+		this.closed.increment();
+	}
+	
+	/**
+	 * @param payloadLength The number of payload bytes of the frame
+	 */
+	public void recordFrameReceived(long payloadLength) {
+		this.framesReceived.increment();
+		this.bytesReceived.add(payloadLength);
+	}
+	
+	/**
+	 * @param payloadLength The number of payload bytes of the frame
+	 */
+	public void recordFrameSent(long payloadLength) {
+		this.framesSent.increment();
+		this.bytesSent.add(payloadLength);
+	}
+	
+	/**
+	 * @return The number of WebSockets which are not yet closed in both directions
+	 */
+	public long getOpen() {
+		return this.opened.sum() - this.closed.sum();
+	}
+	
+	public long getOpened() {
+		return this.opened.sum();
+	}
+	
+	public long getFramesReceived() {
+		return this.framesReceived.sum();
+	}
+	
+	public long getFramesSent() {
+		return this.framesSent.sum();
+	}
+	
+	/**
+	 * @return The number of payload bytes received
+	 */
+	public long getBytesReceived() {
+		return this.bytesReceived.sum();
+	}
+	
+	/**
+	 * @return The number of payload bytes sent
+	 */
+	public long getBytesSent() {
+		return this.bytesSent.sum();
+	}
+	
+}
@@ -0,0 +1,238 @@
+package de.m_marvin.http.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the load accepted by an {@link HttpServer}, so that the latency stays bounded when the server is overloaded.<br>
+ * The number of open connections and the number of requests handled at the same time are limited,
+ * further requests wait in a bounded queue for a free slot. Connections and requests exceeding the limits are rejected,
+ * which the server answers with 503 (Service Unavailable).<br>
+ * Optionally requests are shed based on the time they waited in the queue, following the CoDel algorithm:
+ * If the queue delay stays above the target delay for longer than the interval, requests are rejected in shrinking intervals until the delay drops below the target again.
+ * @author Marvin Koehler
+ *
+ */
+public class AdmissionControl {
+	
+	protected static record PendingRequest(Runnable admitted, Runnable rejected, long enqueued) {}
+	
+	protected final int maxConnections;
+	protected final int maxInFlight;
+	protected final int maxPending;
+	protected final long targetDelay;
+	protected final long interval;
+	protected final AtomicInteger connections = new AtomicInteger();
+	protected final AtomicInteger inFlight = new AtomicInteger();
+	protected final Queue<PendingRequest> pending = new ArrayDeque<>();
+	protected boolean closed = false;
+	
+	// State of the CoDel algorithm, guarded by this
+	protected boolean dropping = false;
+	protected long firstAboveTime = 0;
+	protected long dropNext = 0;
+	protected int dropCount = 0;
+	
+	protected final LongAdder rejectedConnections = new LongAdder();
+	protected final LongAdder rejectedRequests = new LongAdder();
+	protected final LongAdder shedRequests = new LongAdder();
+	
+	/**
+	 * @param maxConnections The maximum number of open connections, zero for no limit
+	 * @param maxInFlight The maximum number of requests handled at the same time, zero for no limit
+	 * @param maxPending The maximum number of requests waiting for a free slot
+	 * @param targetDelay The acceptable queue delay in milliseconds, zero to disable the delay based shedding
+	 * @param interval The time in milliseconds the queue delay has to stay above the target before requests are shed
+	 */
+	public AdmissionControl(int maxConnections, int maxInFlight, int maxPending, int targetDelay, int interval) {
+		this.maxConnections = maxConnections;
+		this.maxInFlight = maxInFlight;
+		this.maxPending = maxPending;
+		this.targetDelay = TimeUnit.MILLISECONDS.toNanos(targetDelay);
+		this.interval = TimeUnit.MILLISECONDS.toNanos(interval);
+	}
+	
+	/**
+	 * Reserves a connection slot for an accepted connection.
+	 * @return false if the connection limit is reached and the connection has to be rejected
+	 */
+	public boolean acquireConnection() {
+		while (true) {
+			int count = this.connections.get();
+			if (this.maxConnections > 0 && count >= this.maxConnections) {
+				this.rejectedConnections.increment();
+				return false;
+			}
+			if (this.connections.compareAndSet(count, count + 1)) return true;
+		}
+	}
+	
+	public void releaseConnection() {
+		this.connections.decrementAndGet();
+	}
+	
+	/**
+	 * Requests a slot for handling a request.<br>
+	 * If a slot is free, the admitted task is run immediately on the calling thread, otherwise the request is queued
+	 * and the task is run by the thread releasing the next slot. If the queue is full or the request is shed, the rejected task is run instead.<br>
+	 * After an admitted request was handled, the slot has to be returned with {@link #release()}.
+	 * @param admitted The task which handles the request, should only dispatch the request and return quickly
+	 * @param rejected The task which answers the rejected request
+	 */
+	public void submit(Runnable admitted, Runnable rejected) {
+		if (this.maxInFlight <= 0) {
+			this.inFlight.incrementAndGet();
+			admitted.run();
+			return;
+		}
+		boolean admit;
+		synchronized (this) {
+			if (this.closed) {
+				admit = false;
+			} else if (this.pending.isEmpty() && this.inFlight.get() < this.maxInFlight) {
+				this.inFlight.incrementAndGet();
+				admit = true;
+			} else if (this.pending.size() < this.maxPending) {
+				this.pending.add(new PendingRequest(admitted, rejected, System.nanoTime()));
+				return;
+			} else {
+				admit = false;
+			}
+		}
+		if (admit) {
+			admitted.run();
+		} else {
+			this.rejectedRequests.increment();
+			rejected.run();
+		}
+	}
+	
+	/**
+	 * Requests a slot for handling a request, blocking while the request is queued.
+	 * @return true if the request was admitted, false if it has to be rejected
+	 */
+	public boolean acquire() {
+		CompletableFuture<Boolean> admission = new CompletableFuture<>();
+		submit(() -> admission.complete(true), () -> admission.complete(false));
+		return admission.join();
+	}
+	
+	/**
+	 * Returns the slot of an handled request, which is passed on to the next queued request.
+	 */
+	public void release() {
+		if (this.maxInFlight <= 0) {
+			this.inFlight.decrementAndGet();
+			return;
+		}
+		PendingRequest next;
+		List<PendingRequest> shed = null;
+		synchronized (this) {
+			long now = System.nanoTime();
+			while ((next = this.pending.poll()) != null) {
+				if (!shouldShed(now - next.enqueued(), now)) break;
+				if (shed == null) shed = new ArrayList<>();
+				shed.add(next);
+			}
+			// The slot is passed on to the next request without being released
+			if (next == null) this.inFlight.decrementAndGet();
+		}
+		if (shed != null) {
+			for (PendingRequest request : shed) {
+				this.shedRequests.increment();
+				request.rejected().run();
+			}
+		}
+		if (next != null) next.admitted().run();
+	}
+	
+	/**
+	 * Decides if an request leaving the queue is shed, implements the dequeue part of the CoDel algorithm.
+	 * @param sojourn The time in nanoseconds the request waited in the queue
+	 * @param now The current time in nanoseconds
+	 */
+	protected boolean shouldShed(long sojourn, long now) {
+		if (this.targetDelay <= 0) return false;
+		boolean aboveTarget = false;
+		if (sojourn < this.targetDelay) {
+			this.firstAboveTime = 0;
+		} else if (this.firstAboveTime == 0) {
+			this.firstAboveTime = now + this.interval;
+		} else {
+			aboveTarget = now - this.firstAboveTime >= 0;
+		}
+		if (this.dropping) {
+			if (!aboveTarget) {
+				this.dropping = false;
+				return false;
+			}
+			if (now - this.dropNext < 0) return false;
+			this.dropCount++;
+			this.dropNext = controlLaw(this.dropNext);
+			return true;
+		}
+		if (!aboveTarget) return false;
+		this.dropping = true;
+		// Continue with a higher rate if the previous dropping state ended only shortly before
+		this.dropCount = this.dropCount > 2 && now - this.dropNext < 16 * this.interval ? this.dropCount - 2 : 1;
+		this.dropNext = controlLaw(now);
+		return true;
+	}
+	
+	protected long controlLaw(long time) {
+		return time + (long) (this.interval / Math.sqrt(this.dropCount));
+	}
+	
+	/**
+	 * Rejects all queued requests and any further requests.
+	 */
+	public void close() {
+		List<PendingRequest> rejected;
+		synchronized (this) {
+			this.closed = true;
+			rejected = new ArrayList<>(this.pending);
+			this.pending.clear();
+		}
+		for (PendingRequest request : rejected) {
+			this.rejectedRequests.increment();
+			request.rejected().run();
+		}
+	}
+	
+	public int getConnections() {
+		return this.connections.get();
+	}
+	
+	public int getInFlight() {
+		return this.inFlight.get();
+	}
+	
+	public synchronized int getPending() {
+		return this.pending.size();
+	}
+	
+	public long getRejectedConnections() {
+		return this.rejectedConnections.sum();
+	}
+	
+	/**
+	 * @return The number of requests rejected because the queue was full
+	 */
+	public long getRejectedRequests() {
+		return this.rejectedRequests.sum();
+	}
+	
+	/**
+	 * @return The number of requests rejected because of the queue delay
+	 */
+	public long getShedRequests() {
+		return this.shedRequests.sum();
+	}
+	
+}
@@ -0,0 +1,117 @@
+package de.m_marvin.http.server;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a payload sent with chunked transfer encoding.<br>
+ * The stream ends after the last chunk and its trailer section was read, the underlying stream is not closed.
+ * @author Marvin Koehler
+ *
+ */
+public class ChunkedInputStream extends FilterInputStream {
+	
+	public static final int MAX_CHUNK_LINE = 1024;
+	
+	protected long chunkRemaining = 0;
+	protected boolean finished = false;
+	
+	public ChunkedInputStream(InputStream in) {
+		super(in);
+	}
+	
+	protected boolean nextChunk() throws IOException {
+		if (this.finished) return false;
+		if (this.chunkRemaining == 0) {
+			String line = readLine();
+			int extension = line.indexOf(';');
+			String size = (extension >= 0 ? line.substring(0, extension) : line).trim();
+			try {
+				this.chunkRemaining = Long.parseLong(size, 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid chunk size: " + size);
+			}
+			if (this.chunkRemaining < 0) throw new IOException("Invalid chunk size: " + size);
+			if (this.chunkRemaining == 0) {
+				// Skip trailer fields
+				while (!readLine().isEmpty());
+				this.finished = true;
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	protected String readLine() throws IOException {
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = this.in.read()) != '\n') {
+			if (b < 0) throw new EOFException("Unexpected end of chunked payload!");
+			if (line.length() >= MAX_CHUNK_LINE) throw new IOException("Chunk line too long!");
+			if (b != '\r') line.append((char) b);
+		}
+		return line.toString();
+	}
+	
+	protected void endChunk() throws IOException {
+		if (this.chunkRemaining == 0 && !readLine().isEmpty())
+			throw new IOException("Missing chunk terminator!");
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if (!nextChunk()) return -1;
+		int b = this.in.read();
+		if (b < 0) throw new EOFException("Unexpected end of chunked payload!");
+		this.chunkRemaining--;
+		endChunk();
+		return b;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		if (!nextChunk()) return -1;
+		int read = this.in.read(b, off, (int) Math.min(len, this.chunkRemaining));
+		if (read < 0) throw new EOFException("Unexpected end of chunked payload!");
+		this.chunkRemaining -= read;
+		endChunk();
+		return read;
+	}
+	
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while (skipped < n && nextChunk()) {
+			long step = this.in.skip(Math.min(n - skipped, this.chunkRemaining));
+			if (step <= 0) {
+				if (this.in.read() < 0) throw new EOFException("Unexpected end of chunked payload!");
+				step = 1;
+			}
+			this.chunkRemaining -= step;
+			skipped += step;
+			endChunk();
+		}
+		return skipped;
+	}
+	
+	@Override
+	public int available() throws IOException {
+		if (this.finished) return 0;
+		return (int) Math.min(this.in.available(), this.chunkRemaining);
+	}
+	
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		// Only consume the remaining payload, the underlying connection stays open
+		while (skip(Long.MAX_VALUE) > 0);
+	}
+	
+}
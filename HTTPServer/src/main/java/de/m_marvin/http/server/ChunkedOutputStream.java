@@ -0,0 +1,89 @@
+package de.m_marvin.http.server;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes a payload with chunked transfer encoding.<br>
+ * Written bytes are collected into chunks, flushing the stream sends the current chunk immediately.<br>
+ * Closing the stream writes the last chunk, the underlying stream is only flushed, not closed.
+ * @author Marvin Koehler
+ *
+ */
+public class ChunkedOutputStream extends FilterOutputStream {
+	
+	public static final int DEFAULT_CHUNK_SIZE = 0x2000;
+	
+	protected static final byte[] CRLF = { '\r', '\n' };
+	protected static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+	
+	protected final byte[] buffer;
+	protected int count = 0;
+	protected boolean closed = false;
+	
+	public ChunkedOutputStream(OutputStream out) {
+		this(out, DEFAULT_CHUNK_SIZE);
+	}
+	
+	public ChunkedOutputStream(OutputStream out, int chunkSize) {
+		super(out);
+		this.buffer = new byte[chunkSize];
+	}
+	
+	protected void ensureOpen() throws IOException {
+		if (this.closed) throw new IOException("Stream closed!");
+	}
+	
+	protected void writeChunk() throws IOException {
+		writeChunk(this.buffer, 0, this.count);
+		this.count = 0;
+	}
+	
+	protected void writeChunk(byte[] b, int off, int len) throws IOException {
+		// An empty chunk would terminate the payload
+		if (len == 0) return;
+		this.out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+		this.out.write(b, off, len);
+		this.out.write(CRLF);
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		if (this.count == this.buffer.length) writeChunk();
+		this.buffer[this.count++] = (byte) b;
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		if (len >= this.buffer.length) {
+			// Large writes are sent as their own chunk without copying
+			writeChunk();
+			writeChunk(b, off, len);
+			return;
+		}
+		if (len > this.buffer.length - this.count) writeChunk();
+		System.arraycopy(b, off, this.buffer, this.count, len);
+		this.count += len;
+	}
+	
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		writeChunk();
+		this.out.flush();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (this.closed) return;
+		writeChunk();
+		this.out.write(LAST_CHUNK);
+		this.out.flush();
+		this.closed = true;
+	}
+	
+}
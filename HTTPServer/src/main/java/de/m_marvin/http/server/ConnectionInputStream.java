@@ -0,0 +1,92 @@
+package de.m_marvin.http.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Buffered input of an connection, which exposes its buffer to the {@link RequestParser}.<br>
+ * Bytes not consumed by the parser stay in the buffer and are returned by the stream methods, to read the payload or the next request.
+ * @author Marvin Koehler
+ *
+ */
+public class ConnectionInputStream extends InputStream {
+	
+	protected final InputStream in;
+	protected final ByteBuffer buffer;
+	
+	public ConnectionInputStream(InputStream in, int bufferSize) {
+		this(in, ByteBuffer.allocate(bufferSize));
+	}
+	
+	/**
+	 * @param buffer The array backed buffer to use, its content is discarded
+	 */
+	public ConnectionInputStream(InputStream in, ByteBuffer buffer) {
+		this.in = in;
+		this.buffer = buffer.clear().flip();
+	}
+	
+	/**
+	 * @return The buffer holding the received but not yet consumed bytes, in read mode
+	 */
+	public ByteBuffer buffer() {
+		return this.buffer;
+	}
+	
+	/**
+	 * Reads the next bytes available from the underlying stream into the buffer, blocks until at least one byte is available.
+	 * @return The number of bytes read, or -1 if the end of the stream is reached
+	 */
+	public int fill() throws IOException {
+		this.buffer.compact();
+		try {
+			int read = this.in.read(this.buffer.array(), this.buffer.position(), this.buffer.remaining());
+			if (read > 0) this.buffer.position(this.buffer.position() + read);
+			return read;
+		} finally {
+			this.buffer.flip();
+		}
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if (!this.buffer.hasRemaining() && fill() < 0) return -1;
+		return this.buffer.get() & 0xFF;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		if (!this.buffer.hasRemaining()) {
+			// Bypass the buffer for large reads
+			if (len >= this.buffer.capacity()) return this.in.read(b, off, len);
+			if (fill() < 0) return -1;
+		}
+		int read = Math.min(len, this.buffer.remaining());
+		this.buffer.get(b, off, read);
+		return read;
+	}
+	
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0) return 0;
+		if (this.buffer.hasRemaining()) {
+			int skipped = (int) Math.min(n, this.buffer.remaining());
+			this.buffer.position(this.buffer.position() + skipped);
+			return skipped;
+		}
+		return this.in.skip(n);
+	}
+	
+	@Override
+	public int available() throws IOException {
+		return this.buffer.remaining() + this.in.available();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		this.in.close();
+	}
+	
+}
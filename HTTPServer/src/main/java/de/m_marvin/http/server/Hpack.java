@@ -0,0 +1,472 @@
+package de.m_marvin.http.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+import de.m_marvin.http.HttpHeaders;
+
+/**
+ * The header compression of HTTP/2 (RFC 7541).<br>
+ * Header fields are sent as indices into an static table of common fields and an dynamic table of recently sent fields,
+ * or as literals which can be added to the dynamic table. Both sides of an connection keep an copy of the dynamic table of each direction,
+ * so the header blocks have to be decoded and encoded in the order they are sent.<br>
+ * Literal strings can be Huffman coded, the encoder uses the Huffman code if it is shorter than the plain string.
+ * @author Marvin Koehler
+ *
+ */
+public class Hpack {
+	
+	public static final int DEFAULT_TABLE_SIZE = 4096;
+	// Added to the size of each entry of the dynamic table
+	protected static final int ENTRY_OVERHEAD = 32;
+	
+	protected static final String[][] STATIC_TABLE = {
+			{ ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" }, { ":path", "/index.html" },
+			{ ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" }, { ":status", "204" }, { ":status", "206" },
+			{ ":status", "304" }, { ":status", "400" }, { ":status", "404" }, { ":status", "500" }, { "accept-charset", "" },
+			{ "accept-encoding", "gzip, deflate" }, { "accept-language", "" }, { "accept-ranges", "" }, { "accept", "" }, { "access-control-allow-origin", "" },
+			{ "age", "" }, { "allow", "" }, { "authorization", "" }, { "cache-control", "" }, { "content-disposition", "" },
+			{ "content-encoding", "" }, { "content-language", "" }, { "content-length", "" }, { "content-location", "" }, { "content-range", "" },
+			{ "content-type", "" }, { "cookie", "" }, { "date", "" }, { "etag", "" }, { "expect", "" },
+			{ "expires", "" }, { "from", "" }, { "host", "" }, { "if-match", "" }, { "if-modified-since", "" },
+			{ "if-none-match", "" }, { "if-range", "" }, { "if-unmodified-since", "" }, { "last-modified", "" }, { "link", "" },
+			{ "location", "" }, { "max-forwards", "" }, { "proxy-authenticate", "" }, { "proxy-authorization", "" }, { "range", "" },
+			{ "referer", "" }, { "refresh", "" }, { "retry-after", "" }, { "server", "" }, { "set-cookie", "" },
+			{ "strict-transport-security", "" }, { "transfer-encoding", "" }, { "user-agent", "" }, { "vary", "" }, { "via", "" },
+			{ "www-authenticate", "" }
+	};
+	protected static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+	protected static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+	
+	protected static final int[] HUFFMAN_CODES = {
+			0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7, 0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9,
+			0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec, 0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+			0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb, 0x14, 0x3f8, 0x3f9, 0xffa,
+			0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+			0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb,
+			0x7ffc, 0x20, 0xffb, 0x3fc, 0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+			0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e,
+			0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+			0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26, 0x27, 0x6, 0x74, 0x75,
+			0x28, 0x29, 0x2a, 0x7, 0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+			0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8,
+			0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+			0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5,
+			0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+			0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2,
+			0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+			0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde,
+			0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+			0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed, 0x1fffe6,
+			0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+			0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed,
+			0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee, 0x3fffffff
+	};
+	protected static final byte[] HUFFMAN_LENGTHS = {
+			13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+			6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+			13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+			15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+			20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+			22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+			26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+			20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+			30
+	};
+	protected static final int HUFFMAN_EOS = 256;
+	// Decoding tree of the Huffman code, two children per node, positive values are nodes, negative values are symbols
+	protected static final int[] HUFFMAN_TREE = new int[256 * 2];
+	
+	static {
+		for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+			STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+			if (!STATIC_TABLE[i][1].isEmpty()) STATIC_FIELDS.put(fieldKey(STATIC_TABLE[i][0], STATIC_TABLE[i][1]), i + 1);
+		}
+		int nodes = 1;
+		for (int symbol = 0; symbol <= HUFFMAN_EOS; symbol++) {
+			int node = 0;
+			for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+				int slot = node * 2 + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+				if (bit == 0) {
+					HUFFMAN_TREE[slot] = -symbol - 1;
+				} else {
+					if (HUFFMAN_TREE[slot] == 0) HUFFMAN_TREE[slot] = nodes++;
+					node = HUFFMAN_TREE[slot];
+				}
+			}
+		}
+	}
+	
+	private Hpack() {}
+	
+	/**
+	 * Thrown if an header block can not be decoded, which is an error of the whole connection since the dynamic table is no longer in sync.
+	 */
+	public static class HpackException extends IOException {
+		
+		private static final long serialVersionUID = -2960871325078436405L;
+		
+		public HpackException(String message) {
+			super(message);
+		}
+		
+	}
+	
+	protected static String fieldKey(String name, String value) {
+		return name + '\n' + value;
+	}
+	
+	/**
+	 * @return The size of an entry in the dynamic table
+	 */
+	public static int entrySize(int nameLength, int valueLength) {
+		return nameLength + valueLength + ENTRY_OVERHEAD;
+	}
+	
+	/**
+	 * The dynamic table of one direction of an connection, an ring buffer with the newest entry at index zero.
+	 */
+	protected static class DynamicTable {
+		
+		protected String[] names = new String[16];
+		protected String[] values = new String[16];
+		protected int[] sizes = new int[16];
+		protected int first = 0;
+		protected int count = 0;
+		protected int size = 0;
+		protected int maxSize;
+		
+		public DynamicTable(int maxSize) {
+			this.maxSize = maxSize;
+		}
+		
+		protected int slot(int index) {
+			return (this.first + index) & (this.names.length - 1);
+		}
+		
+		public int count() {
+			return this.count;
+		}
+		
+		public String name(int index) {
+			return this.names[slot(index)];
+		}
+		
+		public String value(int index) {
+			return this.values[slot(index)];
+		}
+		
+		/**
+		 * Adds an entry, evicting the oldest entries until it fits. Entries larger than the table only clear it.
+		 */
+		public void add(String name, String value, int entrySize) {
+			while (this.count > 0 && this.size + entrySize > this.maxSize) evict();
+			if (entrySize > this.maxSize) return;
+			if (this.count == this.names.length) grow();
+			this.first = (this.first - 1) & (this.names.length - 1);
+			this.names[this.first] = name;
+			this.values[this.first] = value;
+			this.sizes[this.first] = entrySize;
+			this.count++;
+			this.size += entrySize;
+		}
+		
+		protected void evict() {
+			int slot = slot(this.count - 1);
+			this.size -= this.sizes[slot];
+			this.names[slot] = null;
+			this.values[slot] = null;
+			this.count--;
+		}
+		
+		protected void grow() {
+			int capacity = this.names.length * 2;
+			String[] names = new String[capacity];
+			String[] values = new String[capacity];
+			int[] sizes = new int[capacity];
+			for (int i = 0; i < this.count; i++) {
+				int slot = slot(i);
+				names[i] = this.names[slot];
+				values[i] = this.values[slot];
+				sizes[i] = this.sizes[slot];
+			}
+			this.names = names;
+			this.values = values;
+			this.sizes = sizes;
+			this.first = 0;
+		}
+		
+		public void setMaxSize(int maxSize) {
+			this.maxSize = maxSize;
+			while (this.size > maxSize) evict();
+		}
+		
+		public int getMaxSize() {
+			return this.maxSize;
+		}
+		
+	}
+	
+	/**
+	 * Decodes the header blocks received on an connection, the blocks have to be passed in the order they where received.
+	 */
+	public static class Decoder {
+		
+		protected final DynamicTable table;
+		protected final int maxTableSize;
+		
+		/**
+		 * @param maxTableSize The maximum size of the dynamic table, as announced to the peer
+		 */
+		public Decoder(int maxTableSize) {
+			this.maxTableSize = maxTableSize;
+			this.table = new DynamicTable(maxTableSize);
+		}
+		
+		/**
+		 * Decodes an complete header block, the fields are passed to the consumer in the order of the block.
+		 * @throws HpackException If the block is invalid
+		 */
+		public void decode(ByteBuffer block, BiConsumer<String, String> fields) throws HpackException {
+			boolean start = true;
+			while (block.hasRemaining()) {
+				int b = block.get(block.position()) & 0xFF;
+				if ((b & 0x80) != 0) {
+					int index = readInteger(block, 7);
+					fields.accept(name(index), value(index));
+				} else if ((b & 0xE0) == 0x20) {
+					// Size updates are only allowed at the start of the block
+					if (!start) throw new HpackException("Table size update after header field!");
+					int size = readInteger(block, 5);
+					if (size > this.maxTableSize) throw new HpackException("Table size update exceeds the maximum size!");
+					this.table.setMaxSize(size);
+					continue;
+				} else {
+					boolean indexed = (b & 0xC0) == 0x40;
+					int nameIndex = readInteger(block, indexed ? 6 : 4);
+					String name;
+					int nameLength;
+					if (nameIndex == 0) {
+						byte[] octets = readString(block);
+						name = new String(octets, StandardCharsets.US_ASCII);
+						nameLength = octets.length;
+					} else {
+						name = name(nameIndex);
+						nameLength = name.length();
+					}
+					byte[] octets = readString(block);
+					String value = new String(octets, StandardCharsets.UTF_8);
+					if (indexed) this.table.add(name, value, entrySize(nameLength, octets.length));
+					fields.accept(name, value);
+				}
+				start = false;
+			}
+		}
+		
+		protected String name(int index) throws HpackException {
+			if (index > 0 && index <= STATIC_TABLE.length) return STATIC_TABLE[index - 1][0];
+			int dynamic = index - STATIC_TABLE.length - 1;
+			if (index == 0 || dynamic >= this.table.count()) throw new HpackException("Invalid table index " + index + "!");
+			return this.table.name(dynamic);
+		}
+		
+		protected String value(int index) throws HpackException {
+			if (index > 0 && index <= STATIC_TABLE.length) return STATIC_TABLE[index - 1][1];
+			int dynamic = index - STATIC_TABLE.length - 1;
+			if (index == 0 || dynamic >= this.table.count()) throw new HpackException("Invalid table index " + index + "!");
+			return this.table.value(dynamic);
+		}
+		
+	}
+	
+	/**
+	 * Encodes the header blocks sent on an connection, the blocks have to be sent in the order they where encoded.<br>
+	 * Fields which change with every response are not added to the dynamic table, credentials and cookies are marked as never to be indexed.
+	 */
+	public static class Encoder {
+		
+		protected static final Set<String> NOT_INDEXED = Set.of("content-length", "date", "etag", "last-modified", "age", "expires", "content-range");
+		protected static final Set<String> NEVER_INDEXED = Set.of("authorization", "proxy-authorization", "set-cookie", "cookie");
+		
+		protected final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+		protected int minTableSize = -1;
+		protected boolean tableSizeChanged = false;
+		
+		/**
+		 * Applies the maximum table size announced by the peer, the encoder never uses more than {@link Hpack#DEFAULT_TABLE_SIZE}.<br>
+		 * The change is signaled at the start of the next header block.
+		 */
+		public void setMaxTableSize(int maxSize) {
+			int size = Math.min(maxSize, DEFAULT_TABLE_SIZE);
+			if (size == this.table.getMaxSize() && !this.tableSizeChanged) return;
+			this.minTableSize = this.tableSizeChanged ? Math.min(this.minTableSize, size) : size;
+			this.tableSizeChanged = true;
+			this.table.setMaxSize(size);
+		}
+		
+		/**
+		 * Starts an new header block, has to be called before the fields of the block are encoded.
+		 * @return The buffer, or an larger buffer containing its bytes
+		 */
+		public ByteBuffer startBlock(ByteBuffer buffer) {
+			if (!this.tableSizeChanged) return buffer;
+			this.tableSizeChanged = false;
+			// The smallest size since the last block has to be signaled, so that the peer evicts the same entries
+			if (this.minTableSize < this.table.getMaxSize()) buffer = writeInteger(buffer, 0x20, 5, this.minTableSize);
+			return writeInteger(buffer, 0x20, 5, this.table.getMaxSize());
+		}
+		
+		/**
+		 * Encodes an header field.
+		 * @param name The lower case name of the field
+		 * @return The buffer, or an larger buffer containing its bytes
+		 */
+		public ByteBuffer encode(ByteBuffer buffer, String name, String value) {
+			Integer staticIndex = STATIC_FIELDS.get(fieldKey(name, value));
+			if (staticIndex != null) return writeInteger(buffer, 0x80, 7, staticIndex);
+			int nameIndex = 0;
+			Integer staticName = STATIC_NAMES.get(name);
+			if (staticName != null) nameIndex = staticName;
+			for (int i = 0; i < this.table.count(); i++) {
+				if (!this.table.name(i).equals(name)) continue;
+				if (this.table.value(i).equals(value)) return writeInteger(buffer, 0x80, 7, STATIC_TABLE.length + 1 + i);
+				if (nameIndex == 0) nameIndex = STATIC_TABLE.length + 1 + i;
+			}
+			byte[] valueOctets = value.getBytes(StandardCharsets.UTF_8);
+			if (NEVER_INDEXED.contains(name)) {
+				buffer = writeInteger(buffer, 0x10, 4, nameIndex);
+			} else if (NOT_INDEXED.contains(name)) {
+				buffer = writeInteger(buffer, 0x00, 4, nameIndex);
+			} else {
+				buffer = writeInteger(buffer, 0x40, 6, nameIndex);
+				this.table.add(name, value, entrySize(name.length(), valueOctets.length));
+			}
+			if (nameIndex == 0) buffer = writeString(buffer, name.getBytes(StandardCharsets.US_ASCII));
+			return writeString(buffer, valueOctets);
+		}
+		
+	}
+	
+	/**
+	 * Reads an integer with an prefix of the given number of bits from the block.
+	 */
+	public static int readInteger(ByteBuffer block, int prefixBits) throws HpackException {
+		int mask = (1 << prefixBits) - 1;
+		int value = block.get() & mask;
+		if (value < mask) return value;
+		int shift = 0;
+		int b;
+		do {
+			if (!block.hasRemaining()) throw new HpackException("Truncated integer!");
+			if (shift > 21) throw new HpackException("Integer too large!");
+			b = block.get() & 0xFF;
+			value += (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+	
+	/**
+	 * Writes an integer with an prefix of the given number of bits, the bits above the prefix are taken from the flags.
+	 */
+	public static ByteBuffer writeInteger(ByteBuffer buffer, int flags, int prefixBits, int value) {
+		buffer = HttpHeaders.ensureRemaining(buffer, 6);
+		int mask = (1 << prefixBits) - 1;
+		if (value < mask) return buffer.put((byte) (flags | value));
+		buffer.put((byte) (flags | mask));
+		value -= mask;
+		while (value >= 0x80) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		return buffer.put((byte) value);
+	}
+	
+	/**
+	 * Reads an string literal, decoding it if it is Huffman coded.
+	 * @return The octets of the string
+	 */
+	public static byte[] readString(ByteBuffer block) throws HpackException {
+		if (!block.hasRemaining()) throw new HpackException("Truncated string!");
+		boolean huffman = (block.get(block.position()) & 0x80) != 0;
+		int length = readInteger(block, 7);
+		if (length > block.remaining()) throw new HpackException("Truncated string!");
+		if (huffman) return huffmanDecode(block, length);
+		byte[] octets = new byte[length];
+		block.get(octets);
+		return octets;
+	}
+	
+	/**
+	 * Writes an string literal, Huffman coded if this makes it shorter.
+	 */
+	public static ByteBuffer writeString(ByteBuffer buffer, byte[] octets) {
+		int huffmanLength = huffmanLength(octets);
+		if (huffmanLength < octets.length) {
+			buffer = writeInteger(buffer, 0x80, 7, huffmanLength);
+			return huffmanEncode(HttpHeaders.ensureRemaining(buffer, huffmanLength), octets);
+		}
+		buffer = writeInteger(buffer, 0x00, 7, octets.length);
+		return HttpHeaders.ensureRemaining(buffer, octets.length).put(octets);
+	}
+	
+	public static byte[] huffmanDecode(ByteBuffer block, int length) throws HpackException {
+		// The shortest code has five bits
+		byte[] output = new byte[length * 8 / 5 + 1];
+		int count = 0;
+		int node = 0;
+		int depth = 0;
+		boolean ones = true;
+		for (int i = 0; i < length; i++) {
+			int b = block.get() & 0xFF;
+			for (int bit = 7; bit >= 0; bit--) {
+				int next = HUFFMAN_TREE[node * 2 + ((b >>> bit) & 1)];
+				if (next < 0) {
+					if (next == -HUFFMAN_EOS - 1) throw new HpackException("Huffman coded string contains EOS!");
+					output[count++] = (byte) (-next - 1);
+					node = 0;
+					depth = 0;
+					ones = true;
+				} else {
+					node = next;
+					depth++;
+					ones &= ((b >>> bit) & 1) == 1;
+				}
+			}
+		}
+		// The padding has to be an prefix of EOS, which consists only of ones, and shorter than one byte
+		if (depth > 7 || !ones) throw new HpackException("Invalid Huffman padding!");
+		return count == output.length ? output : Arrays.copyOf(output, count);
+	}
+	
+	public static int huffmanLength(byte[] octets) {
+		long bits = 0;
+		for (byte b : octets) bits += HUFFMAN_LENGTHS[b & 0xFF];
+		return (int) ((bits + 7) / 8);
+	}
+	
+	public static ByteBuffer huffmanEncode(ByteBuffer buffer, byte[] octets) {
+		long current = 0;
+		int bits = 0;
+		for (byte b : octets) {
+			int symbol = b & 0xFF;
+			current = (current << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+			bits += HUFFMAN_LENGTHS[symbol];
+			while (bits >= 8) {
+				bits -= 8;
+				buffer.put((byte) (current >>> bits));
+			}
+			current &= (1L << bits) - 1;
+		}
+		// Padded with the most significant bits of EOS
+		if (bits > 0) buffer.put((byte) ((current << (8 - bits)) | (0xFF >>> bits)));
+		return buffer;
+	}
+	
+}
@@ -0,0 +1,1085 @@
+package de.m_marvin.http.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+
+import de.m_marvin.http.HttpCode;
+import de.m_marvin.http.HttpHeaders;
+import de.m_marvin.http.HttpRequest;
+import de.m_marvin.http.PathInfo;
+import de.m_marvin.http.RequestInfo;
+import de.m_marvin.http.ResponseInfo;
+import de.m_marvin.simplelogging.Log;
+
+/**
+ * An HTTP/2 connection (RFC 9113), which multiplexes concurrent requests as streams over one socket.<br>
+ * The frames are read by the thread running the connection, the requests of the streams are passed to the handlers of the server on its executor,
+ * like the requests of HTTP/1.1 connections. The responses are written as frames by the handler threads, so that the streams are interleaved.<br>
+ * The payload of the requests is flow controlled per stream, the client can only send as many bytes as fit into the window of the stream,
+ * which is opened again while the handler reads the payload. The window of the connection is opened as soon as the bytes are received,
+ * since the buffered payload is already limited by the windows of the streams.<br>
+ * The header fields are compressed with {@link Hpack}, server push and stream priorities are not supported.
+ * @author Marvin Koehler
+ *
+ */
+public class Http2Connection implements Runnable {
+	
+	public static final String PROTOCOL = "HTTP/2.0";
+	public static final String ALPN_PROTOCOL = "h2";
+	public static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	public static final int DEFAULT_MAX_STREAMS = 100;
+	public static final int DEFAULT_WINDOW_SIZE = 65535;
+	public static final int DEFAULT_FRAME_SIZE = 16384;
+	public static final int MAX_FRAME_SIZE = 16777215;
+	// The connection window is opened this far, the buffered payload is limited by the stream windows
+	protected static final int CONNECTION_WINDOW_SIZE = 0x1000000;
+	protected static final int FRAME_HEADER_SIZE = 9;
+	
+	protected static final int DATA = 0x0;
+	protected static final int HEADERS = 0x1;
+	protected static final int PRIORITY = 0x2;
+	protected static final int RST_STREAM = 0x3;
+	protected static final int SETTINGS = 0x4;
+	protected static final int PUSH_PROMISE = 0x5;
+	protected static final int PING = 0x6;
+	protected static final int GOAWAY = 0x7;
+	protected static final int WINDOW_UPDATE = 0x8;
+	protected static final int CONTINUATION = 0x9;
+	
+	protected static final int FLAG_END_STREAM = 0x1;
+	protected static final int FLAG_ACK = 0x1;
+	protected static final int FLAG_END_HEADERS = 0x4;
+	protected static final int FLAG_PADDED = 0x8;
+	protected static final int FLAG_PRIORITY = 0x20;
+	
+	protected static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	protected static final int SETTINGS_ENABLE_PUSH = 0x2;
+	protected static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	protected static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	protected static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+	protected static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+	
+	public static final int NO_ERROR = 0x0;
+	public static final int PROTOCOL_ERROR = 0x1;
+	public static final int INTERNAL_ERROR = 0x2;
+	public static final int FLOW_CONTROL_ERROR = 0x3;
+	public static final int STREAM_CLOSED = 0x5;
+	public static final int FRAME_SIZE_ERROR = 0x6;
+	public static final int REFUSED_STREAM = 0x7;
+	public static final int CANCEL = 0x8;
+	public static final int COMPRESSION_ERROR = 0x9;
+	public static final int ENHANCE_YOUR_CALM = 0xb;
+	public static final int HTTP_1_1_REQUIRED = 0xd;
+	
+	/**
+	 * An error which terminates the whole connection with an GOAWAY frame.
+	 */
+	protected static class ConnectionError extends IOException {
+		
+		private static final long serialVersionUID = 7390528476217780123L;
+		
+		protected final int code;
+		
+		public ConnectionError(int code, String message) {
+			super(message);
+			this.code = code;
+		}
+		
+	}
+	
+	protected final HttpServer server;
+	protected final Socket socket;
+	protected final InputStream input;
+	protected final OutputStream output;
+	protected final InetSocketAddress remoteAddress;
+	protected final int maxStreams;
+	protected final int windowSize;
+	protected final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+	protected final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+	protected final byte[] frameHeader = new byte[FRAME_HEADER_SIZE];
+	protected final byte[] payload = new byte[DEFAULT_FRAME_SIZE];
+	protected final int maxHeaderBlock;
+	protected ByteBuffer headerBlock = ByteBuffer.allocate(HttpServer.HEADER_BUFFER_SIZE);
+	protected int continuationStream = 0;
+	protected boolean blockEndStream;
+	protected int lastStreamId = 0;
+	protected int receiveWindow = CONNECTION_WINDOW_SIZE;
+	protected int receivedBytes = 0;
+	protected volatile boolean goingAway = false;
+	
+	// Guarded by the write lock
+	protected final Object writeLock = new Object();
+	protected final Hpack.Encoder encoder = new Hpack.Encoder();
+	protected final byte[] outputHeader = new byte[FRAME_HEADER_SIZE];
+	protected ByteBuffer encodeBuffer = ByteBuffer.allocate(HttpServer.HEADER_BUFFER_SIZE);
+	
+	// Guarded by the connection
+	protected int sendWindow = DEFAULT_WINDOW_SIZE;
+	protected int initialSendWindow = DEFAULT_WINDOW_SIZE;
+	protected int acceptedStreamId = 0;
+	protected boolean started = false;
+	protected boolean closed = false;
+	
+	/**
+	 * @param input The input of the socket starting with the connection preface, the received bytes have to be counted by the caller
+	 * @param maxStreams The maximum number of concurrent streams, further streams are refused
+	 * @param windowSize The flow control window of the streams, the maximum number of payload bytes buffered per stream
+	 */
+	public Http2Connection(HttpServer server, Socket socket, InputStream input, int maxStreams, int windowSize) throws IOException {
+		this.server = server;
+		this.socket = socket;
+		this.input = new BufferedInputStream(input, HttpServer.INPUT_BUFFER_SIZE);
+		this.output = new BufferedOutputStream(new HttpServer.CountingOutputStream(socket.getOutputStream(), server.metrics), FRAME_HEADER_SIZE + DEFAULT_FRAME_SIZE);
+		this.remoteAddress = (InetSocketAddress) socket.getRemoteSocketAddress();
+		this.maxStreams = maxStreams;
+		this.windowSize = windowSize;
+		this.maxHeaderBlock = Math.max(server.maxHeaderSize, DEFAULT_FRAME_SIZE) * 2;
+	}
+	
+	/**
+	 * @return The number of bytes at the start of the buffer which match the connection preface, the position of the buffer is not changed
+	 */
+	public static int matchPreface(ByteBuffer buffer) {
+		int length = Math.min(buffer.remaining(), PREFACE.length);
+		for (int i = 0; i < length; i++) {
+			if (buffer.get(buffer.position() + i) != PREFACE[i]) return i;
+		}
+		return length;
+	}
+	
+	/**
+	 * Handles the connection until it is closed by the client, an error occurs or it stays idle for the keep alive timeout.
+	 */
+	@Override
+	public void run() {
+		int error = NO_ERROR;
+		try {
+			readPreface();
+			writeSettings();
+			synchronized (this) {
+				this.started = true;
+			}
+			if (this.goingAway || this.server.isShuttingDown()) goAway();
+			while (readFrame()) {}
+		} catch (ConnectionError e) {
+			error = e.code;
+		} catch (Hpack.HpackException e) {
+			error = COMPRESSION_ERROR;
+		} catch (EOFException | SocketException e) {
+			// Connection closed by the client
+		} catch (IOException e) {
+			// Connections closed by the server are not reported
+			if (!isClosed()) Log.defaultLogger().error("IOException on HTTP/2 connection occured!", e);
+			error = INTERNAL_ERROR;
+		} finally {
+			close(error);
+		}
+	}
+	
+	protected void readPreface() throws IOException {
+		this.socket.setSoTimeout(this.server.receptionTimeout);
+		byte[] preface = this.input.readNBytes(PREFACE.length);
+		for (int i = 0; i < PREFACE.length; i++) {
+			if (i >= preface.length || preface[i] != PREFACE[i]) throw new ConnectionError(PROTOCOL_ERROR, "Invalid connection preface!");
+		}
+		this.socket.setSoTimeout(this.server.keepAliveTimeout);
+	}
+	
+	protected void writeSettings() throws IOException {
+		byte[] settings = new byte[18];
+		putSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, this.maxStreams);
+		putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, this.windowSize);
+		putSetting(settings, 12, SETTINGS_MAX_HEADER_LIST_SIZE, this.server.maxHeaderSize);
+		writeFrame(SETTINGS, 0, 0, settings, 0, settings.length, false);
+		writeWindowUpdate(0, CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+	}
+	
+	protected static void putSetting(byte[] buffer, int offset, int setting, int value) {
+		buffer[offset] = (byte) (setting >>> 8);
+		buffer[offset + 1] = (byte) setting;
+		putInt(buffer, offset + 2, value);
+	}
+	
+	protected static void putInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+	
+	protected static int getInt(byte[] buffer, int offset) {
+		return ((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16) | ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+	}
+	
+	/**
+	 * Reads the header of the next frame, waiting while the connection is idle.
+	 * @return false if the connection was closed by the client or stayed idle without open streams for the keep alive timeout
+	 */
+	protected boolean readFrameHeader() throws IOException {
+		int read = 0;
+		while (read < FRAME_HEADER_SIZE) {
+			int length;
+			try {
+				length = this.input.read(this.frameHeader, read, FRAME_HEADER_SIZE - read);
+			} catch (SocketTimeoutException e) {
+				// Connections with open streams stay open until the responses are sent
+				if (read == 0 && this.streams.isEmpty()) return false;
+				if (read == 0) continue;
+				throw e;
+			}
+			if (length < 0) {
+				if (read == 0) return false;
+				throw new EOFException("Connection closed while reading frame!");
+			}
+			read += length;
+		}
+		return true;
+	}
+	
+	/**
+	 * Reads and handles the next frame.
+	 * @return false if the connection should be closed
+	 */
+	protected boolean readFrame() throws IOException {
+		if (!readFrameHeader()) return false;
+		int length = ((this.frameHeader[0] & 0xFF) << 16) | ((this.frameHeader[1] & 0xFF) << 8) | (this.frameHeader[2] & 0xFF);
+		int type = this.frameHeader[3] & 0xFF;
+		int flags = this.frameHeader[4] & 0xFF;
+		int streamId = getInt(this.frameHeader, 5) & 0x7FFFFFFF;
+		if (length > DEFAULT_FRAME_SIZE) throw new ConnectionError(FRAME_SIZE_ERROR, "Frame exceeds the maximum frame size!");
+		if (this.input.readNBytes(this.payload, 0, length) < length) throw new EOFException("Connection closed while reading frame!");
+		if (this.continuationStream != 0 && type != CONTINUATION) throw new ConnectionError(PROTOCOL_ERROR, "Header block not continued!");
+		switch (type) {
+		case DATA:
+			onData(streamId, flags, length);
+			break;
+		case HEADERS:
+			onHeaders(streamId, flags, length);
+			break;
+		case CONTINUATION:
+			onContinuation(streamId, flags, length);
+			break;
+		case RST_STREAM:
+			onReset(streamId, length);
+			break;
+		case SETTINGS:
+			onSettings(streamId, flags, length);
+			break;
+		case PING:
+			if (streamId != 0) throw new ConnectionError(PROTOCOL_ERROR, "PING frame on stream!");
+			if (length != 8) throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid PING frame!");
+			if ((flags & FLAG_ACK) == 0) writeFrame(PING, FLAG_ACK, 0, this.payload, 0, 8, true);
+			break;
+		case GOAWAY:
+			if (streamId != 0) throw new ConnectionError(PROTOCOL_ERROR, "GOAWAY frame on stream!");
+			// The client does not open further streams, the open ones are completed
+			this.goingAway = true;
+			break;
+		case WINDOW_UPDATE:
+			onWindowUpdate(streamId, length);
+			break;
+		case PUSH_PROMISE:
+			throw new ConnectionError(PROTOCOL_ERROR, "PUSH_PROMISE sent by client!");
+		default:
+			// Priorities are ignored, unknown frame types have to be ignored
+			break;
+		}
+		return !this.goingAway || !this.streams.isEmpty();
+	}
+	
+	/**
+	 * @return The length of the padding of an padded frame, the padding length field is skipped by the offset
+	 */
+	protected int readPadding(int flags, int length) throws IOException {
+		if ((flags & FLAG_PADDED) == 0) return 0;
+		if (length < 1) throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid padded frame!");
+		int padding = this.payload[0] & 0xFF;
+		if (padding >= length) throw new ConnectionError(PROTOCOL_ERROR, "Padding exceeds frame!");
+		return padding;
+	}
+	
+	protected void onData(int streamId, int flags, int length) throws IOException {
+		if (streamId == 0) throw new ConnectionError(PROTOCOL_ERROR, "DATA frame on stream 0!");
+		int padding = readPadding(flags, length);
+		int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+		// All bytes of the frame count against the windows, including the padding
+		if (length > this.receiveWindow) throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window exceeded!");
+		this.receiveWindow -= length;
+		this.receivedBytes += length;
+		if (this.receivedBytes >= CONNECTION_WINDOW_SIZE / 2) {
+			writeWindowUpdate(0, this.receivedBytes);
+			this.receiveWindow += this.receivedBytes;
+			this.receivedBytes = 0;
+		}
+		Stream stream = this.streams.get(streamId);
+		if (stream == null) {
+			if (streamId > this.lastStreamId) throw new ConnectionError(PROTOCOL_ERROR, "DATA frame on idle stream!");
+			// Frames sent before the client received the reset of the stream
+			return;
+		}
+		if (stream.input == null || stream.input.isEnded()) {
+			resetStream(stream, STREAM_CLOSED);
+			return;
+		}
+		if (!stream.input.receive(this.payload, offset, length - offset - padding, length)) {
+			resetStream(stream, FLOW_CONTROL_ERROR);
+			return;
+		}
+		if ((flags & FLAG_END_STREAM) != 0) stream.input.end();
+	}
+	
+	protected void onHeaders(int streamId, int flags, int length) throws IOException {
+		if (streamId == 0) throw new ConnectionError(PROTOCOL_ERROR, "HEADERS frame on stream 0!");
+		int padding = readPadding(flags, length);
+		int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+		if ((flags & FLAG_PRIORITY) != 0) offset += 5;
+		if (offset + padding > length) throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid HEADERS frame!");
+		this.headerBlock.clear();
+		appendHeaderBlock(offset, length - offset - padding);
+		this.blockEndStream = (flags & FLAG_END_STREAM) != 0;
+		if ((flags & FLAG_END_HEADERS) != 0) {
+			onHeaderBlock(streamId);
+		} else {
+			this.continuationStream = streamId;
+		}
+	}
+	
+	protected void onContinuation(int streamId, int flags, int length) throws IOException {
+		if (this.continuationStream == 0 || streamId != this.continuationStream) throw new ConnectionError(PROTOCOL_ERROR, "Unexpected CONTINUATION frame!");
+		appendHeaderBlock(0, length);
+		if ((flags & FLAG_END_HEADERS) != 0) {
+			this.continuationStream = 0;
+			onHeaderBlock(streamId);
+		}
+	}
+	
+	protected void appendHeaderBlock(int offset, int length) throws IOException {
+		if (this.headerBlock.position() + length > this.maxHeaderBlock) throw new ConnectionError(ENHANCE_YOUR_CALM, "Header block too large!");
+		this.headerBlock = HttpHeaders.ensureRemaining(this.headerBlock, length).put(this.payload, offset, length);
+	}
+	
+	/**
+	 * Decodes an complete header block and opens the stream of the request.<br>
+	 * Every block has to be decoded, even if the stream is refused, to keep the dynamic table in sync with the client.
+	 */
+	protected void onHeaderBlock(int streamId) throws IOException {
+		this.headerBlock.flip();
+		RequestFields fields = new RequestFields();
+		this.decoder.decode(this.headerBlock, fields);
+		Stream open = this.streams.get(streamId);
+		if (open != null) {
+			// Trailing fields, which are not passed to the handler
+			if (!this.blockEndStream || open.input == null) {
+				resetStream(open, PROTOCOL_ERROR);
+			} else {
+				open.input.end();
+			}
+			return;
+		}
+		if ((streamId & 1) == 0) throw new ConnectionError(PROTOCOL_ERROR, "Stream opened with even identifier!");
+		// Streams which where already closed
+		if (streamId <= this.lastStreamId) return;
+		this.lastStreamId = streamId;
+		synchronized (this) {
+			// Streams opened after an GOAWAY are not processed, the client can repeat them on an other connection
+			if (this.goingAway) return;
+			this.acceptedStreamId = streamId;
+		}
+		if (this.streams.size() >= this.maxStreams) {
+			writeReset(streamId, REFUSED_STREAM);
+			return;
+		}
+		Stream stream = new Stream(streamId, !this.blockEndStream);
+		this.streams.put(streamId, stream);
+		if (fields.malformed || fields.method == null || fields.path == null || fields.scheme == null) {
+			this.server.metrics.recordParseError();
+			resetStream(stream, PROTOCOL_ERROR);
+			return;
+		}
+		try {
+			if (fields.size > this.server.maxHeaderSize) throw new HttpParseException(HttpCode.REQUEST_HEADER_FIELDS_TOO_LARGE, "Header Too Large");
+			if (fields.path.length() > this.server.maxUriLength) throw new HttpParseException(HttpCode.URI_TOO_LONG, "URI Too Long");
+			PathInfo path;
+			try {
+				path = new PathInfo(fields.path);
+			} catch (IllegalArgumentException e) {
+				throw new HttpParseException(HttpCode.BAD_REQUEST, "Invalid Request Target");
+			}
+			if (fields.authority != null && !fields.attributes.containsKey(HttpHeaders.HOST)) fields.attributes.add(HttpHeaders.HOST, fields.authority);
+			long payloadLength = fields.attributes.containsKey(HttpHeaders.CONTENT_LENGTH) ? this.server.getPayloadLength(fields.attributes) : this.blockEndStream ? 0 : -1;
+			stream.request = new RequestInfo(HttpRequest.fromName(fields.method), path, PROTOCOL, fields.attributes, payloadLength, this.remoteAddress);
+		} catch (HttpParseException e) {
+			this.server.metrics.recordParseError();
+			dispatchResponse(stream, new ResponseInfo(e.getCode(), e.getMessage(), null));
+			return;
+		}
+		ResponseInfo limited = this.server.checkRateLimit(stream.request);
+		if (limited != null) {
+			dispatchResponse(stream, limited);
+			return;
+		}
+		AdmissionControl admission = this.server.admission;
+		admission.submit(() -> {
+			try {
+				this.server.getExecutor().execute(() -> {
+					try {
+						stream.handle();
+					} finally {
+						admission.release();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				admission.release();
+				dispatchResponse(stream, this.server.createUnavailableResponse());
+			}
+		}, () -> dispatchResponse(stream, this.server.createUnavailableResponse()));
+	}
+	
+	/**
+	 * Sends an response which was not created by an handler, on the calling thread if it has no payload.
+	 */
+	protected void dispatchResponse(Stream stream, ResponseInfo response) {
+		try {
+			stream.respond(response);
+		} catch (IOException e) {
+			stream.fail(e);
+		}
+	}
+	
+	/**
+	 * Collects the fields of an request header block, the pseudo fields of the request line are kept separately.
+	 */
+	protected class RequestFields implements BiConsumer<String, String> {
+		
+		protected final HttpHeaders attributes = new HttpHeaders();
+		protected String method;
+		protected String path;
+		protected String scheme;
+		protected String authority;
+		protected String cookie;
+		protected int size = 0;
+		protected boolean regular = false;
+		protected boolean malformed = false;
+		
+		@Override
+		public void accept(String name, String value) {
+			this.size += Hpack.entrySize(name.length(), value.length());
+			if (name.startsWith(":")) {
+				// Pseudo fields have to precede the regular fields and must not be repeated
+				if (this.regular) this.malformed = true;
+				switch (name) {
+				case ":method":
+					if (this.method != null) this.malformed = true;
+					this.method = value;
+					break;
+				case ":path":
+					if (this.path != null || value.isEmpty()) this.malformed = true;
+					this.path = value;
+					break;
+				case ":scheme":
+					if (this.scheme != null) this.malformed = true;
+					this.scheme = value;
+					break;
+				case ":authority":
+					if (this.authority != null) this.malformed = true;
+					this.authority = value;
+					break;
+				default:
+					this.malformed = true;
+				}
+				return;
+			}
+			this.regular = true;
+			if (!isValidName(name)) {
+				this.malformed = true;
+				return;
+			}
+			if (name.equals("cookie")) {
+				// Cookies can be split into multiple fields, which are joined for the handler
+				String cookie = this.attributes.getFirst(HttpHeaders.COOKIE);
+				this.attributes.put(HttpHeaders.COOKIE, cookie == null ? value : cookie + "; " + value);
+				return;
+			}
+			this.attributes.add(name, value);
+		}
+		
+		/**
+		 * Field names have to be lower case, the fields of the HTTP/1.1 connection management are not allowed.
+		 */
+		protected boolean isValidName(String name) {
+			for (int i = 0; i < name.length(); i++) {
+				char c = name.charAt(i);
+				if (c >= 'A' && c <= 'Z') return false;
+			}
+			switch (name) {
+			case "connection":
+			case "keep-alive":
+			case "proxy-connection":
+			case "transfer-encoding":
+			case "upgrade":
+				return false;
+			default:
+				return true;
+			}
+		}
+		
+	}
+	
+	protected void onReset(int streamId, int length) throws IOException {
+		if (streamId == 0) throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM frame on stream 0!");
+		if (length != 4) throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid RST_STREAM frame!");
+		if (streamId > this.lastStreamId) throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM frame on idle stream!");
+		Stream stream = this.streams.remove(streamId);
+		if (stream != null) stream.abort();
+	}
+	
+	protected void onSettings(int streamId, int flags, int length) throws IOException {
+		if (streamId != 0) throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS frame on stream!");
+		if ((flags & FLAG_ACK) != 0) {
+			if (length != 0) throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid SETTINGS acknowledgment!");
+			return;
+		}
+		if (length % 6 != 0) throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid SETTINGS frame!");
+		for (int offset = 0; offset < length; offset += 6) {
+			int setting = ((this.payload[offset] & 0xFF) << 8) | (this.payload[offset + 1] & 0xFF);
+			int value = getInt(this.payload, offset + 2);
+			switch (setting) {
+			case SETTINGS_HEADER_TABLE_SIZE:
+				synchronized (this.writeLock) {
+					this.encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+				}
+				break;
+			case SETTINGS_ENABLE_PUSH:
+				if (value != 0 && value != 1) throw new ConnectionError(PROTOCOL_ERROR, "Invalid ENABLE_PUSH setting!");
+				break;
+			case SETTINGS_INITIAL_WINDOW_SIZE:
+				if (value < 0) throw new ConnectionError(FLOW_CONTROL_ERROR, "Invalid INITIAL_WINDOW_SIZE setting!");
+				setInitialSendWindow(value);
+				break;
+			case SETTINGS_MAX_FRAME_SIZE:
+				// Frames are never sent larger than the default size
+				if (value < DEFAULT_FRAME_SIZE || value > MAX_FRAME_SIZE) throw new ConnectionError(PROTOCOL_ERROR, "Invalid MAX_FRAME_SIZE setting!");
+				break;
+			default:
+				break;
+			}
+		}
+		writeFrame(SETTINGS, FLAG_ACK, 0, this.payload, 0, 0, true);
+	}
+	
+	/**
+	 * Changes the send windows of all streams by the difference of the new initial window size.
+	 */
+	protected synchronized void setInitialSendWindow(int size) throws IOException {
+		int delta = size - this.initialSendWindow;
+		this.initialSendWindow = size;
+		for (Stream stream : this.streams.values()) {
+			if ((long) stream.sendWindow + delta > Integer.MAX_VALUE) throw new ConnectionError(FLOW_CONTROL_ERROR, "Stream window overflow!");
+			stream.sendWindow += delta;
+		}
+		notifyAll();
+	}
+	
+	protected void onWindowUpdate(int streamId, int length) throws IOException {
+		if (length != 4) throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE frame!");
+		int increment = getInt(this.payload, 0) & 0x7FFFFFFF;
+		if (streamId == 0) {
+			if (increment == 0) throw new ConnectionError(PROTOCOL_ERROR, "Invalid window increment!");
+			synchronized (this) {
+				if ((long) this.sendWindow + increment > Integer.MAX_VALUE) throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window overflow!");
+				this.sendWindow += increment;
+				notifyAll();
+			}
+			return;
+		}
+		Stream stream = this.streams.get(streamId);
+		if (stream == null) {
+			if (streamId > this.lastStreamId) throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE frame on idle stream!");
+			return;
+		}
+		int error = NO_ERROR;
+		synchronized (this) {
+			if (increment == 0) {
+				error = PROTOCOL_ERROR;
+			} else if ((long) stream.sendWindow + increment > Integer.MAX_VALUE) {
+				error = FLOW_CONTROL_ERROR;
+			} else {
+				stream.sendWindow += increment;
+				notifyAll();
+			}
+		}
+		if (error != NO_ERROR) resetStream(stream, error);
+	}
+	
+	/**
+	 * Closes the stream with an RST_STREAM frame, the handler of the stream fails on its next read or write.
+	 */
+	protected void resetStream(Stream stream, int error) throws IOException {
+		if (!this.streams.remove(stream.id, stream)) return;
+		stream.abort();
+		writeReset(stream.id, error);
+	}
+	
+	protected void writeReset(int streamId, int error) throws IOException {
+		byte[] frame = new byte[4];
+		putInt(frame, 0, error);
+		writeFrame(RST_STREAM, 0, streamId, frame, 0, frame.length, true);
+	}
+	
+	protected void writeWindowUpdate(int streamId, int increment) throws IOException {
+		byte[] frame = new byte[4];
+		putInt(frame, 0, increment);
+		writeFrame(WINDOW_UPDATE, 0, streamId, frame, 0, frame.length, true);
+	}
+	
+	protected void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length, boolean flush) throws IOException {
+		synchronized (this.writeLock) {
+			this.outputHeader[0] = (byte) (length >>> 16);
+			this.outputHeader[1] = (byte) (length >>> 8);
+			this.outputHeader[2] = (byte) length;
+			this.outputHeader[3] = (byte) type;
+			this.outputHeader[4] = (byte) flags;
+			putInt(this.outputHeader, 5, streamId);
+			this.output.write(this.outputHeader);
+			this.output.write(payload, offset, length);
+			if (flush) this.output.flush();
+		}
+	}
+	
+	/**
+	 * Encodes and sends the response header of an stream, split into an HEADERS frame and CONTINUATION frames if it does not fit into one frame.<br>
+	 * The frames are sent without interruption, since the client has to decode the header blocks in the order they where encoded.
+	 */
+	protected void writeHeaders(Stream stream, HttpCode code, HttpHeaders attributes, boolean endStream) throws IOException {
+		synchronized (this.writeLock) {
+			this.encodeBuffer = this.encoder.startBlock(this.encodeBuffer.clear());
+			this.encodeBuffer = this.encoder.encode(this.encodeBuffer, ":status", Integer.toString(code.code()));
+			attributes.forEachValue(this::encodeField);
+			this.encodeBuffer.flip();
+			int type = HEADERS;
+			int flags = endStream ? FLAG_END_STREAM : 0;
+			do {
+				int length = Math.min(this.encodeBuffer.remaining(), DEFAULT_FRAME_SIZE);
+				boolean last = length == this.encodeBuffer.remaining();
+				writeFrame(type, flags | (last ? FLAG_END_HEADERS : 0), stream.id, this.encodeBuffer.array(), this.encodeBuffer.position(), length, last && endStream);
+				this.encodeBuffer.position(this.encodeBuffer.position() + length);
+				type = CONTINUATION;
+				flags = 0;
+			} while (this.encodeBuffer.hasRemaining());
+		}
+	}
+	
+	protected void encodeField(String name, String value) {
+		switch (name) {
+		case HttpHeaders.CONNECTION:
+		case HttpHeaders.TRANSFER_ENCODING:
+		case HttpHeaders.UPGRADE:
+			// Connection specific fields are not allowed
+			return;
+		default:
+			if (name.equalsIgnoreCase("Keep-Alive")) return;
+			this.encodeBuffer = this.encoder.encode(this.encodeBuffer, name.toLowerCase(Locale.ROOT), value);
+		}
+	}
+	
+	/**
+	 * Sends payload bytes of an stream, waiting while the flow control windows of the stream or the connection are exhausted.
+	 * @param endStream If the last frame ends the stream, an empty frame is sent if the length is zero
+	 */
+	protected void writeData(Stream stream, byte[] data, int offset, int length, boolean endStream) throws IOException {
+		if (length == 0) {
+			// An empty frame does not take any window, which might even be negative after the client decreased SETTINGS_INITIAL_WINDOW_SIZE
+			synchronized (this) {
+				if (this.closed || stream.aborted) throw new IOException("Stream was reset!");
+			}
+			writeFrame(DATA, endStream ? FLAG_END_STREAM : 0, stream.id, data, offset, 0, true);
+			return;
+		}
+		while (length > 0) {
+			int frameLength;
+			synchronized (this) {
+				while ((stream.sendWindow <= 0 || this.sendWindow <= 0) && !this.closed && !stream.aborted) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException("Interrupted while waiting for flow control window!");
+					}
+				}
+				if (this.closed || stream.aborted) throw new IOException("Stream was reset!");
+				frameLength = Math.min(length, Math.min(DEFAULT_FRAME_SIZE, Math.max(0, Math.min(stream.sendWindow, this.sendWindow))));
+				stream.sendWindow -= frameLength;
+				this.sendWindow -= frameLength;
+			}
+			boolean last = endStream && frameLength == length;
+			writeFrame(DATA, last ? FLAG_END_STREAM : 0, stream.id, data, offset, frameLength, true);
+			offset += frameLength;
+			length -= frameLength;
+		}
+	}
+	
+	/**
+	 * Closes the connection with an GOAWAY frame, the handlers of the open streams fail on their next read or write.
+	 */
+	protected void close(int error) {
+		int acceptedStreamId;
+		synchronized (this) {
+			if (this.closed) return;
+			this.closed = true;
+			acceptedStreamId = this.acceptedStreamId;
+			notifyAll();
+		}
+		this.server.http2Connections.remove(this);
+		for (Stream stream : this.streams.values()) stream.abort();
+		try {
+			writeGoAway(acceptedStreamId, error);
+		} catch (IOException e) {
+			// The client already closed the connection
+		}
+		try {
+			this.socket.close();
+		} catch (IOException e) {
+			Log.defaultLogger().error("Could not close socket!", e);
+		}
+	}
+	
+	/**
+	 * Stops accepting new streams with an GOAWAY frame, the open streams are completed.<br>
+	 * The connection is closed by the client or after it stayed idle for the keep alive timeout.
+	 */
+	public void goAway() {
+		int acceptedStreamId;
+		synchronized (this) {
+			this.goingAway = true;
+			// The frame is sent after the settings of the connection preface
+			if (this.closed || !this.started) return;
+			acceptedStreamId = this.acceptedStreamId;
+		}
+		try {
+			writeGoAway(acceptedStreamId, NO_ERROR);
+		} catch (IOException e) {
+			// The client already closed the connection
+		}
+	}
+	
+	/**
+	 * Closes the connection after an GOAWAY, once all of its open streams are completed.
+	 */
+	public void closeIfDrained() {
+		if (this.goingAway && this.streams.isEmpty()) close(NO_ERROR);
+	}
+	
+	protected void writeGoAway(int lastStreamId, int error) throws IOException {
+		byte[] frame = new byte[8];
+		putInt(frame, 0, lastStreamId);
+		putInt(frame, 4, error);
+		writeFrame(GOAWAY, 0, 0, frame, 0, frame.length, true);
+	}
+	
+	public boolean isClosed() {
+		synchronized (this) {
+			return this.closed;
+		}
+	}
+	
+	/**
+	 * An request and its response, handled on the executor of the server.
+	 */
+	protected class Stream {
+		
+		protected final int id;
+		protected final BodyInput input;
+		protected final long start = System.nanoTime();
+		protected RequestInfo request;
+		// Guarded by the connection
+		protected int sendWindow;
+		protected volatile boolean aborted = false;
+		
+		public Stream(int id, boolean hasPayload) {
+			this.id = id;
+			this.input = hasPayload ? new BodyInput(this) : null;
+			synchronized (Http2Connection.this) {
+				this.sendWindow = Http2Connection.this.initialSendWindow;
+			}
+		}
+		
+		protected void handle() {
+			try {
+				RequestBody body = Http2Connection.this.server.createRequestBody(this.request, this.input != null ? this.input : InputStream.nullInputStream(), null);
+				ResponseInfo response = Http2Connection.this.server.handleMessage(this.request, body);
+				if (response == null) {
+					resetStream(this, CANCEL);
+					return;
+				}
+				if (response.isSocketKept()) {
+					// The connection is shared by all streams, the client has to repeat the request over HTTP/1.1
+					response.refuseSocket(new IOException("HTTP/2 connections can not be taken over!"));
+					resetStream(this, HTTP_1_1_REQUIRED);
+					return;
+				}
+				respond(response);
+			} catch (IOException e) {
+				fail(e);
+			} finally {
+				if (Http2Connection.this.streams.remove(this.id, this)) {
+					// The handler failed without response
+					abort();
+					try {
+						writeReset(this.id, INTERNAL_ERROR);
+					} catch (IOException e) {
+						// The connection is already closed
+					}
+				}
+			}
+		}
+		
+		protected void fail(IOException e) {
+			if (this.aborted || isClosed()) return;
+			Log.defaultLogger().error("IOException while handling HTTP/2 stream!", e);
+			try {
+				resetStream(this, INTERNAL_ERROR);
+			} catch (IOException e1) {
+				// The connection is already closed
+			}
+		}
+		
+		protected void respond(ResponseInfo response) throws IOException {
+			try {
+				HttpCode code = response.getResponseCode();
+				boolean payload = HttpServer.hasPayload(code) && response.hasContent();
+				HttpHeaders attributes = response.getAttributes();
+				if (payload && !attributes.containsKey(HttpHeaders.CONTENT_LENGTH)) {
+					if (response.getBufferSource().isPresent()) {
+						attributes.put(HttpHeaders.CONTENT_LENGTH, Integer.toString(response.getBufferSource().get().remaining()));
+					} else if (response.getFileSource().isPresent()) {
+						attributes.put(HttpHeaders.CONTENT_LENGTH, Long.toString(response.getFileLength()));
+					}
+				}
+				writeHeaders(this, code, attributes, !payload);
+				if (payload) writeContent(response);
+				Http2Connection.this.server.metrics.recordRequest(code, System.nanoTime() - this.start);
+			} finally {
+				response.closeContent();
+			}
+			if (!Http2Connection.this.streams.remove(this.id, this)) return;
+			if (this.input != null && !this.input.isEnded()) {
+				// The rest of the payload is not needed anymore
+				this.input.abort();
+				writeReset(this.id, NO_ERROR);
+			}
+		}
+		
+		protected void writeContent(ResponseInfo response) throws IOException {
+			DataOutput output = new DataOutput(this);
+			if (response.getFileSource().isPresent()) {
+				HttpServer.copyFile(response.getFileSource().get(), response.getFilePosition(), response.getFileLength(), output);
+			} else if (response.getBufferSource().isPresent()) {
+				ByteBuffer buffer = response.getBufferSource().get().duplicate();
+				if (buffer.hasArray()) {
+					output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				} else {
+					byte[] chunk = HttpServer.TRANSFER_BUFFER.get().array();
+					while (buffer.hasRemaining()) {
+						int length = Math.min(chunk.length, buffer.remaining());
+						buffer.get(chunk, 0, length);
+						output.write(chunk, 0, length);
+					}
+				}
+			} else if (response.getWriterSource().isPresent()) {
+				response.getWriterSource().get().writeBody(output);
+			} else {
+				response.getContentSource().get().transferTo(output);
+			}
+			// Not closed on failure, so that an incomplete payload is not terminated like a complete one
+			output.close();
+		}
+		
+		protected void abort() {
+			this.aborted = true;
+			if (this.input != null) this.input.abort();
+			synchronized (Http2Connection.this) {
+				Http2Connection.this.notifyAll();
+			}
+		}
+		
+	}
+	
+	/**
+	 * The payload of an stream, received by the connection and read by the handler.<br>
+	 * The window of the stream is opened again after the handler read half of it.
+	 */
+	protected class BodyInput extends InputStream {
+		
+		protected final Stream stream;
+		protected final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+		protected int chunkOffset = 0;
+		protected int buffered = 0;
+		protected int window = Http2Connection.this.windowSize;
+		protected int consumed = 0;
+		protected boolean ended = false;
+		protected boolean aborted = false;
+		
+		public BodyInput(Stream stream) {
+			this.stream = stream;
+		}
+		
+		/**
+		 * Adds received payload, called by the connection.
+		 * @param frameLength The length of the frame including the padding, which is counted against the window
+		 * @return false if the frame exceeds the window of the stream
+		 */
+		public synchronized boolean receive(byte[] data, int offset, int length, int frameLength) {
+			if (frameLength > this.window) return false;
+			this.window -= frameLength;
+			// The padding is consumed right away
+			this.consumed += frameLength - length;
+			if (length > 0) {
+				byte[] chunk = new byte[length];
+				System.arraycopy(data, offset, chunk, 0, length);
+				this.chunks.add(chunk);
+				this.buffered += length;
+				notifyAll();
+			}
+			return true;
+		}
+		
+		public synchronized void end() {
+			this.ended = true;
+			notifyAll();
+		}
+		
+		public synchronized boolean isEnded() {
+			return this.ended;
+		}
+		
+		public synchronized void abort() {
+			this.aborted = true;
+			this.chunks.clear();
+			this.buffered = 0;
+			notifyAll();
+		}
+		
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			int read = 0;
+			int update = 0;
+			synchronized (this) {
+				long deadline = System.currentTimeMillis() + Http2Connection.this.server.receptionTimeout;
+				while (this.chunks.isEmpty()) {
+					if (this.aborted) throw new IOException("Stream was reset!");
+					if (this.ended) return -1;
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0) throw new SocketTimeoutException("Timeout while receiving payload!");
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException("Interrupted while receiving payload!");
+					}
+				}
+				while (read < len && !this.chunks.isEmpty()) {
+					byte[] chunk = this.chunks.peek();
+					int length = Math.min(len - read, chunk.length - this.chunkOffset);
+					System.arraycopy(chunk, this.chunkOffset, b, off + read, length);
+					read += length;
+					this.chunkOffset += length;
+					if (this.chunkOffset == chunk.length) {
+						this.chunks.poll();
+						this.chunkOffset = 0;
+					}
+				}
+				this.buffered -= read;
+				this.consumed += read;
+				if (!this.ended && this.consumed >= Http2Connection.this.windowSize / 2) {
+					update = this.consumed;
+					this.window += update;
+					this.consumed = 0;
+				}
+			}
+			if (update > 0) writeWindowUpdate(this.stream.id, update);
+			return read;
+		}
+		
+		@Override
+		public synchronized int available() {
+			return this.buffered;
+		}
+		
+	}
+	
+	/**
+	 * Writes the payload of an response as DATA frames, the bytes are collected until an frame is full or the stream is flushed.
+	 */
+	protected class DataOutput extends OutputStream {
+		
+		protected final Stream stream;
+		protected final byte[] buffer = new byte[DEFAULT_FRAME_SIZE];
+		protected int count = 0;
+		protected boolean closed = false;
+		
+		public DataOutput(Stream stream) {
+			this.stream = stream;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			if (this.count == this.buffer.length) flush();
+			this.buffer[this.count++] = (byte) b;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (this.closed) throw new IOException("Stream already closed!");
+			if (len >= this.buffer.length) {
+				flush();
+				writeData(this.stream, b, off, len, false);
+				return;
+			}
+			if (len > this.buffer.length - this.count) flush();
+			System.arraycopy(b, off, this.buffer, this.count, len);
+			this.count += len;
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			if (this.count == 0 || this.closed) return;
+			writeData(this.stream, this.buffer, 0, this.count, false);
+			this.count = 0;
+		}
+		
+		/**
+		 * Sends the remaining bytes and ends the stream.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (this.closed) return;
+			this.closed = true;
+			writeData(this.stream, this.buffer, 0, this.count, true);
+			this.count = 0;
+		}
+		
+	}
+	
+}
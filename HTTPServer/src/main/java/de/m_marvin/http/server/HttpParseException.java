@@ -0,0 +1,27 @@
+package de.m_marvin.http.server;
+
+import java.io.IOException;
+
+import de.m_marvin.http.HttpCode;
+
+/**
+ * Thrown if an received request can not be parsed, contains the status code which should be send back to the client.
+ * @author Marvin Koehler
+ *
+ */
+public class HttpParseException extends IOException {
+	
+	private static final long serialVersionUID = 4619872237491502373L;
+	
+	private final HttpCode code;
+	
+	public HttpParseException(HttpCode code, String message) {
+		super(message);
+		this.code = code;
+	}
+	
+	public HttpCode getCode() {
+		return code;
+	}
+	
+}
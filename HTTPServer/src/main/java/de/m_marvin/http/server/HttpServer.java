@@ -1,32 +1,115 @@
 package de.m_marvin.http.server;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ForkJoinPool;
-import java.util.regex.Pattern;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
+
+import de.m_marvin.http.BufferPool;
+import de.m_marvin.http.BufferPool.PooledBuffer;
 import de.m_marvin.http.HttpCode;
+import de.m_marvin.http.HttpHeaders;
 import de.m_marvin.http.HttpRequest;
 import de.m_marvin.http.PathInfo;
+import de.m_marvin.http.RequestInfo;
 import de.m_marvin.http.ResponseInfo;
+import de.m_marvin.http.Validators;
+import de.m_marvin.http.metrics.ServerMetrics;
 import de.m_marvin.simplelogging.Log;
+import de.m_marvin.websocket.WebSocket;
+import de.m_marvin.websocket.WebSocketCode;
 
 public class HttpServer {
 	
 	public static final int DEFAULT_RECEPTION_TIMEOUT = 1500;
+	public static final int DEFAULT_KEEP_ALIVE_TIMEOUT = 5000;
+	public static final int DEFAULT_MAX_KEEP_ALIVE_REQUESTS = 100;
+	public static final int DEFAULT_MAX_HEADER_SIZE = 0x4000;
+	public static final int DEFAULT_MAX_URI_LENGTH = 0x2000;
+	public static final int INPUT_BUFFER_SIZE = 0x2000;
+	public static final int TRANSFER_BUFFER_SIZE = 0x4000;
+	public static final int HEADER_BUFFER_SIZE = 0x400;
+	public static final long DEFAULT_MAX_BODY_SIZE = Long.MAX_VALUE;
+	public static final int DEFAULT_RETRY_AFTER = 1;
+	public static final int SHUTDOWN_CHECK_INTERVAL = 50;
+	protected static final int PRUNE_THRESHOLD = 64;
+	
+	protected static final byte[] CONTINUE_RESPONSE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	protected static final ThreadLocal<ByteBuffer> TRANSFER_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(TRANSFER_BUFFER_SIZE));
 	
 	protected final int port;
 	protected final int receptionTimeout;
-	protected ServerSocket serverSocket;
-	protected Thread handleThread;
+	protected ServerSocket[] serverSockets;
+	protected int acceptors = 1;
+	protected boolean shardAffinity = false;
+	protected int eventLoops = 0;
+	protected SelectorEngine selectorEngine;
+	protected Supplier<ExecutorService> executorFactory = null;
+	protected ExecutorService executor = null;
+	protected ExecutorService ownedExecutor = null;
+	protected int keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+	protected int maxKeepAliveRequests = DEFAULT_MAX_KEEP_ALIVE_REQUESTS;
+	protected int maxHeaderSize = DEFAULT_MAX_HEADER_SIZE;
+	protected int maxUriLength = DEFAULT_MAX_URI_LENGTH;
+	protected long maxBodySize = DEFAULT_MAX_BODY_SIZE;
+	protected int maxConnections = 0;
+	protected int backlog = 0;
+	protected int maxInFlight = 0;
+	protected int maxPending = 0;
+	protected int sheddingTarget = 0;
+	protected int sheddingInterval = 0;
+	protected int retryAfter = DEFAULT_RETRY_AFTER;
+	protected AdmissionControl admission;
+	protected boolean http2 = false;
+	protected int http2MaxStreams = Http2Connection.DEFAULT_MAX_STREAMS;
+	protected int http2WindowSize = Http2Connection.DEFAULT_WINDOW_SIZE;
+	protected final ThreadFactory http2Threads = ServerExecutors.daemonThreads("HTTP/2 Connection");
+	protected volatile boolean shuttingDown = false;
+	protected final Set<Socket> openSockets = ConcurrentHashMap.newKeySet();
+	protected final Set<Socket> idleSockets = ConcurrentHashMap.newKeySet();
+	protected final Set<Socket> handedOver = ConcurrentHashMap.newKeySet();
+	protected final Set<Http2Connection> http2Connections = ConcurrentHashMap.newKeySet();
+	protected final Set<WebSocket> webSockets = ConcurrentHashMap.newKeySet();
+	protected int pruneThreshold = PRUNE_THRESHOLD;
+	protected volatile RateLimiter rateLimiter = null;
+	protected final ServerMetrics metrics = new ServerMetrics();
+	protected volatile List<CacheControlPolicy> cacheControlPolicies = List.of();
+	protected volatile ResponseCompression compression = null;
+	
+	protected static record CacheControlPolicy(String pathPrefix, String policy) {}
 	
 	public HttpServer(int port) {
 		this(port, DEFAULT_RECEPTION_TIMEOUT);
@@ -37,159 +120,1009 @@ public class HttpServer {
 		this.receptionTimeout = receptionTimeout;
 	}
 	
+	/**
+	 * Configures the reuse of connections for multiple requests (HTTP/1.1 persistent connections).
+	 * @param idleTimeout The time in milliseconds an idle connection is kept open while waiting for the next request
+	 * @param maxRequests The maximum number of requests handled on one connection, a value of one disables persistent connections
+	 */
+	public void setKeepAlive(int idleTimeout, int maxRequests) {
+		this.keepAliveTimeout = idleTimeout;
+		this.maxKeepAliveRequests = maxRequests;
+	}
+	
+	/**
+	 * Configures the size limits for received request headers.<br>
+	 * Requests exceeding these limits are answered with 431 (Request Header Fields Too Large) or 414 (URI Too Long).
+	 * @param maxHeaderSize The maximum number of bytes of the request line and all header fields
+	 * @param maxUriLength The maximum length of the request target
+	 */
+	public void setHeaderLimits(int maxHeaderSize, int maxUriLength) {
+		this.maxHeaderSize = maxHeaderSize;
+		this.maxUriLength = maxUriLength;
+	}
+	
+	/**
+	 * Configures the maximum size of request payloads, larger payloads are answered with 413 (Payload Too Large).<br>
+	 * The size of chunked payloads is checked while the handler reads them.
+	 * @param maxBodySize The maximum number of payload bytes
+	 */
+	public void setMaxBodySize(long maxBodySize) {
+		this.maxBodySize = maxBodySize;
+	}
+	
+	/**
+	 * Limits the number of open connections, further connections are answered with 503 (Service Unavailable) and closed without reading the request.<br>
+	 * Has to be called before {@link #open()}.
+	 * @param maxConnections The maximum number of open connections, zero for no limit
+	 * @param backlog The maximum number of connections waiting to be accepted by the server, zero for the system default
+	 */
+	public void setConnectionLimit(int maxConnections, int backlog) {
+		this.maxConnections = maxConnections;
+		this.backlog = backlog;
+	}
+	
+	/**
+	 * Limits the number of requests handled at the same time, further requests wait in a bounded queue for a free slot.<br>
+	 * Requests which do not fit into the queue are answered with 503 (Service Unavailable).
+	 * Has to be called before {@link #open()}.
+	 * @param maxInFlight The maximum number of requests handled at the same time, zero for no limit
+	 * @param maxPending The maximum number of requests waiting for a free slot
+	 */
+	public void setRequestLimit(int maxInFlight, int maxPending) {
+		this.maxInFlight = maxInFlight;
+		this.maxPending = maxPending;
+	}
+	
+	/**
+	 * Enables the shedding of queued requests based on their queue delay, following the CoDel algorithm.<br>
+	 * If the time requests wait for a free slot stays above the target delay for longer than the interval, requests are answered with 503 (Service Unavailable)
+	 * in shrinking intervals until the delay drops below the target again. Only applies if the requests are limited by {@link #setRequestLimit(int, int)}.
+	 * Has to be called before {@link #open()}.
+	 * @param targetDelay The acceptable queue delay in milliseconds, zero to disable the shedding
+	 * @param interval The time in milliseconds the delay has to stay above the target, should be in the range of the usual response time
+	 */
+	public void setLoadShedding(int targetDelay, int interval) {
+		this.sheddingTarget = targetDelay;
+		this.sheddingInterval = interval;
+	}
+	
+	/**
+	 * Sets the Retry-After field of the 503 (Service Unavailable) responses sent to rejected connections and requests.
+	 * @param seconds The number of seconds after which the client should retry
+	 */
+	public void setRetryAfter(int seconds) {
+		this.retryAfter = seconds;
+	}
+	
+	/**
+	 * Enables the per client rate limiting, requests exceeding the limit of their client are answered with 429 (Too Many Requests) without calling the handler.
+	 * @param rateLimiter The rate limiter, or null to disable the rate limiting
+	 * @see RateLimiter
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+	
+	public RateLimiter getRateLimiter() {
+		return this.rateLimiter;
+	}
+	
+	/**
+	 * Returns the metrics of the server, which are always recorded.<br>
+	 * They can be exported through JMX with {@link ServerMetrics#registerMBean(String)} or served in the Prometheus format by an {@link de.m_marvin.http.metrics.MetricsEndpoint}.
+	 */
+	public ServerMetrics getMetrics() {
+		return this.metrics;
+	}
+	
+	/**
+	 * @return The admission control of the opened server, which provides the current load and the number of rejected requests
+	 */
+	public AdmissionControl getAdmissionControl() {
+		return this.admission;
+	}
+	
+	/**
+	 * Sets the Cache-Control field for successful GET responses below the path prefix, if the handler did not set one.<br>
+	 * If multiple prefixes match a path, the longest prefix is used.
+	 * @param pathPrefix The path prefix, for example "/static/"
+	 * @param policy The value of the Cache-Control field, for example "max-age=3600", or null to remove the policy
+	 */
+	public synchronized void setCacheControl(String pathPrefix, String policy) {
+		List<CacheControlPolicy> policies = new ArrayList<>(this.cacheControlPolicies);
+		policies.removeIf(p -> p.pathPrefix().equals(pathPrefix));
+		if (policy != null) policies.add(new CacheControlPolicy(pathPrefix, policy));
+		policies.sort(Comparator.comparingInt((CacheControlPolicy p) -> p.pathPrefix().length()).reversed());
+		this.cacheControlPolicies = List.copyOf(policies);
+	}
+	
+	/**
+	 * Enables the transparent compression of responses with gzip or deflate, if accepted by the client.
+	 * @param compression The compression configuration, or null to disable compression
+	 * @see ResponseCompression
+	 */
+	public void setCompression(ResponseCompression compression) {
+		this.compression = compression;
+	}
+	
+	public ResponseCompression getCompression() {
+		return this.compression;
+	}
+	
+	/**
+	 * Enables the non-blocking {@link SelectorEngine} instead of the default blocking socket per request handling.<br>
+	 * Has to be called before {@link #open()}, a value of zero falls back to the blocking implementation.
+	 * @param eventLoops The number of event-loop threads used to multiplex the connections
+	 */
+	public void setSelectorEngine(int eventLoops) {
+		this.eventLoops = eventLoops;
+	}
+	
+	public boolean usesSelectorEngine() {
+		return this.eventLoops > 0;
+	}
+	
+	/**
+	 * Sets the number of acceptor threads (shards) which accept the new connections of the server.<br>
+	 * On platforms supporting SO_REUSEPORT (Linux) every shard binds its own listening socket to the port and the kernel balances the new connections between them,
+	 * otherwise all shards accept from the same listening socket.<br>
+	 * Has to be called before {@link #open()}.
+	 * @param acceptors The number of acceptor threads, one by default
+	 * @see #setShardAffinity(boolean)
+	 */
+	public void setAcceptors(int acceptors) {
+		if (acceptors < 1) throw new IllegalArgumentException("At least one acceptor is required!");
+		this.acceptors = acceptors;
+	}
+	
+	public int getAcceptors() {
+		return this.acceptors;
+	}
+	
+	/**
+	 * Pins the connections of the selector engine to the event loops of the shard which accepted them.<br>
+	 * The event loops are split between the shards, instead of distributing the connections of every shard over all event loops.
+	 * Has no effect on the blocking engine, which runs the connections on the executor.
+	 * @param shardAffinity true to handle connections only on the event loops of their shard
+	 */
+	public void setShardAffinity(boolean shardAffinity) {
+		this.shardAffinity = shardAffinity;
+	}
+	
+	public boolean usesShardAffinity() {
+		return this.shardAffinity;
+	}
+	
+	/**
+	 * Enables HTTP/2, negotiated with ALPN on encrypted connections and by the connection preface (prior knowledge) on plain connections.<br>
+	 * The streams of an HTTP/2 connection are passed to the same handlers as HTTP/1.1 requests.
+	 * @param http2 true to accept HTTP/2 connections
+	 * @see Http2Connection
+	 */
+	public void setHttp2(boolean http2) {
+		this.http2 = http2;
+	}
+	
+	/**
+	 * Configures the limits of HTTP/2 connections.
+	 * @param maxStreams The maximum number of concurrent streams per connection, further streams are refused
+	 * @param windowSize The flow control window of each stream, the number of payload bytes the client can send before the handler reads them
+	 */
+	public void setHttp2Limits(int maxStreams, int windowSize) {
+		if (maxStreams <= 0) throw new IllegalArgumentException("The stream limit has to be positive!");
+		if (windowSize <= 0) throw new IllegalArgumentException("The window size has to be positive!");
+		this.http2MaxStreams = maxStreams;
+		this.http2WindowSize = windowSize;
+	}
+	
+	public boolean usesHttp2() {
+		return this.http2;
+	}
+	
+	/**
+	 * Runs the request handlers on an executor supplied by the application.<br>
+	 * The executor is not shut down when the server is closed.
+	 * @param executor The executor to use, or null to use the common pool
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executorFactory = null;
+		this.executor = executor;
+	}
+	
+	/**
+	 * Runs the request handlers on a dedicated pool of threads owned by this server, with the default queue size.
+	 * @param threads The maximum number of handler threads
+	 */
+	public void setDedicatedExecutor(int threads) {
+		setDedicatedExecutor(threads, ServerExecutors.DEFAULT_QUEUE_SIZE);
+	}
+	
+	/**
+	 * Runs the request handlers on a dedicated pool of threads owned by this server.<br>
+	 * The pool is created when the server is opened and shut down when it is closed.
+	 * @param threads The maximum number of handler threads
+	 * @param queueSize The maximum number of connections waiting for a free handler thread
+	 */
+	public void setDedicatedExecutor(int threads, int queueSize) {
+		this.executorFactory = () -> ServerExecutors.boundedPool("HTTP Worker", threads, queueSize);
+		this.executor = null;
+	}
+	
+	/**
+	 * Runs every connection on its own virtual thread, only available on JDK 21 or newer.<br>
+	 * The executor is created when the server is opened and shut down when it is closed.
+	 * @throws UnsupportedOperationException If the running JVM does not support virtual threads
+	 */
+	public void setVirtualThreadExecutor() {
+		if (!ServerExecutors.supportsVirtualThreads())
+			throw new UnsupportedOperationException("Virtual threads require JDK 21 or newer!");
+		this.executorFactory = ServerExecutors::virtualThreadPerTask;
+		this.executor = null;
+	}
+	
 	public void open() throws IOException {
-		this.serverSocket = new ServerSocket(this.port);
-		this.handleThread = new Thread(this::handleRequests, "HTTP Request Handler");
-		this.handleThread.setDaemon(true);
-		this.handleThread.start();
+		if (this.executorFactory != null) this.ownedExecutor = this.executorFactory.get();
+		this.admission = new AdmissionControl(this.maxConnections, this.maxInFlight, this.maxPending, this.sheddingTarget, this.sheddingInterval);
+		this.metrics.setGauges(this.admission::getConnections, this.admission::getInFlight);
+		if (usesSelectorEngine()) {
+			this.selectorEngine = new SelectorEngine(this, this.eventLoops);
+			this.selectorEngine.open(openServerChannels());
+			return;
+		}
+		// Created from channels, so that the accepted sockets can be used for zero-copy file transfers
+		ServerSocketChannel[] serverChannels = openServerChannels();
+		this.serverSockets = new ServerSocket[serverChannels.length];
+		for (int i = 0; i < serverChannels.length; i++) {
+			ServerSocket serverSocket = this.serverSockets[i] = serverChannels[i].socket();
+			Thread handleThread = new Thread(() -> handleRequests(serverSocket), acceptorName(i));
+			handleThread.setDaemon(true);
+			handleThread.start();
+		}
+	}
+	
+	/**
+	 * Binds the listening channels of the acceptor shards, one per acceptor.<br>
+	 * If SO_REUSEPORT is not supported, all entries are the same channel.
+	 * @return The listening channels in blocking mode
+	 */
+	protected ServerSocketChannel[] openServerChannels() throws IOException {
+		ServerSocketChannel[] serverChannels = new ServerSocketChannel[this.acceptors];
+		try {
+			serverChannels[0] = ServerSocketChannel.open();
+			boolean reusePort = this.acceptors > 1 && serverChannels[0].supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+			if (reusePort) serverChannels[0].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			serverChannels[0].bind(new InetSocketAddress(this.port), this.backlog);
+			// Bound to the address of the first channel, in case the port was chosen by the system
+			InetSocketAddress address = (InetSocketAddress) serverChannels[0].getLocalAddress();
+			for (int i = 1; i < serverChannels.length; i++) {
+				if (reusePort) {
+					serverChannels[i] = ServerSocketChannel.open();
+					serverChannels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+					serverChannels[i].bind(address, this.backlog);
+				} else {
+					serverChannels[i] = serverChannels[0];
+				}
+			}
+		} catch (IOException e) {
+			for (ServerSocketChannel serverChannel : serverChannels) {
+				if (serverChannel != null) SelectorEngine.closeQuietly(serverChannel);
+			}
+			throw e;
+		}
+		return serverChannels;
+	}
+	
+	protected String acceptorName(int shard) {
+		return this.acceptors > 1 ? "HTTP Request Handler #" + shard : "HTTP Request Handler";
+	}
+	
+	/**
+	 * Creates the TLS engine for an connection accepted by the selector engine, the plain HTTP server does not encrypt its connections.
+	 * @param remoteAddress The address of the client
+	 * @return The engine in server mode, or null if the connection is not encrypted
+	 */
+	protected SSLEngine createSSLEngine(InetSocketAddress remoteAddress) {
+		return null;
+	}
+	
+	/**
+	 * @return The executor running the delegated tasks of the TLS handshakes of the selector engine
+	 */
+	protected Executor getHandshakeExecutor() {
+		return getExecutor();
+	}
+	
+	/**
+	 * Prepares an connection accepted by the blocking engine before its first request is read, called on the handler thread of the connection.
+	 * @param socket The accepted socket
+	 * @return The socket to read the requests from, or null if the connection was handed over and is no longer handled by the server
+	 * @throws IOException If the connection could not be prepared, the accepted socket is closed
+	 */
+	protected Socket prepareSocket(Socket socket) throws IOException {
+		return socket;
+	}
+	
+	/**
+	 * Looks up the handler of an application protocol negotiated for an connection, the plain HTTP server does not negotiate protocols.
+	 * @param protocol The negotiated protocol, or null if none was negotiated
+	 * @return The handler which takes over the connection, or null if the requests are handled by this server
+	 */
+	protected ProtocolHandler getProtocolHandler(String protocol) {
+		if (this.http2 && Http2Connection.ALPN_PROTOCOL.equals(protocol)) return socket -> handleHttp2(socket, new CountingInputStream(socket.getInputStream(), this.metrics));
+		return null;
+	}
+	
+	/**
+	 * Starts the thread reading the frames of an HTTP/2 connection, the requests of its streams are handled on the executor.<br>
+	 * The frames are not read on the executor, since the connection would occupy an thread needed by its own streams.
+	 * @param input The input of the socket starting with the connection preface, the received bytes have to be counted by the caller
+	 */
+	protected void handleHttp2(Socket socket, InputStream input) throws IOException {
+		Http2Connection connection = new Http2Connection(this, socket, input, this.http2MaxStreams, this.http2WindowSize);
+		this.http2Connections.add(connection);
+		this.http2Threads.newThread(connection).start();
+	}
+	
+	/**
+	 * @param received The bytes already received from the socket, in read mode
+	 * @return An stream continuing the received bytes with the input of the socket
+	 */
+	protected InputStream continueInput(ByteBuffer received, Socket socket) throws IOException {
+		byte[] bytes = new byte[received.remaining()];
+		received.get(bytes);
+		return new SequenceInputStream(new ByteArrayInputStream(bytes), new CountingInputStream(socket.getInputStream(), this.metrics));
+	}
+	
+	/**
+	 * Checks if an plain connection starts with the HTTP/2 connection preface, reads until the preface is complete or does not match anymore.
+	 */
+	protected boolean isHttp2Preface(Socket socket, ConnectionInputStream input) throws IOException {
+		if (!this.http2 || socket instanceof SSLSocket) return false;
+		while (true) {
+			int matched = Http2Connection.matchPreface(input.buffer());
+			if (matched == Http2Connection.PREFACE.length) return true;
+			if (matched < input.buffer().remaining()) return false;
+			if (input.fill() < 0) return false;
+		}
+	}
+	
+	/**
+	 * Passes an connection to the handler of its protocol, the socket is closed if the handler fails.
+	 */
+	protected void handOverConnection(ProtocolHandler handler, Socket socket) {
+		trackHandOver(socket);
+		try {
+			handler.handleConnection(socket);
+		} catch (IOException e) {
+			Log.defaultLogger().error("IOException in protocol handler, closing socket!", e);
+			try {
+				socket.close();
+			} catch (IOException e1) {
+				Log.defaultLogger().error("Could not close socket!", e1);
+			}
+		}
+	}
+	
+	/**
+	 * Registers an WebSocket opened on an connection of this server, so that it is closed with {@link WebSocketCode#GOING_AWAY} when the server shuts down.<br>
+	 * Closed WebSockets are removed automatically.
+	 * @see #shutdown(Duration)
+	 */
+	public void registerWebSocket(WebSocket webSocket) {
+		prune();
+		this.webSockets.add(webSocket);
+	}
+	
+	public void unregisterWebSocket(WebSocket webSocket) {
+		this.webSockets.remove(webSocket);
+	}
+	
+	/**
+	 * Records an connection which was handed over to the application or an other protocol, so that the shutdown can wait for it to be closed.
+	 */
+	protected void trackHandOver(Socket socket) {
+		prune();
+		this.handedOver.add(socket);
+	}
+	
+	/**
+	 * Removes the closed connections and WebSockets from the tracked ones, each time their number doubled.
+	 */
+	protected synchronized void prune() {
+		if (this.handedOver.size() + this.webSockets.size() < this.pruneThreshold) return;
+		this.handedOver.removeIf(Socket::isClosed);
+		this.webSockets.removeIf(WebSocket::isClosed);
+		this.pruneThreshold = Math.max(PRUNE_THRESHOLD, (this.handedOver.size() + this.webSockets.size()) * 2);
+	}
+	
+	/**
+	 * Shuts the server down gracefully, the exchanges which are in progress are completed before the connections are closed.
+	 * <ol>
+	 * <li>No further connections are accepted.</li>
+	 * <li>Persistent connections are closed after their current response, which is sent with {@code Connection: close}, idle connections are closed right away.
+	 * HTTP/2 connections are sent an GOAWAY frame, their open streams are completed.</li>
+	 * <li>The requests in progress and the connections handed over with {@link ResponseInfo#keepSocket()} or to other protocols are awaited.</li>
+	 * <li>All registered WebSockets are sent an close frame with {@link WebSocketCode#GOING_AWAY}.</li>
+	 * </ol>
+	 * All connections which are still open at the end of the grace period are closed forcefully.
+	 * @param grace The maximum time to wait for the exchanges in progress
+	 * @return true if all exchanges completed within the grace period
+	 * @throws InterruptedException If interrupted while waiting, the server is closed forcefully in this case
+	 */
+	public boolean shutdown(Duration grace) throws IOException, InterruptedException {
+		long deadline = System.nanoTime() + grace.toNanos();
+		this.shuttingDown = true;
+		boolean drained = false;
+		try {
+			if (this.selectorEngine != null) {
+				this.selectorEngine.stopAccepting();
+			} else {
+				closeServerSockets();
+			}
+			for (Http2Connection connection : this.http2Connections) connection.goAway();
+			for (WebSocket webSocket : this.webSockets) webSocket.sendClose(WebSocketCode.GOING_AWAY, "Server Shutdown");
+			while (!(drained = isDrained()) && System.nanoTime() < deadline) {
+				// Connections which became idle since the last check are closed as well
+				for (Socket socket : this.idleSockets) SelectorEngine.closeQuietly(socket);
+				for (Http2Connection connection : this.http2Connections) connection.closeIfDrained();
+				Thread.sleep(SHUTDOWN_CHECK_INTERVAL);
+			}
+		} finally {
+			if (!drained) {
+				for (Socket socket : this.openSockets) SelectorEngine.closeQuietly(socket);
+				for (Socket socket : this.handedOver) SelectorEngine.closeQuietly(socket);
+				for (WebSocket webSocket : this.webSockets) webSocket.abort();
+			}
+			close();
+		}
+		return drained;
+	}
+	
+	/**
+	 * @return true if no requests are in progress and all connections, including the handed over ones, are closed
+	 */
+	protected boolean isDrained() {
+		this.handedOver.removeIf(Socket::isClosed);
+		this.webSockets.removeIf(WebSocket::isClosed);
+		// The admission control is only created when the server is opened
+		AdmissionControl admission = this.admission;
+		boolean idle = admission == null || admission.getInFlight() == 0 && admission.getPending() == 0 && admission.getConnections() == 0;
+		return idle && this.handedOver.isEmpty() && this.webSockets.isEmpty();
+	}
+	
+	public boolean isShuttingDown() {
+		return this.shuttingDown;
 	}
 	
 	public void close() throws IOException {
-		this.serverSocket.close();
+		try {
+			if (this.selectorEngine != null) {
+				this.selectorEngine.close();
+				this.selectorEngine = null;
+			} else {
+				closeServerSockets();
+			}
+		} finally {
+			if (this.admission != null) this.admission.close();
+			if (this.ownedExecutor != null) {
+				this.ownedExecutor.shutdown();
+				this.ownedExecutor = null;
+			}
+		}
+	}
+	
+	protected Executor getExecutor() {
+		if (this.ownedExecutor != null) return this.ownedExecutor;
+		if (this.executor != null) return this.executor;
+		return ForkJoinPool.commonPool();
+	}
+	
+	protected void closeServerSockets() throws IOException {
+		if (this.serverSockets == null) return;
+		for (ServerSocket serverSocket : this.serverSockets) serverSocket.close();
 	}
 	
-	protected void handleRequests() {
-		while (!this.serverSocket.isClosed()) {
+	protected void handleRequests(ServerSocket serverSocket) {
+		while (!serverSocket.isClosed()) {
 			try {
-				Socket clientSocket = this.serverSocket.accept();
-				ForkJoinPool.commonPool().execute(() -> handleClient(clientSocket));
+				Socket clientSocket = serverSocket.accept();
+				if (!this.admission.acquireConnection()) {
+					rejectConnection(clientSocket);
+					continue;
+				}
+				try {
+					getExecutor().execute(() -> handleClient(clientSocket));
+				} catch (RejectedExecutionException e) {
+					this.admission.releaseConnection();
+					rejectConnection(clientSocket);
+				}
 			} catch (IOException e) {
-				if (!this.serverSocket.isClosed())
+				if (!serverSocket.isClosed())
 					Log.defaultLogger().error("IOException while accepting request!", e);
 			}
 		}
 	}
 	
+	/**
+	 * Discards the unread payload after the response was sent, errors only close the connection since no further response can be sent for the request.
+	 * @return true if the connection can be reused
+	 */
+	protected boolean drainBody(RequestBody body) {
+		try {
+			return body.drain();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Answers an connection rejected by the admission control with 503 (Service Unavailable) and closes it, without reading the request.
+	 */
+	protected void rejectConnection(Socket socket) {
+		try (socket) {
+			// The send buffer of the new connection takes the whole header, so the write does not block
+			ResponseInfo response = createUnavailableResponse();
+			writeHeader(socket.getOutputStream(), encodeHeader(ByteBuffer.allocate(HEADER_BUFFER_SIZE), response.getResponseCode(), response.getResponseMessage(), response.getAttributes()));
+			socket.shutdownOutput();
+		} catch (IOException e) {
+			// The client already closed the connection
+		}
+	}
+	
+	/**
+	 * Creates the 503 (Service Unavailable) response for connections and requests rejected by the admission control.
+	 */
+	protected ResponseInfo createUnavailableResponse() {
+		return new ResponseInfo(HttpCode.SERVICE_UNAVAILABLE, "Service Unavailable", null)
+				.addAdditionalInfo(HttpHeaders.RETRY_AFTER, this.retryAfter)
+				.addAdditionalInfo(HttpHeaders.CONTENT_LENGTH, 0)
+				.addAdditionalInfo(HttpHeaders.CONNECTION, "close");
+	}
+	
+	/**
+	 * Applies the rate limit of the client to the request.
+	 * @return The 429 (Too Many Requests) response if the request exceeds the limit, or null if it can be handled
+	 */
+	protected ResponseInfo checkRateLimit(RequestInfo request) {
+		RateLimiter rateLimiter = this.rateLimiter;
+		if (rateLimiter == null) return null;
+		long wait = rateLimiter.tryAcquire(request);
+		if (wait <= 0) return null;
+		long retryAfter = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait + TimeUnit.SECONDS.toNanos(1) - 1));
+		return new ResponseInfo(HttpCode.TOO_MANY_REQUESTS, "Too Many Requests", null).addAdditionalInfo(HttpHeaders.RETRY_AFTER, retryAfter);
+	}
+	
 	protected void handleClient(Socket currentSocket) {
+		PooledBuffer inputBuffer = BufferPool.HEAP.acquire(INPUT_BUFFER_SIZE);
+		PooledBuffer headerBuffer = BufferPool.HEAP.acquire(HEADER_BUFFER_SIZE);
 		try {
-			currentSocket.setSoTimeout(this.receptionTimeout);
-			String requestHeader = readPackageHeader(currentSocket);
-			ResponseInfo response = handleMessage(requestHeader);
-			if (response != null) {
-				String responseHeader = makeMessage(response.getResponseCode(), response.getResponseMessage(), response.getAttributes());
-				writePackageHeader(currentSocket, responseHeader);
-				if (response.getContentSource().isPresent()) {
+			currentSocket = prepareSocket(currentSocket);
+			if (currentSocket == null) return;
+			this.openSockets.add(currentSocket);
+			ConnectionInputStream input = new ConnectionInputStream(new CountingInputStream(currentSocket.getInputStream(), this.metrics), inputBuffer.buffer());
+			OutputStream output = new BufferedOutputStream(new CountingOutputStream(currentSocket.getOutputStream(), this.metrics));
+			RequestParser parser = createRequestParser();
+			int requestCount = 0;
+			while (true) {
+				if (requestCount > 0 && !input.buffer().hasRemaining()) {
+					// Wait for the next request on an persistent connection, close silently if the client stays idle
+					currentSocket.setSoTimeout(this.keepAliveTimeout);
+					this.idleSockets.add(currentSocket);
 					try {
-						response.getContentSource().get().transferTo(currentSocket.getOutputStream());
-						response.getContentSource().get().close();
+						if (this.shuttingDown || input.fill() < 0) break;
+					} catch (SocketTimeoutException e) {
+						break;
 					} catch (IOException e) {
-						throw new IOException("Unable to transfer all payload bytes!", e);
+						// Closed while idle by the shutdown of the server
+						if (this.shuttingDown) break;
+						throw e;
+					} finally {
+						this.idleSockets.remove(currentSocket);
 					}
 				}
+				currentSocket.setSoTimeout(this.receptionTimeout);
+				if (requestCount == 0 && isHttp2Preface(currentSocket, input)) {
+					this.openSockets.remove(currentSocket);
+					handOverConnection(socket -> handleHttp2(socket, continueInput(input.buffer(), socket)), currentSocket);
+					currentSocket = null;
+					break;
+				}
+				RequestInfo request = readRequest(input, parser, (InetSocketAddress) currentSocket.getRemoteSocketAddress());
+				long requestStart = System.nanoTime();
+				RequestBody body = createRequestBody(request, input, () -> {
+					output.write(CONTINUE_RESPONSE);
+					output.flush();
+				});
+				ResponseInfo limited = checkRateLimit(request);
+				// The slot is kept until the response is written, since the thread of the connection is occupied until then
+				boolean admitted = limited == null && this.admission.acquire();
+				ResponseInfo response;
+				boolean keepAlive;
+				try {
+					response = admitted ? handleMessage(request, body) : limited != null ? limited : createUnavailableResponse();
+					requestCount++;
+					if (response == null) break;
+					// Requests rejected by the admission control close the connection, their payload is not read
+					keepAlive = prepareConnection(request, response, requestCount, body.isReusable()) && (admitted || limited != null);
+					ByteBuffer header = encodeHeader(headerBuffer.buffer(), response.getResponseCode(), response.getResponseMessage(), response.getAttributes());
+					if (!writeGathering(currentSocket, output, header, response)) {
+						writeHeader(output, header);
+						if (response.hasContent()) {
+							try {
+								writeContent(currentSocket, output, response);
+							} catch (IOException e) {
+								throw new IOException("Unable to transfer all payload bytes!", e);
+							} finally {
+								response.closeContent();
+							}
+						}
+					}
+					output.flush();
+					this.metrics.recordRequest(response.getResponseCode(), System.nanoTime() - requestStart);
+				} finally {
+					if (admitted) this.admission.release();
+				}
+				// Prevent the socket from being closed if the application requests it.
+				// From this point onward, all control over this socket is transfered to the application.
+				// No further attempts to close, send or write to/from this socket will be made by the HTTP server!
+				if (response.isSocketKept()) trackHandOver(currentSocket);
+				if (!response.freeSocket(currentSocket)) {
+					this.openSockets.remove(currentSocket);
+					currentSocket = null;
+					break;
+				}
+				if (!keepAlive) break;
+				// Discard any payload not consumed by the handler, so that the next request can be read
+				if (!drainBody(body)) break;
 			}
-			// Prevent the socket from being closed if the application requests it.
-			// From this point onward, all control over this socket is transfered to the application.
-			// No further attempts to close, send or write to/from this socket will be made by the HTTP server!
-			if (!response.freeSocket(currentSocket)) currentSocket = null;
 		} catch (SocketTimeoutException e) {
+			this.metrics.recordTimeout();
 			try {
-				writePackageHeader(currentSocket, makeMessage(HttpCode.BAD_REQUEST, "Reception Timeout", new HashMap<>()));
+				writeHeader(currentSocket.getOutputStream(), encodeHeader(headerBuffer.buffer(), HttpCode.BAD_REQUEST, "Reception Timeout", new HttpHeaders()));
 			} catch (IOException e1) {
 				Log.defaultLogger().error("Failed to send timeout response!", e1);
 			}
+		} catch (HttpParseException e) {
+			this.metrics.recordParseError();
+			try {
+				HttpHeaders attributes = new HttpHeaders();
+				attributes.put(HttpHeaders.CONNECTION, "close");
+				writeHeader(currentSocket.getOutputStream(), encodeHeader(headerBuffer.buffer(), e.getCode(), e.getMessage(), attributes));
+			} catch (IOException e1) {
+				Log.defaultLogger().error("Failed to send error response!", e1);
+			}
+		} catch (EOFException e) {
+			// Client closed the connection before completing the request
 		} catch (SocketException e) {
-			Log.defaultLogger().error("SocketException while handeling ServerSocket!", e);
+			// Connections closed at the end of the shutdown are not reported
+			if (!this.shuttingDown) Log.defaultLogger().error("SocketException while handeling ServerSocket!", e);
 		} catch (IOException e) {
 			Log.defaultLogger().error("IOException on socket occured!", e);
 		} finally {
+			if (currentSocket != null) this.openSockets.remove(currentSocket);
 			try {
 				if (currentSocket != null) currentSocket.close();
 			} catch (IOException e) {
 				Log.defaultLogger().error("Could not close ServerSocket!", e);
 			}
+			inputBuffer.release();
+			headerBuffer.release();
+			this.admission.releaseConnection();
 		}
 	}
 	
-	protected String readPackageHeader(Socket currentSocket) throws IOException {
-		InputStream reader = currentSocket.getInputStream();
-		StringBuilder messageBuilder = new StringBuilder();
-		while (true) {
-			StringBuilder lineBuffer = new StringBuilder();
-			while (true) {
-				char character = (char) reader.read();
-				boolean isLineBreak = Pattern.matches("\\R", "" + character);
-				if (!isLineBreak) {
-					lineBuffer.append(character);
-				} else {
-					reader.read();
-					break;
+	/**
+	 * Decides if the connection can be reused after the response and sets the required Connection and Content-Length attributes on the response.<br>
+	 * The connection is only kept alive if the client requests it, the response length is known to the client and the request limit is not yet reached.
+	 * @param request The request which is answered
+	 * @param response The response to send
+	 * @param requestCount The number of requests already received on this connection, including the current one
+	 * @param reusable If the transport is able to read further requests after this one
+	 * @return true if the connection should be kept open for further requests
+	 */
+	protected boolean prepareConnection(RequestInfo request, ResponseInfo response, int requestCount, boolean reusable) {
+		if (response.isSocketKept()) return false;
+		HttpHeaders attributes = response.getAttributes();
+		if (hasPayload(response.getResponseCode()) && !attributes.containsKey("Content-Length")) {
+			if (!response.hasContent()) {
+				attributes.put("Content-Length", "0");
+			} else if (response.getBufferSource().isPresent()) {
+				attributes.put("Content-Length", Integer.toString(response.getBufferSource().get().remaining()));
+			} else if (response.getFileSource().isPresent()) {
+				attributes.put("Content-Length", Long.toString(response.getFileLength()));
+			} else if (RequestInfo.HTTP_1_1.equals(request.getProtocol())) {
+				// Streamed payloads of unknown length are sent in chunks, HTTP/1.0 clients read until the connection is closed
+				attributes.put("Transfer-Encoding", "chunked");
+			}
+		}
+		boolean lengthKnown = attributes.containsKey("Content-Length") || response.isChunked() || !hasPayload(response.getResponseCode());
+		boolean keepAlive = !this.shuttingDown && reusable && request.isPersistent() && requestCount < this.maxKeepAliveRequests && lengthKnown;
+		if (!keepAlive) {
+			attributes.put("Connection", "close");
+		} else if (!RequestInfo.HTTP_1_1.equals(request.getProtocol())) {
+			attributes.put("Connection", "keep-alive");
+		}
+		return keepAlive;
+	}
+	
+	/**
+	 * Writes the header and an buffered payload with one gathering write, so that small responses are sent with a single system call.
+	 * @return false if the response can not be written this way, because the payload is not buffered or the connection has no channel
+	 */
+	protected boolean writeGathering(Socket socket, OutputStream output, ByteBuffer header, ResponseInfo response) throws IOException {
+		SocketChannel channel = getPlainChannel(socket);
+		if (channel == null || !response.getBufferSource().isPresent()) return false;
+		output.flush();
+		ByteBuffer[] buffers = { header, response.getBufferSource().get().duplicate() };
+		while (buffers[0].hasRemaining() || buffers[1].hasRemaining()) this.metrics.recordBytesSent(channel.write(buffers));
+		return true;
+	}
+	
+	/**
+	 * @return The channel to write to the connection directly, or null if the connection has no channel or is encrypted
+	 */
+	protected static SocketChannel getPlainChannel(Socket socket) {
+		// An TLS socket layered over an accepted socket returns the channel of the unencrypted socket
+		if (socket instanceof SSLSocket) return null;
+		return socket.getChannel();
+	}
+	
+	protected void writeContent(Socket socket, OutputStream output, ResponseInfo response) throws IOException {
+		if (response.getFileSource().isPresent()) {
+			FileChannel file = response.getFileSource().get();
+			SocketChannel channel = getPlainChannel(socket);
+			if (channel != null) {
+				// Plain connections can transfer the file directly from the file system to the socket
+				output.flush();
+				transferFile(file, response.getFilePosition(), response.getFileLength(), channel);
+				this.metrics.recordBytesSent(response.getFileLength());
+			} else {
+				copyFile(file, response.getFilePosition(), response.getFileLength(), output);
+			}
+		} else if (response.getBufferSource().isPresent()) {
+			ByteBuffer buffer = response.getBufferSource().get().duplicate();
+			if (buffer.hasArray()) {
+				output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			} else {
+				byte[] chunk = TRANSFER_BUFFER.get().array();
+				while (buffer.hasRemaining()) {
+					int length = Math.min(chunk.length, buffer.remaining());
+					buffer.get(chunk, 0, length);
+					output.write(chunk, 0, length);
 				}
 			}
-			String line = lineBuffer.toString();
-			if (!line.isEmpty() && !(line.length() == 1 && line.contains("\\R") && messageBuilder.length() < 10000)) {
-				messageBuilder.append(line).append("\r\n");
+		} else {
+			// Streamed payloads are written through the chunked encoder if their length is not known
+			OutputStream body = response.isChunked() ? new ChunkedOutputStream(output) : new FilterOutputStream(output) {
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					this.out.write(b, off, len);
+				}
+				
+				@Override
+				public void close() throws IOException {
+					this.out.flush();
+				}
+			};
+			if (response.getWriterSource().isPresent()) {
+				response.getWriterSource().get().writeBody(body);
 			} else {
-				break;
+				response.getContentSource().get().transferTo(body);
 			}
+			// Not closed on failure, so that an incomplete payload is not terminated like a complete one
+			body.close();
 		}
-		return messageBuilder.toString();
 	}
 	
-	protected void writePackageHeader(Socket currentSocket, String header) throws IOException {
-		currentSocket.getOutputStream().write(header.getBytes(StandardCharsets.UTF_8));
+	/**
+	 * Records the bytes read from the connection in the metrics of the server.
+	 */
+	protected static class CountingInputStream extends FilterInputStream {
+		
+		protected final ServerMetrics metrics;
+		
+		public CountingInputStream(InputStream in, ServerMetrics metrics) {
+			super(in);
+			this.metrics = metrics;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = this.in.read();
+			if (b >= 0) this.metrics.recordBytesReceived(1);
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = this.in.read(b, off, len);
+			if (read > 0) this.metrics.recordBytesReceived(read);
+			return read;
+		}
+		
 	}
 	
-	protected ResponseInfo handleMessage(String httpMessage) throws IOException {
-		
-		String[] messageLines = httpMessage.split("\\R");
-		String[] headerLine = messageLines[0].split(" ");
+	/**
+	 * Records the bytes written to the connection in the metrics of the server.
+	 */
+	protected static class CountingOutputStream extends FilterOutputStream {
 		
-		HttpRequest requestType = HttpRequest.fromName(headerLine[0]);
-		PathInfo resourcePath = new PathInfo(headerLine[1]);
-		String protocollTag = headerLine[2];
+		protected final ServerMetrics metrics;
 		
-		Map<String, String> attributes = new LinkedHashMap<>();
-		int i;
-		for (i = 1; i < messageLines.length; i++) {
-			String messageLine = messageLines[i];
-			if (messageLine.isEmpty() || (messageLine.length() == 1 && messageLine.endsWith("\r"))) break;
-			String[] infoLine = messageLine.split(": ");
-			if (infoLine.length == 2) {
-				attributes.put(infoLine[0], infoLine[1]);
-			} else {
-				Log.defaultLogger().error("Received invalid http header info line: " + messageLine);
-			}
+		public CountingOutputStream(OutputStream out, ServerMetrics metrics) {
+			super(out);
+			this.metrics = metrics;
 		}
 		
-		int payloadLen = getPayloadLength(attributes);
+		@Override
+		public void write(int b) throws IOException {
+			this.out.write(b);
+			this.metrics.recordBytesSent(1);
+		}
 		
-		ResponseInfo response = handleRequest(requestType, resourcePath, attributes, payloadLen, protocollTag);
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.out.write(b, off, len);
+			this.metrics.recordBytesSent(len);
+		}
 		
+	}
+	
+	protected static void transferFile(FileChannel file, long position, long length, WritableByteChannel target) throws IOException {
+		long end = position + length;
+		while (position < end) {
+			long transfered = file.transferTo(position, end - position, target);
+			if (transfered <= 0 && position >= file.size()) throw new EOFException("File ended before all bytes where transfered!");
+			position += transfered;
+		}
+	}
+	
+	protected static void copyFile(FileChannel file, long position, long length, OutputStream output) throws IOException {
+		ByteBuffer buffer = TRANSFER_BUFFER.get();
+		long end = position + length;
+		while (position < end) {
+			buffer.clear();
+			if (end - position < buffer.capacity()) buffer.limit((int) (end - position));
+			int read = file.read(buffer, position);
+			if (read < 0) throw new EOFException("File ended before all bytes where transfered!");
+			output.write(buffer.array(), 0, read);
+			position += read;
+		}
+	}
+	
+	protected static boolean hasPayload(HttpCode code) {
+		return code.code() >= 200 && code != HttpCode.NO_CONTENT && code != HttpCode.NOT_MODIFIED;
+	}
+	
+	/**
+	 * Creates the payload stream passed to the handler.
+	 * @param input The stream of the connection, positioned at the start of the payload
+	 * @param continueHandler Sends the interim 100 (Continue) response, used if the client expects it
+	 */
+	protected RequestBody createRequestBody(RequestInfo request, InputStream input, RequestBody.ContinueHandler continueHandler) {
+		return new RequestBody(input, request, this.maxBodySize, RequestInfo.HTTP_1_1.equals(request.getProtocol()) ? continueHandler : null);
+	}
+	
+	protected RequestParser createRequestParser() {
+		return new RequestParser(this.maxHeaderSize, this.maxUriLength);
+	}
+	
+	protected RequestInfo readRequest(ConnectionInputStream input, RequestParser parser, InetSocketAddress remoteAddress) throws IOException {
+		parser.reset();
+		while (!parser.parse(input.buffer())) {
+			if (input.fill() < 0) throw new EOFException("Connection closed while reading header!");
+		}
+		return createRequest(parser, remoteAddress);
+	}
+	
+	protected void writeHeader(OutputStream output, ByteBuffer header) throws IOException {
+		output.write(header.array(), header.arrayOffset() + header.position(), header.remaining());
+	}
+	
+	protected RequestInfo createRequest(RequestParser parser, InetSocketAddress remoteAddress) throws IOException {
+		PathInfo resourcePath;
+		try {
+			resourcePath = new PathInfo(parser.getTarget());
+		} catch (IllegalArgumentException e) {
+			throw new HttpParseException(HttpCode.BAD_REQUEST, "Invalid Request Target");
+		}
+		HttpHeaders attributes = parser.getAttributes();
+		long payloadLen = getPayloadLength(attributes);
+		return new RequestInfo(parser.getMethod(), resourcePath, parser.getProtocol(), attributes, payloadLen, remoteAddress);
+	}
+	
+	protected ResponseInfo handleMessage(RequestInfo request, RequestBody body) throws IOException {
+		if (body.isExceeded()) return new ResponseInfo(HttpCode.PAYLOAD_TOO_LARGE, "Payload Too Large", null);
+		ResponseInfo response = handleRequest(request.getRequestType(), request.getPath(), request.getAttributes(), body, request.getProtocol());
+		if (body.isExceeded()) {
+			// The handler failed to read the payload because it is too large
+			if (response != null) response.closeContent();
+			return new ResponseInfo(HttpCode.PAYLOAD_TOO_LARGE, "Payload Too Large", null);
+		}
+		return processResponse(request, response);
+	}
+	
+	/**
+	 * Applies the server wide response processing to the response returned by the handler.<br>
+	 * This adds the configured Cache-Control policy, compresses the response if enabled and answers conditional requests with 304 (Not Modified) if the validators of the response match.<br>
+	 * Compression is applied before the conditional requests are evaluated, since the compressed variant has its own entity tag.
+	 */
+	protected ResponseInfo processResponse(RequestInfo request, ResponseInfo response) {
+		if (response == null || response.isSocketKept()) return response;
+		boolean isGet = request.getRequestType() == HttpRequest.GET || request.getRequestType() == HttpRequest.HEADER;
+		if (isGet) applyCacheControl(request, response);
+		ResponseCompression compression = this.compression;
+		if (compression != null) response = compression.compress(request, response);
+		HttpHeaders requestAttributes = request.getAttributes();
+		if (isGet && response.getResponseCode() == HttpCode.OK && (requestAttributes.containsKey("If-None-Match") || requestAttributes.containsKey("If-Modified-Since"))) {
+			String etag = response.getAttributes().get("ETag");
+			String lastModified = response.getAttributes().get("Last-Modified");
+			if (Validators.isNotModified(requestAttributes, etag, lastModified == null ? -1 : Validators.parseDate(lastModified))) {
+				try {
+					response.closeContent();
+				} catch (IOException e) {
+					Log.defaultLogger().error("Failed to close response content!", e);
+				}
+				return ResponseInfo.notModified(response.getAttributes());
+			}
+		}
 		return response;
-		
 	}
 	
-	protected int getPayloadLength(Map<String, String> additionalInfo) throws IOException {
-		if (additionalInfo.containsKey("Content-Length")) {
-			try {
-				return Integer.parseInt(additionalInfo.get("Content-Length"));
-			} catch (NumberFormatException e) {
-				Log.defaultLogger().error("Received invalid argument for Content-Length: " + additionalInfo.get("Content-Length"));
+	protected void applyCacheControl(RequestInfo request, ResponseInfo response) {
+		int code = response.getResponseCode().code();
+		if ((code < 200 || code >= 300) && code != HttpCode.NOT_MODIFIED.code()) return;
+		if (response.getAttributes().containsKey("Cache-Control")) return;
+		String path = request.getPath().getPath();
+		for (CacheControlPolicy policy : this.cacheControlPolicies) {
+			if (path.startsWith(policy.pathPrefix())) {
+				response.getAttributes().put("Cache-Control", policy.policy());
+				return;
 			}
 		}
-		return 0;
 	}
 	
-	protected String makeMessage(HttpCode code, String info, Map<String, String> additionalInfo) {
-		StringBuilder messageBuilder = new StringBuilder();
-		messageBuilder.append("HTTP/1.1 ").append(code.code()).append(" ").append(info).append("\r\n");
-		for (String key : additionalInfo.keySet()) {
-			messageBuilder.append(key).append(": ").append(additionalInfo.get(key)).append("\r\n");
+	protected long getPayloadLength(HttpHeaders additionalInfo) throws IOException {
+		if (additionalInfo.containsKey(HttpHeaders.CONTENT_LENGTH)) {
+			try {
+				long length = Long.parseLong(additionalInfo.get(HttpHeaders.CONTENT_LENGTH));
+				if (length >= 0) return length;
+			} catch (NumberFormatException e) {}
+			throw new HttpParseException(HttpCode.BAD_REQUEST, "Invalid Content-Length");
 		}
-		messageBuilder.append("\r\n");
-		return messageBuilder.toString();
+		return 0;
 	}
 	
-	protected ResponseInfo handleRequest(HttpRequest requestType, PathInfo resourcePath, Map<String, String> attributes, int payloadLen, String protocollTag) {
+	/**
+	 * Encodes the status line and header fields of an response into the buffer.<br>
+	 * The status line of the standard message is copied from {@link HttpCode#getStatusLine()}, the fields are encoded by {@link HttpHeaders#encode(ByteBuffer)}.
+	 * @param buffer The buffer to reuse, its content is overwritten
+	 * @return The flipped buffer containing the header, or an larger buffer if the header did not fit
+	 */
+	protected ByteBuffer encodeHeader(ByteBuffer buffer, HttpCode code, String info, HttpHeaders additionalInfo) {
+		buffer.clear();
+		byte[] statusLine = info == null || info.equals(code.getName()) ? code.getStatusLine() : HttpCode.statusLine(code, info);
+		buffer = HttpHeaders.ensureRemaining(buffer, statusLine.length).put(statusLine);
+		buffer = additionalInfo.encode(buffer);
+		buffer = HttpHeaders.ensureRemaining(buffer, ChunkedOutputStream.CRLF.length).put(ChunkedOutputStream.CRLF);
+		return buffer.flip();
+	}
+	
+	protected ResponseInfo handleRequest(HttpRequest requestType, PathInfo resourcePath, HttpHeaders attributes, RequestBody body, String protocollTag) {
+		if (requestType == null) {
+			Log.defaultLogger().error("Received invalid HTTP package!");
+			return new ResponseInfo(HttpCode.BAD_REQUEST, "Invalid Method", null);
+		}
+		if (this.router != null) return this.router.handleRequest(requestType, resourcePath, attributes, body);
 		switch (requestType) {
 		case GET:
 			return handleGet(resourcePath, attributes, false);
 		case HEADER:
 			return handleGet(resourcePath, attributes, true);
 		case PUT:
-			return handlePut(resourcePath, attributes, payloadLen);
+			return handlePut(resourcePath, attributes, body);
 		case POST:
-			return handlePost(resourcePath, attributes, payloadLen);
+			return handlePost(resourcePath, attributes, body);
 		case DELETE:
 			return handleDelete(resourcePath, attributes);
 		default:
@@ -200,17 +1133,40 @@ public class HttpServer {
 	
 	@FunctionalInterface
 	public static interface GetRequestHandler {
-		public ResponseInfo handleRequest(PathInfo path, Map<String, String> attributes);
+		public ResponseInfo handleRequest(PathInfo path, HttpHeaders attributes);
 	}
-
+	
+	/**
+	 * Handler for requests with payload, the payload can be read from the body stream while handling the request.
+	 */
 	@FunctionalInterface
 	public static interface PutRequestHandler {
-		public ResponseInfo handleRequest(PathInfo path, Map<String, String> attributes, int contentLength);
+		public ResponseInfo handleRequest(PathInfo path, HttpHeaders attributes, RequestBody body);
 	}
-
+	
 	@FunctionalInterface
 	public static interface DelRequestHandler {
-		public ResponseInfo handleRequest(PathInfo path, Map<String, String> attributes);
+		public ResponseInfo handleRequest(PathInfo path, HttpHeaders attributes);
+	}
+	
+	/**
+	 * Handler for connections which use an other application protocol than HTTP/1.1, it takes over the connection including closing it.
+	 */
+	@FunctionalInterface
+	public static interface ProtocolHandler {
+		public void handleConnection(Socket socket) throws IOException;
+	}
+	
+	protected Router router;
+	
+	/**
+	 * Sets the router which dispatches all requests, the handlers set for the individual methods are not used while a router is set.<br>
+	 * The router records the requests and latencies of its routes into the metrics of this server.
+	 * @param router The router, or null to use the handlers of the individual methods
+	 */
+	public void setRouter(Router router) {
+		if (router != null) router.setMetrics(this.metrics);
+		this.router = router;
 	}
 	
 	protected GetRequestHandler getHandler;
@@ -218,41 +1174,41 @@ public class HttpServer {
 	public void setGetHandler(GetRequestHandler getHandler) {
 		this.getHandler = getHandler;
 	}
-
+	
 	protected PutRequestHandler postHandler;
 	
 	public void setPostHandler(PutRequestHandler postHandler) {
 		this.postHandler = postHandler;
 	}
-
+	
 	protected DelRequestHandler deleteHandler;
 	
 	public void setDeleteHandler(DelRequestHandler deleteHandler) {
 		this.deleteHandler = deleteHandler;
 	}
-
+	
 	protected PutRequestHandler putHandler;
 	
 	public void setPutHandler(PutRequestHandler putHandler) {
 		this.putHandler = putHandler;
 	}
 	
-	public ResponseInfo handleGet(PathInfo resourcePath, Map<String, String> attributes, boolean onlyHeader) {
+	public ResponseInfo handleGet(PathInfo resourcePath, HttpHeaders attributes, boolean onlyHeader) {
 		if (this.getHandler == null) return new ResponseInfo(HttpCode.NOT_IMPLEMENTED, "No Handler", null);
 		return this.getHandler.handleRequest(resourcePath, attributes);
 	}
 	
-	public ResponseInfo handlePost(PathInfo resourcePath, Map<String, String> attributes, int contentLength) {
+	public ResponseInfo handlePost(PathInfo resourcePath, HttpHeaders attributes, RequestBody body) {
 		if (this.postHandler == null) return new ResponseInfo(HttpCode.NOT_IMPLEMENTED, "No Handler", null);
-		return this.postHandler.handleRequest(resourcePath, attributes, contentLength);
+		return this.postHandler.handleRequest(resourcePath, attributes, body);
 	}
 	
-	public ResponseInfo handlePut(PathInfo resourcePath, Map<String, String> attributes, int contentLength) {
+	public ResponseInfo handlePut(PathInfo resourcePath, HttpHeaders attributes, RequestBody body) {
 		if (this.putHandler == null) return new ResponseInfo(HttpCode.NOT_IMPLEMENTED, "No Handler", null);
-		 return this.putHandler.handleRequest(resourcePath, attributes, contentLength);
+		 return this.putHandler.handleRequest(resourcePath, attributes, body);
 	}
 	
-	public ResponseInfo handleDelete(PathInfo resourcePath, Map<String, String> attributes) {
+	public ResponseInfo handleDelete(PathInfo resourcePath, HttpHeaders attributes) {
 		if (this.deleteHandler == null) return new ResponseInfo(HttpCode.NOT_IMPLEMENTED, "No Handler", null);
 		return this.deleteHandler.handleRequest(resourcePath, attributes);
 	}
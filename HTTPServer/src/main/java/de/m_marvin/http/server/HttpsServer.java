@@ -1,44 +1,358 @@
 package de.m_marvin.http.server;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
 
+import de.m_marvin.simplelogging.Log;
+
+/**
+ * HTTP server which encrypts its connections with TLS.<br>
+ * Each server uses its own {@link SSLContext}, either supplied directly or loaded from an key store file when the server is opened,
+ * so that multiple servers in one JVM can use different certificates. Servers without key store and context use the default context of the JVM.<br>
+ * With the selector engine, the connections are encrypted by an {@link SSLEngine} on the event loops,
+ * the expensive delegated tasks of the handshakes run on a separate handshake executor, so that they do not block the event loops or the request handlers.
+ * With the blocking engine, the handshake is done by the handler thread of the connection.<br>
+ * The key store can be watched and reloaded while the server is running, the new context is only used for new handshakes,
+ * established connections keep their session. Additional application protocols can be negotiated by ALPN on the same port,
+ * connections which select them are handed over to the handler of the protocol after the handshake.
+ * @author Marvin Koehler
+ *
+ */
 public class HttpsServer extends HttpServer {
 	
 	public static final int DEFAULT_HTTPS_PORT = 443;
+	public static final String HTTP_1_1_PROTOCOL = "http/1.1";
+	public static final int REJECT_TIMEOUT = 1000;
+	
+	protected final File keyStoreFile;
+	protected final String keyStorePassword;
+	protected volatile SSLContext sslContext;
+	protected int sessionCacheSize = -1;
+	protected int sessionTimeout = -1;
+	protected Executor handshakeExecutor;
+	protected ExecutorService ownedHandshakeExecutor;
+	protected int keyStoreWatchInterval = 0;
+	protected ScheduledExecutorService keyStoreWatcher;
+	protected KeyStoreStamp loadedStamp;
+	protected KeyStoreStamp pendingStamp;
+	protected volatile Map<String, ProtocolHandler> applicationProtocols = Map.of();
+	
+	protected static record KeyStoreStamp(long modified, long length) {
+		
+		public static KeyStoreStamp of(File file) {
+			return new KeyStoreStamp(file.lastModified(), file.length());
+		}
+		
+	}
 	
 	public HttpsServer(int port) {
-		super(port);
+		this(port, DEFAULT_RECEPTION_TIMEOUT, (SSLContext) null);
 	}
 	
 	public HttpsServer(int port, int receptionTimeout) {
-		super(port, receptionTimeout);
+		this(port, receptionTimeout, (SSLContext) null);
 	}
 	
 	public HttpsServer(int port, File keyStoreFile, String keyStorePassword) {
-		super(port);
-		setKeystoreStore(keyStoreFile, keyStorePassword);
+		this(port, DEFAULT_RECEPTION_TIMEOUT, keyStoreFile, keyStorePassword);
 	}
 	
 	public HttpsServer(int port, int receptionTimeout, File keyStoreFile, String keyStorePassword) {
 		super(port, receptionTimeout);
-		setKeystoreStore(keyStoreFile, keyStorePassword);
+		this.keyStoreFile = keyStoreFile;
+		this.keyStorePassword = keyStorePassword;
+	}
+	
+	/**
+	 * @param sslContext The initialized context providing the certificate of the server, or null to use the default context of the JVM
+	 */
+	public HttpsServer(int port, SSLContext sslContext) {
+		this(port, DEFAULT_RECEPTION_TIMEOUT, sslContext);
+	}
+	
+	public HttpsServer(int port, int receptionTimeout, SSLContext sslContext) {
+		super(port, receptionTimeout);
+		this.keyStoreFile = null;
+		this.keyStorePassword = null;
+		this.sslContext = sslContext;
+	}
+	
+	/**
+	 * Creates an context which provides the first key and certificate of the key store file.
+	 * @param keyStoreFile The key store, in any format supported by {@link KeyStore#getInstance(File, char[])}, for example PKCS12
+	 * @param password The password of the key store and its key
+	 * @throws IOException If the key store could not be read or is invalid
+	 */
+	public static SSLContext createContext(File keyStoreFile, String password) throws IOException {
+		if (!keyStoreFile.isFile()) throw new FileNotFoundException("Key store " + keyStoreFile + " not found!");
+		try {
+			KeyStore keyStore = KeyStore.getInstance(keyStoreFile, password.toCharArray());
+			KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keyManagers.init(keyStore, password.toCharArray());
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(keyManagers.getKeyManagers(), null, null);
+			return context;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Unable to load key store " + keyStoreFile + "!", e);
+		}
+	}
+	
+	/**
+	 * Configures the cache of the TLS sessions, which allows returning clients to resume their session with an abbreviated handshake.<br>
+	 * Applied to the server session context of the SSLContext when the server is opened.
+	 * @param size The maximum number of cached sessions, zero for no limit or -1 to keep the setting of the context
+	 * @param timeout The time in seconds a session can be resumed, zero for no limit or -1 to keep the setting of the context
+	 */
+	public void setSessionCache(int size, int timeout) {
+		this.sessionCacheSize = size;
+		this.sessionTimeout = timeout;
+	}
+	
+	/**
+	 * Runs the delegated tasks of the TLS handshakes of the selector engine on an executor supplied by the application.<br>
+	 * By default, a dedicated pool with one thread per processor is created when the server is opened.
+	 * @param executor The executor to use, or null for the default pool
+	 */
+	public void setHandshakeExecutor(Executor executor) {
+		this.handshakeExecutor = executor;
+	}
+	
+	/**
+	 * Watches the key store file while the server is open and reloads it when it was changed, for example to rotate the certificate without a restart.<br>
+	 * An change is only loaded after the file stayed unchanged for one interval, so that a partially written file is not loaded.
+	 * @param interval The interval in seconds in which the file is checked, zero to disable the watch
+	 */
+	public void setKeyStoreWatch(int interval) {
+		this.keyStoreWatchInterval = interval;
+	}
+	
+	/**
+	 * Loads the key store file again and replaces the context of the server, the new context is used for all following handshakes.<br>
+	 * Established connections keep their session and are not interrupted.
+	 * @throws IOException If the key store could not be loaded, the server keeps using the previous context
+	 * @throws IllegalStateException If the server was not created with an key store file
+	 */
+	public synchronized void reloadKeyStore() throws IOException {
+		if (this.keyStoreFile == null) throw new IllegalStateException("The server has no key store file to reload!");
+		KeyStoreStamp stamp = KeyStoreStamp.of(this.keyStoreFile);
+		SSLContext context = createContext(this.keyStoreFile, this.keyStorePassword);
+		applySessionCache(context);
+		this.sslContext = context;
+		this.loadedStamp = stamp;
+	}
+	
+	protected synchronized void checkKeyStore() {
+		KeyStoreStamp stamp = KeyStoreStamp.of(this.keyStoreFile);
+		if (stamp.equals(this.loadedStamp)) {
+			this.pendingStamp = null;
+			return;
+		}
+		if (!stamp.equals(this.pendingStamp)) {
+			// Wait until the file is completely written
+			this.pendingStamp = stamp;
+			return;
+		}
+		this.pendingStamp = null;
+		try {
+			reloadKeyStore();
+		} catch (IOException e) {
+			// Not retried until the file changes again
+			this.loadedStamp = stamp;
+			Log.defaultLogger().error("Failed to reload key store, keeping previous certificate!", e);
+		}
+	}
+	
+	/**
+	 * Adds an application protocol which can be selected by the clients with ALPN during the handshake.<br>
+	 * The protocols are preferred in the order they are added, before HTTP/1.1 which is always supported and handled by the server.
+	 * Connections which select the protocol are passed to its handler after the handshake, on the executor of the server.
+	 * @param protocol The ALPN identifier of the protocol, for example "h2"
+	 * @param handler The handler which takes over the connections of the protocol
+	 */
+	public synchronized void addApplicationProtocol(String protocol, ProtocolHandler handler) {
+		if (HTTP_1_1_PROTOCOL.equals(protocol)) throw new IllegalArgumentException("HTTP/1.1 is handled by the server itself!");
+		Map<String, ProtocolHandler> protocols = new LinkedHashMap<>(this.applicationProtocols);
+		protocols.put(protocol, handler);
+		this.applicationProtocols = protocols;
 	}
 	
-	protected static void setKeystoreStore(File keystoreStoreFile, String password) {
-		String keystore = keystoreStoreFile.toString().replace('\\', '/');
-		System.setProperty("javax.net.ssl.keyStore", keystore);
-		System.setProperty("javax.net.ssl.keyStorePassword", password);
+	public synchronized void removeApplicationProtocol(String protocol) {
+		Map<String, ProtocolHandler> protocols = new LinkedHashMap<>(this.applicationProtocols);
+		protocols.remove(protocol);
+		this.applicationProtocols = protocols;
 	}
 	
-	 @Override
+	/**
+	 * @return The application protocols supported by the server, in the order of preference
+	 */
+	public List<String> getApplicationProtocols() {
+		List<String> protocols = new ArrayList<>(this.applicationProtocols.keySet());
+		if (usesHttp2() && !protocols.contains(Http2Connection.ALPN_PROTOCOL)) protocols.add(Http2Connection.ALPN_PROTOCOL);
+		protocols.add(HTTP_1_1_PROTOCOL);
+		return protocols;
+	}
+	
+	/**
+	 * Selects the most preferred protocol of the server which is offered by the client.
+	 * @return The selected protocol, or an empty string to continue without ALPN if the client offers none of them
+	 */
+	protected String selectApplicationProtocol(List<String> offered) {
+		for (String protocol : this.applicationProtocols.keySet()) {
+			if (offered.contains(protocol)) return protocol;
+		}
+		if (usesHttp2() && offered.contains(Http2Connection.ALPN_PROTOCOL)) return Http2Connection.ALPN_PROTOCOL;
+		return offered.contains(HTTP_1_1_PROTOCOL) ? HTTP_1_1_PROTOCOL : "";
+	}
+	
+	/**
+	 * @return The context of the server, only available after the server was opened if it is loaded from an key store
+	 */
+	public SSLContext getSSLContext() {
+		return this.sslContext;
+	}
+	
+	@Override
 	public void open() throws IOException {
-		this.serverSocket = SSLServerSocketFactory.getDefault().createServerSocket(this.port);
-		this.handleThread = new Thread(this::handleRequests, "HTTP handler");
-		this.handleThread.setDaemon(true);
-		this.handleThread.start();
+		if (this.keyStoreFile != null) {
+			if (this.sslContext == null) reloadKeyStore();
+			if (this.keyStoreWatchInterval > 0) {
+				this.keyStoreWatcher = Executors.newSingleThreadScheduledExecutor(ServerExecutors.daemonThreads("Key Store Watcher"));
+				this.keyStoreWatcher.scheduleWithFixedDelay(this::checkKeyStore, this.keyStoreWatchInterval, this.keyStoreWatchInterval, TimeUnit.SECONDS);
+			}
+		} else {
+			if (this.sslContext == null) {
+				try {
+					this.sslContext = SSLContext.getDefault();
+				} catch (GeneralSecurityException e) {
+					throw new IOException("Unable to create the default SSL context!", e);
+				}
+			}
+			applySessionCache(this.sslContext);
+		}
+		if (this.handshakeExecutor == null && usesSelectorEngine())
+			this.ownedHandshakeExecutor = ServerExecutors.boundedPool("TLS Handshake", Runtime.getRuntime().availableProcessors(), ServerExecutors.DEFAULT_QUEUE_SIZE);
+		super.open();
+	}
+	
+	protected void applySessionCache(SSLContext context) {
+		SSLSessionContext sessions = context.getServerSessionContext();
+		if (this.sessionCacheSize >= 0) sessions.setSessionCacheSize(this.sessionCacheSize);
+		if (this.sessionTimeout >= 0) sessions.setSessionTimeout(this.sessionTimeout);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			if (this.keyStoreWatcher != null) {
+				this.keyStoreWatcher.shutdown();
+				this.keyStoreWatcher = null;
+			}
+			if (this.ownedHandshakeExecutor != null) {
+				this.ownedHandshakeExecutor.shutdown();
+				this.ownedHandshakeExecutor = null;
+			}
+		}
+	}
+	
+	/**
+	 * Layers TLS over the accepted connections of the blocking engine, using the current context of the server.
+	 */
+	@Override
+	protected Socket prepareSocket(Socket socket) throws IOException {
+		SSLSocket sslSocket = (SSLSocket) this.sslContext.getSocketFactory().createSocket(socket, null, true);
+		sslSocket.setHandshakeApplicationProtocolSelector((s, offered) -> selectApplicationProtocol(offered));
+		sslSocket.setSoTimeout(this.receptionTimeout);
+		sslSocket.startHandshake();
+		ProtocolHandler handler = getProtocolHandler(sslSocket.getApplicationProtocol());
+		if (handler != null) {
+			sslSocket.setSoTimeout(0);
+			handOverConnection(handler, sslSocket);
+			return null;
+		}
+		return sslSocket;
+	}
+	
+	@Override
+	protected void rejectConnection(Socket socket) {
+		try {
+			// The rejection is sent encrypted as well, so the handshake is done on the handshake executor instead of the accepting thread
+			getHandshakeExecutor().execute(() -> sendRejection(socket));
+		} catch (RejectedExecutionException e) {
+			resetConnection(socket);
+		}
+	}
+	
+	/**
+	 * Sends the 503 (Service Unavailable) response of an rejected connection after the handshake.<br>
+	 * Clients which do not complete the handshake within {@link #REJECT_TIMEOUT} are dropped.
+	 */
+	protected void sendRejection(Socket socket) {
+		try {
+			SSLSocket sslSocket = (SSLSocket) this.sslContext.getSocketFactory().createSocket(socket, null, true);
+			sslSocket.setSoTimeout(this.receptionTimeout > 0 ? Math.min(this.receptionTimeout, REJECT_TIMEOUT) : REJECT_TIMEOUT);
+			super.rejectConnection(sslSocket);
+		} catch (IOException e) {
+			resetConnection(socket);
+		}
+	}
+	
+	/**
+	 * Closes an rejected connection without answering it, used if no thread is available for the handshake.
+	 */
+	protected static void resetConnection(Socket socket) {
+		try {
+			socket.setSoLinger(true, 0);
+		} catch (IOException e) {}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			Log.defaultLogger().error("Could not close socket!", e);
+		}
+	}
+	
+	@Override
+	protected ProtocolHandler getProtocolHandler(String protocol) {
+		if (protocol == null || protocol.isEmpty()) return null;
+		ProtocolHandler handler = this.applicationProtocols.get(protocol);
+		return handler != null ? handler : super.getProtocolHandler(protocol);
+	}
+	
+	@Override
+	protected SSLEngine createSSLEngine(InetSocketAddress remoteAddress) {
+		SSLEngine engine = this.sslContext.createSSLEngine(remoteAddress.getHostString(), remoteAddress.getPort());
+		engine.setUseClientMode(false);
+		engine.setHandshakeApplicationProtocolSelector((e, offered) -> selectApplicationProtocol(offered));
+		return engine;
+	}
+	
+	@Override
+	protected Executor getHandshakeExecutor() {
+		if (this.handshakeExecutor != null) return this.handshakeExecutor;
+		if (this.ownedHandshakeExecutor != null) return this.ownedHandshakeExecutor;
+		return super.getHandshakeExecutor();
 	}
 	
 }
@@ -0,0 +1,166 @@
+package de.m_marvin.http.server;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import de.m_marvin.http.RequestInfo;
+
+/**
+ * Limits the request rate of the individual clients of an {@link HttpServer} with token buckets.<br>
+ * Each client is identified by a key, by default its remote address. Limits are configured for path prefixes,
+ * if multiple prefixes match a path, the longest prefix is used. Paths without matching prefix are not limited.<br>
+ * The buckets are stored in lock striped tables, one per limit. Each bucket only stores the time at which it is full again (generic cell rate algorithm),
+ * buckets which are full are removed by a periodic sweep of their stripe, so that idle clients do not occupy memory.
+ * @author Marvin Koehler
+ *
+ */
+public class RateLimiter {
+	
+	public static final int STRIPES = 64;
+	public static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+	
+	@FunctionalInterface
+	public static interface KeyExtractor {
+		/**
+		 * @return The key identifying the client of the request, or null if the request should not be limited
+		 */
+		public Object getKey(RequestInfo request);
+	}
+	
+	/**
+	 * Identifies the clients by their IP address.
+	 */
+	public static final KeyExtractor REMOTE_ADDRESS = request -> {
+		InetSocketAddress address = request.getRemoteAddress();
+		return address != null ? address.getAddress() : null;
+	};
+	
+	protected static class Stripe {
+		
+		protected final HashMap<Object, long[]> buckets = new HashMap<>();
+		protected long lastSweep;
+		protected int sweepSize = 16;
+		
+		protected Stripe(long now) {
+			this.lastSweep = now;
+		}
+		
+	}
+	
+	protected static class Limit {
+		
+		protected final String pathPrefix;
+		protected final long emissionInterval;
+		protected final long tolerance;
+		protected final Stripe[] stripes = new Stripe[STRIPES];
+		
+		protected Limit(String pathPrefix, double rate, int burst) {
+			this.pathPrefix = pathPrefix;
+			this.emissionInterval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+			this.tolerance = this.emissionInterval * (burst - 1);
+			long now = System.nanoTime();
+			for (int i = 0; i < STRIPES; i++) this.stripes[i] = new Stripe(now);
+		}
+		
+	}
+	
+	protected final KeyExtractor keyExtractor;
+	protected volatile List<Limit> limits = List.of();
+	
+	/**
+	 * Creates a rate limiter which identifies the clients by their IP address.
+	 */
+	public RateLimiter() {
+		this(REMOTE_ADDRESS);
+	}
+	
+	/**
+	 * @param keyExtractor Identifies the client of an request, for example by an header field containing an API key
+	 */
+	public RateLimiter(KeyExtractor keyExtractor) {
+		this.keyExtractor = keyExtractor;
+	}
+	
+	/**
+	 * Limits the request rate of each client below the path prefix.<br>
+	 * The clients can send up to burst requests at once, after that requests are accepted at the given rate.
+	 * @param pathPrefix The path prefix, "/" for all requests
+	 * @param rate The number of requests per second, or zero to remove the limit
+	 * @param burst The number of requests which can be sent without delay
+	 * @throws IllegalArgumentException If burst is less than one
+	 */
+	public synchronized RateLimiter setLimit(String pathPrefix, double rate, int burst) {
+		if (rate > 0 && burst < 1) throw new IllegalArgumentException("The burst has to be at least one request!");
+		List<Limit> limits = new ArrayList<>(this.limits);
+		limits.removeIf(l -> l.pathPrefix.equals(pathPrefix));
+		if (rate > 0) limits.add(new Limit(pathPrefix, rate, burst));
+		limits.sort(Comparator.comparingInt((Limit l) -> l.pathPrefix.length()).reversed());
+		this.limits = List.copyOf(limits);
+		return this;
+	}
+	
+	/**
+	 * Takes a token from the bucket of the client for the path of the request.
+	 * @return Zero if the request is accepted, otherwise the time in nanoseconds until the next request of the client will be accepted
+	 */
+	public long tryAcquire(RequestInfo request) {
+		String path = request.getPath().getPath();
+		for (Limit limit : this.limits) {
+			if (path.startsWith(limit.pathPrefix)) {
+				Object key = this.keyExtractor.getKey(request);
+				return key != null ? tryAcquire(limit, key) : 0;
+			}
+		}
+		return 0;
+	}
+	
+	protected long tryAcquire(Limit limit, Object key) {
+		int hash = key.hashCode();
+		Stripe stripe = limit.stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+		long now = System.nanoTime();
+		synchronized (stripe) {
+			if (now - stripe.lastSweep > SWEEP_INTERVAL || stripe.buckets.size() > stripe.sweepSize * 2) sweep(stripe, now);
+			long[] bucket = stripe.buckets.get(key);
+			// The bucket stores the time at which it is full again, a missing bucket is full
+			long fullAt = bucket != null && bucket[0] - now > 0 ? bucket[0] : now;
+			long wait = fullAt - now - limit.tolerance;
+			if (wait > 0) return wait;
+			if (bucket == null) stripe.buckets.put(key, bucket = new long[1]);
+			bucket[0] = fullAt + limit.emissionInterval;
+			return 0;
+		}
+	}
+	
+	/**
+	 * Removes the buckets which are full, they would not limit the next request of their client.
+	 */
+	protected void sweep(Stripe stripe, long now) {
+		Iterator<long[]> buckets = stripe.buckets.values().iterator();
+		while (buckets.hasNext()) {
+			if (buckets.next()[0] - now <= 0) buckets.remove();
+		}
+		stripe.lastSweep = now;
+		stripe.sweepSize = Math.max(16, stripe.buckets.size());
+	}
+	
+	/**
+	 * @return The number of buckets currently stored, including full buckets not yet removed by the sweep
+	 */
+	public int getTrackedClients() {
+		int count = 0;
+		for (Limit limit : this.limits) {
+			for (Stripe stripe : limit.stripes) {
+				synchronized (stripe) {
+					count += stripe.buckets.size();
+				}
+			}
+		}
+		return count;
+	}
+	
+}
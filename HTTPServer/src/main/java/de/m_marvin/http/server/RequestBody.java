@@ -0,0 +1,172 @@
+package de.m_marvin.http.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import de.m_marvin.http.HttpCode;
+import de.m_marvin.http.HttpHeaders;
+import de.m_marvin.http.RequestInfo;
+
+/**
+ * The payload of an request, passed to the PUT and POST handlers.<br>
+ * The stream ends at the end of the payload and decodes chunked payloads, closing it does not close the connection.<br>
+ * Bytes not read by the handler are discarded by the server after the response was sent, so that the connection can be reused.
+ * @author Marvin Koehler
+ *
+ */
+public class RequestBody extends InputStream {
+	
+	/**
+	 * Payloads up to this size which where not read by the handler are discarded to keep the connection, larger payloads close the connection.
+	 */
+	public static final long MAX_DRAIN_SIZE = 0x10000;
+	
+	protected static final ThreadLocal<byte[]> DRAIN_BUFFER = ThreadLocal.withInitial(() -> new byte[0x2000]);
+	
+	/**
+	 * Sends the interim 100 (Continue) response to clients which wait for it before sending the payload.
+	 */
+	@FunctionalInterface
+	public static interface ContinueHandler {
+		public void sendContinue() throws IOException;
+	}
+	
+	protected final InputStream source;
+	protected final long contentLength;
+	protected final long maxSize;
+	protected long remaining;
+	protected long bytesRead = 0;
+	protected ContinueHandler continueHandler;
+	protected boolean exceeded = false;
+	protected boolean closed = false;
+	
+	/**
+	 * @param input The stream of the connection, positioned at the start of the payload
+	 * @param request The request the payload belongs to
+	 * @param maxSize The maximum number of bytes accepted, exceeding it causes an {@link HttpParseException} with 413 (Payload Too Large)
+	 * @param continueHandler Called before the first byte is read, if the client expects an 100 (Continue) response, can be null
+	 */
+	public RequestBody(InputStream input, RequestInfo request, long maxSize, ContinueHandler continueHandler) {
+		this.source = request.isChunked() ? new ChunkedInputStream(input) : input;
+		this.contentLength = request.isChunked() ? -1 : request.getPayloadLength();
+		this.remaining = this.contentLength;
+		this.maxSize = maxSize;
+		this.exceeded = this.contentLength > maxSize;
+		this.continueHandler = RequestInfo.hasToken(request.getAttributes().get(HttpHeaders.EXPECT), "100-continue") ? continueHandler : null;
+	}
+	
+	/**
+	 * @return The length of the payload, or -1 if it is sent with chunked transfer encoding and its length is not known in advance
+	 */
+	public long getContentLength() {
+		return this.contentLength;
+	}
+	
+	public boolean isChunked() {
+		return this.contentLength < 0;
+	}
+	
+	public long getBytesRead() {
+		return this.bytesRead;
+	}
+	
+	/**
+	 * @return true if the payload exceeded the maximum payload size of the server
+	 */
+	public boolean isExceeded() {
+		return this.exceeded;
+	}
+	
+	protected void beforeRead() throws IOException {
+		if (this.continueHandler == null) return;
+		ContinueHandler continueHandler = this.continueHandler;
+		this.continueHandler = null;
+		continueHandler.sendContinue();
+	}
+	
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (this.closed || this.remaining == 0) return -1;
+		if (len == 0) return 0;
+		beforeRead();
+		int read;
+		if (isChunked()) {
+			read = this.source.read(b, off, len);
+			if (read < 0) {
+				this.remaining = 0;
+				return -1;
+			}
+		} else {
+			read = this.source.read(b, off, (int) Math.min(len, this.remaining));
+			if (read < 0) throw new EOFException("Connection closed before the payload was received!");
+			this.remaining -= read;
+		}
+		this.bytesRead += read;
+		if (this.bytesRead > this.maxSize) {
+			this.exceeded = true;
+			throw new HttpParseException(HttpCode.PAYLOAD_TOO_LARGE, "Payload Too Large");
+		}
+		return read;
+	}
+	
+	@Override
+	public int available() throws IOException {
+		if (this.closed || this.remaining == 0 || this.continueHandler != null) return 0;
+		int available = this.source.available();
+		return isChunked() ? available : (int) Math.min(available, this.remaining);
+	}
+	
+	/**
+	 * Closes the stream for the handler, the remaining payload is discarded by the server afterwards.
+	 */
+	@Override
+	public void close() {
+		this.closed = true;
+	}
+	
+	/**
+	 * @return true if the connection can be reused after this request, without reading more than {@link #MAX_DRAIN_SIZE} bytes of unread payload
+	 */
+	public boolean isReusable() {
+		if (this.exceeded) return false;
+		if (this.remaining == 0) return true;
+		// A client waiting for 100 (Continue) may or may not send the payload after the final response, the connection can not be reused
+		if (this.continueHandler != null) return false;
+		return isChunked() || this.remaining <= MAX_DRAIN_SIZE;
+	}
+	
+	/**
+	 * Reads and discards the unread rest of the payload.<br>
+	 * The response was already sent at this point, so an payload exceeding the maximum size only prevents the reuse of the connection.
+	 * @return true if the payload was discarded completely and the connection can be reused
+	 */
+	public boolean drain() throws IOException {
+		if (!isReusable()) return false;
+		if (!isChunked() && this.remaining == 0) {
+			this.closed = true;
+			return true;
+		}
+		this.closed = false;
+		long drained = 0;
+		byte[] buffer = DRAIN_BUFFER.get();
+		int read;
+		try {
+			while ((read = read(buffer, 0, buffer.length)) >= 0) {
+				drained += read;
+				if (drained > MAX_DRAIN_SIZE) return false;
+			}
+		} catch (HttpParseException e) {
+			return false;
+		}
+		this.closed = true;
+		return true;
+	}
+	
+}
@@ -0,0 +1,308 @@
+package de.m_marvin.http.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import de.m_marvin.http.HttpCode;
+import de.m_marvin.http.HttpHeaders;
+import de.m_marvin.http.HttpRequest;
+import de.m_marvin.http.RequestInfo;
+
+/**
+ * Incremental byte level parser for the request line and header fields of an HTTP/1.x request.<br>
+ * The parser consumes the bytes from the supplied buffers as they are received and copies only the relevant bytes into an reusable array,
+ * strings are only created for the final request components.<br>
+ * One parser is used per connection and reset before each request.
+ * @author Marvin Koehler
+ *
+ */
+public class RequestParser {
+	
+	public static final int INITIAL_BUFFER_SIZE = 1024;
+	public static final int MAX_METHOD_LENGTH = 16;
+	public static final int MAX_VERSION_LENGTH = 16;
+	
+	private static final int S_METHOD = 0;
+	private static final int S_TARGET = 1;
+	private static final int S_VERSION = 2;
+	private static final int S_VERSION_LF = 3;
+	private static final int S_LINE_START = 4;
+	private static final int S_NAME = 5;
+	private static final int S_VALUE_LWS = 6;
+	private static final int S_VALUE = 7;
+	private static final int S_VALUE_LF = 8;
+	private static final int S_FOLD_LWS = 9;
+	private static final int S_END_LF = 10;
+	private static final int S_DONE = 11;
+	
+	private static final byte[] HTTP_1_0 = RequestInfo.HTTP_1_0.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] HTTP_1_1 = RequestInfo.HTTP_1_1.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] HTTP_1_X = "HTTP/1.".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] HTTP_X = "HTTP/".getBytes(StandardCharsets.US_ASCII);
+	private static final HttpRequest[] METHODS = HttpRequest.values();
+	private static final byte[][] METHOD_NAMES = new byte[METHODS.length][];
+	
+	static {
+		for (int i = 0; i < METHODS.length; i++) METHOD_NAMES[i] = METHODS[i].getName().getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	protected final int maxHeaderSize;
+	protected final int maxUriLength;
+	
+	protected byte[] data = new byte[INITIAL_BUFFER_SIZE];
+	protected int length;
+	protected int headerSize;
+	protected int state;
+	protected int methodEnd;
+	protected int targetEnd;
+	protected int versionEnd;
+	// Start and end offsets of name and value of each field
+	protected int[] fields = new int[64];
+	protected int fieldCount;
+	protected final HttpHeaders headers = new HttpHeaders();
+	
+	public RequestParser(int maxHeaderSize, int maxUriLength) {
+		this.maxHeaderSize = maxHeaderSize;
+		this.maxUriLength = maxUriLength;
+		reset();
+	}
+	
+	public void reset() {
+		this.length = 0;
+		this.headerSize = 0;
+		this.state = S_METHOD;
+		this.fieldCount = 0;
+	}
+	
+	public boolean isComplete() {
+		return this.state == S_DONE;
+	}
+	
+	/**
+	 * Consumes bytes from the buffer until the end of the request header is reached.<br>
+	 * Bytes after the end of the header are not consumed and stay in the buffer.
+	 * @param buffer The buffer in read mode
+	 * @return true if the header is complete, false if more bytes are required
+	 * @throws HttpParseException If the received header is malformed or exceeds the limits
+	 */
+	@SuppressWarnings("fallthrough")
+	public boolean parse(ByteBuffer buffer) throws HttpParseException {
+		while (this.state != S_DONE && buffer.hasRemaining()) {
+			if (++this.headerSize > this.maxHeaderSize) {
+				if (this.state <= S_TARGET) throw new HttpParseException(HttpCode.URI_TOO_LONG, "URI Too Long");
+				throw new HttpParseException(HttpCode.REQUEST_HEADER_FIELDS_TOO_LARGE, "Header Too Large");
+			}
+			byte b = buffer.get();
+			switch (this.state) {
+			case S_METHOD:
+				if (b == ' ') {
+					if (this.length == 0) throw badRequest("Missing Method");
+					this.methodEnd = this.length;
+					this.state = S_TARGET;
+				} else if (b == '\r' || b == '\n') {
+					// Empty lines before the request line are ignored
+					if (this.length > 0) throw badRequest("Invalid Request Line");
+				} else if (!isTokenChar(b) || this.length >= MAX_METHOD_LENGTH) {
+					throw badRequest("Invalid Method");
+				} else {
+					append(b);
+				}
+				break;
+			case S_TARGET:
+				if (b == ' ') {
+					if (this.length == this.methodEnd) throw badRequest("Missing Request Target");
+					this.targetEnd = this.length;
+					this.state = S_VERSION;
+				} else if (b <= ' ' && b >= 0 || b == 0x7F) {
+					throw badRequest("Invalid Request Target");
+				} else if (this.length - this.methodEnd >= this.maxUriLength) {
+					throw new HttpParseException(HttpCode.URI_TOO_LONG, "URI Too Long");
+				} else {
+					append(b);
+				}
+				break;
+			case S_VERSION:
+				if (b == '\r') {
+					this.state = S_VERSION_LF;
+				} else if (b == '\n') {
+					endRequestLine();
+				} else if (this.length - this.targetEnd >= MAX_VERSION_LENGTH) {
+					throw badRequest("Invalid Protocol Version");
+				} else {
+					append(b);
+				}
+				break;
+			case S_VERSION_LF:
+				if (b != '\n') throw badRequest("Invalid Request Line");
+				endRequestLine();
+				break;
+			case S_LINE_START:
+				if (b == '\r') {
+					this.state = S_END_LF;
+				} else if (b == '\n') {
+					this.state = S_DONE;
+				} else if (b == ' ' || b == '\t') {
+					// Obsolete line folding, continues the value of the previous field
+					if (this.fieldCount == 0) throw badRequest("Invalid Header Field");
+					this.state = S_FOLD_LWS;
+				} else if (!isTokenChar(b)) {
+					throw badRequest("Invalid Header Field");
+				} else {
+					if (this.fields.length < (this.fieldCount + 1) * 4) this.fields = Arrays.copyOf(this.fields, this.fields.length * 2);
+					this.fields[this.fieldCount * 4] = this.length;
+					this.fieldCount++;
+					append(b);
+					this.state = S_NAME;
+				}
+				break;
+			case S_NAME:
+				if (b == ':') {
+					this.fields[this.fieldCount * 4 - 3] = this.length;
+					this.state = S_VALUE_LWS;
+				} else if (!isTokenChar(b)) {
+					throw badRequest("Invalid Header Field");
+				} else {
+					append(b);
+				}
+				break;
+			case S_VALUE_LWS:
+				if (b == ' ' || b == '\t') break;
+				this.fields[this.fieldCount * 4 - 2] = this.length;
+				this.state = S_VALUE;
+				// fall through, the first byte of the value is handled like the following ones
+			case S_VALUE:
+				if (b == '\r') {
+					endValue();
+					this.state = S_VALUE_LF;
+				} else if (b == '\n') {
+					endValue();
+					this.state = S_LINE_START;
+				} else {
+					append(b);
+				}
+				break;
+			case S_VALUE_LF:
+				if (b != '\n') throw badRequest("Invalid Header Field");
+				this.state = S_LINE_START;
+				break;
+			case S_FOLD_LWS:
+				if (b == ' ' || b == '\t') break;
+				if (b == '\r') {
+					this.state = S_VALUE_LF;
+				} else if (b == '\n') {
+					this.state = S_LINE_START;
+				} else {
+					this.length = this.fields[this.fieldCount * 4 - 1];
+					if (this.length > this.fields[this.fieldCount * 4 - 2]) append((byte) ' ');
+					append(b);
+					this.state = S_VALUE;
+				}
+				break;
+			case S_END_LF:
+				if (b != '\n') throw badRequest("Invalid Header End");
+				this.state = S_DONE;
+				break;
+			}
+		}
+		return this.state == S_DONE;
+	}
+	
+	protected void endRequestLine() throws HttpParseException {
+		this.versionEnd = this.length;
+		int versionLength = this.versionEnd - this.targetEnd;
+		if (versionLength != HTTP_1_1.length || !regionEquals(this.targetEnd, this.versionEnd, HTTP_1_X, HTTP_1_X.length)) {
+			if (regionEquals(this.targetEnd, this.versionEnd, HTTP_X, HTTP_X.length))
+				throw new HttpParseException(HttpCode.HTTP_VERSION_NOT_SUPPORTED, "HTTP Version Not Supported");
+			throw badRequest("Invalid Protocol Version");
+		}
+		this.state = S_LINE_START;
+	}
+	
+	protected void endValue() {
+		int valueStart = this.fields[this.fieldCount * 4 - 2];
+		int end = this.length;
+		while (end > valueStart && (this.data[end - 1] == ' ' || this.data[end - 1] == '\t')) end--;
+		this.length = end;
+		this.fields[this.fieldCount * 4 - 1] = end;
+	}
+	
+	protected void append(byte b) {
+		if (this.length == this.data.length) this.data = Arrays.copyOf(this.data, Math.min(this.data.length * 2, Math.max(this.maxHeaderSize, this.data.length + 1)));
+		this.data[this.length++] = b;
+	}
+	
+	protected boolean regionEquals(int start, int end, byte[] other, int otherLength) {
+		if (end - start < otherLength) return false;
+		for (int i = 0; i < otherLength; i++) {
+			if (this.data[start + i] != other[i]) return false;
+		}
+		return true;
+	}
+	
+	protected static boolean isTokenChar(byte b) {
+		if (b <= ' ' || b >= 0x7F) return false;
+		switch (b) {
+		case '(': case ')': case ',': case '/': case ':': case ';': case '<': case '=': case '>':
+		case '?': case '@': case '[': case '\\': case ']': case '{': case '}': case '"':
+			return false;
+		default:
+			return true;
+		}
+	}
+	
+	protected static HttpParseException badRequest(String message) {
+		return new HttpParseException(HttpCode.BAD_REQUEST, message);
+	}
+	
+	/**
+	 * @return The request method, or null if the method is not known
+	 */
+	public HttpRequest getMethod() {
+		for (int i = 0; i < METHODS.length; i++) {
+			byte[] name = METHOD_NAMES[i];
+			if (this.methodEnd == name.length && regionEquals(0, this.methodEnd, name, name.length)) return METHODS[i];
+		}
+		return null;
+	}
+	
+	public String getTarget() {
+		return new String(this.data, this.methodEnd, this.targetEnd - this.methodEnd, StandardCharsets.UTF_8);
+	}
+	
+	public String getProtocol() {
+		if (regionEquals(this.targetEnd, this.versionEnd, HTTP_1_1, HTTP_1_1.length)) return RequestInfo.HTTP_1_1;
+		if (regionEquals(this.targetEnd, this.versionEnd, HTTP_1_0, HTTP_1_0.length)) return RequestInfo.HTTP_1_0;
+		return new String(this.data, this.targetEnd, this.versionEnd - this.targetEnd, StandardCharsets.US_ASCII);
+	}
+	
+	public int getFieldCount() {
+		return this.fieldCount;
+	}
+	
+	/**
+	 * Returns the name of the header field, well known names are returned as the constants of {@link HttpHeaders}, independent of the received case.
+	 */
+	public String getFieldName(int field) {
+		return HttpHeaders.intern(this.data, this.fields[field * 4], this.fields[field * 4 + 1]);
+	}
+	
+	public String getFieldValue(int field) {
+		int start = this.fields[field * 4 + 2];
+		int end = this.fields[field * 4 + 3];
+		return new String(this.data, start, end - start, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Collects the header fields, the values of repeated fields are kept separately.<br>
+	 * The returned headers are owned by the parser and reused for the next request of the connection.
+	 */
+	public HttpHeaders getAttributes() {
+		this.headers.clear();
+		for (int i = 0; i < this.fieldCount; i++) {
+			this.headers.add(getFieldName(i), getFieldValue(i));
+		}
+		return this.headers;
+	}
+	
+}
@@ -0,0 +1,196 @@
+package de.m_marvin.http.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.m_marvin.http.Validators;
+
+/**
+ * Memory bounded cache for immutable resources, used by the {@link StaticResourceHandler}.<br>
+ * Lookups never block, if the memory budget is exceeded by an insertion, the least recently used entries are evicted.<br>
+ * The recency is kept in an access ordered list, lookups only update it if the lock is not held by an other thread.
+ * @author Marvin Koehler
+ *
+ */
+public class ResourceCache {
+	
+	/**
+	 * An cached resource, the content must not be modified after it was put into the cache.
+	 */
+	public static record Resource(byte[] content, String contentType, long lastModified, String etag) {
+		
+		/**
+		 * Creates the resource and computes its entity tag from the content.
+		 * @param lastModified The modification time in milliseconds, or -1 if not known
+		 */
+		public static Resource of(byte[] content, String contentType, long lastModified) {
+			return new Resource(content, contentType, lastModified, Validators.makeETag(content));
+		}
+		
+		public long size() {
+			return this.content.length;
+		}
+		
+	}
+	
+	protected final long memoryBudget;
+	protected final long maxEntrySize;
+	protected final Map<String, Resource> entries = new ConcurrentHashMap<>();
+	protected final LinkedHashMap<String, Resource> accessOrder = new LinkedHashMap<>(16, 0.75F, true);
+	protected final AtomicLong usedMemory = new AtomicLong();
+	protected final ReentrantLock lock = new ReentrantLock();
+	protected final LongAdder hits = new LongAdder();
+	protected final LongAdder misses = new LongAdder();
+	protected final LongAdder evictions = new LongAdder();
+	
+	/**
+	 * @param memoryBudget The maximum number of content bytes held by the cache
+	 * @param maxEntrySize The maximum size of a single resource, larger resources are not cached
+	 */
+	public ResourceCache(long memoryBudget, long maxEntrySize) {
+		this.memoryBudget = memoryBudget;
+		this.maxEntrySize = Math.min(maxEntrySize, memoryBudget);
+	}
+	
+	/**
+	 * @return The cached resource or null, if the resource is not in the cache
+	 */
+	public Resource get(String key) {
+		Resource resource = this.entries.get(key);
+		if (resource == null) {
+			this.misses.increment();
+			return null;
+		}
+		this.hits.increment();
+		if (this.lock.tryLock()) {
+			try {
+				this.accessOrder.get(key);
+			} finally {
+				this.lock.unlock();
+			}
+		}
+		return resource;
+	}
+	
+	public boolean isCacheable(long size) {
+		return size <= this.maxEntrySize;
+	}
+	
+	/**
+	 * Puts the resource into the cache, replacing any previous version and evicting other entries if the memory budget is exceeded.
+	 * @return true if the resource was cached, false if it exceeds the maximum entry size
+	 */
+	public boolean put(String key, Resource resource) {
+		if (!isCacheable(resource.size())) return false;
+		this.lock.lock();
+		try {
+			Resource previous = this.entries.put(key, resource);
+			this.accessOrder.put(key, resource);
+			this.usedMemory.addAndGet(resource.size() - (previous != null ? previous.size() : 0));
+			if (this.usedMemory.get() > this.memoryBudget) evict();
+		} finally {
+			this.lock.unlock();
+		}
+		return true;
+	}
+	
+	public void invalidate(String key) {
+		this.lock.lock();
+		try {
+			Resource resource = this.entries.remove(key);
+			if (resource == null) return;
+			this.accessOrder.remove(key);
+			this.usedMemory.addAndGet(-resource.size());
+		} finally {
+			this.lock.unlock();
+		}
+	}
+	
+	/**
+	 * Removes the entry only if it still holds the given resource, so that an newer version put by an other thread is kept.
+	 */
+	public void invalidate(String key, Resource resource) {
+		this.lock.lock();
+		try {
+			if (!this.entries.remove(key, resource)) return;
+			this.accessOrder.remove(key);
+			this.usedMemory.addAndGet(-resource.size());
+		} finally {
+			this.lock.unlock();
+		}
+	}
+	
+	/**
+	 * Removes all entries whose key starts with the prefix, for example all resources of an directory.
+	 */
+	public void invalidatePrefix(String prefix) {
+		this.lock.lock();
+		try {
+			Iterator<Map.Entry<String, Resource>> iterator = this.accessOrder.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<String, Resource> entry = iterator.next();
+				if (!entry.getKey().startsWith(prefix)) continue;
+				iterator.remove();
+				this.entries.remove(entry.getKey());
+				this.usedMemory.addAndGet(-entry.getValue().size());
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+	
+	public void clear() {
+		this.lock.lock();
+		try {
+			this.entries.clear();
+			this.accessOrder.clear();
+			this.usedMemory.set(0);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+	
+	/**
+	 * Removes the least recently used entries until the memory budget is met, has to be called with the lock held.
+	 */
+	protected void evict() {
+		Iterator<Map.Entry<String, Resource>> eldest = this.accessOrder.entrySet().iterator();
+		while (this.usedMemory.get() > this.memoryBudget && eldest.hasNext()) {
+			Map.Entry<String, Resource> entry = eldest.next();
+			eldest.remove();
+			this.entries.remove(entry.getKey());
+			this.usedMemory.addAndGet(-entry.getValue().size());
+			this.evictions.increment();
+		}
+	}
+	
+	public long getHits() {
+		return this.hits.sum();
+	}
+	
+	public long getMisses() {
+		return this.misses.sum();
+	}
+	
+	public long getEvictions() {
+		return this.evictions.sum();
+	}
+	
+	public long getUsedMemory() {
+		return this.usedMemory.get();
+	}
+	
+	public long getMemoryBudget() {
+		return this.memoryBudget;
+	}
+	
+	public int size() {
+		return this.entries.size();
+	}
+	
+}
@@ -0,0 +1,275 @@
+package de.m_marvin.http.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import de.m_marvin.http.HttpCode;
+import de.m_marvin.http.HttpHeaders;
+import de.m_marvin.http.RequestInfo;
+import de.m_marvin.http.ResponseInfo;
+import de.m_marvin.http.ResponseInfo.BodyWriter;
+import de.m_marvin.http.server.ResourceCache.Resource;
+import de.m_marvin.simplelogging.Log;
+
+/**
+ * Response stage which compresses the payload of responses with gzip or deflate, if the client accepts it.<br>
+ * Compressed variants of responses with an entity tag (for example from the {@link StaticResourceHandler}) are held in an {@link ResourceCache}
+ * and only compressed once.<br>
+ * File responses are not compressed, to keep the zero-copy transfer.
+ * @author Marvin Koehler
+ *
+ */
+public class ResponseCompression {
+	
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+	public static final int DEFAULT_MIN_SIZE = 1024;
+	public static final long DEFAULT_VARIANT_CACHE_SIZE = 0x1000000;
+	public static final Set<String> DEFAULT_CONTENT_TYPES = Set.of(
+			"text/", "application/json", "application/javascript", "application/xml", "image/svg+xml", "application/wasm");
+	
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+	
+	protected final int minSize;
+	protected final int level;
+	protected final Set<String> contentTypes;
+	protected final ResourceCache variantCache;
+	
+	public ResponseCompression() {
+		this(DEFAULT_MIN_SIZE, Deflater.DEFAULT_COMPRESSION, DEFAULT_CONTENT_TYPES, DEFAULT_VARIANT_CACHE_SIZE);
+	}
+	
+	/**
+	 * @param minSize The minimum payload size in bytes for compressing a response, responses of unknown length are always compressed
+	 * @param level The compression level, between 0 and 9
+	 * @param contentTypes The compressed content types, entries ending with '/' match all sub types
+	 * @param variantCacheSize The maximum number of bytes held by the cache of compressed variants
+	 */
+	public ResponseCompression(int minSize, int level, Set<String> contentTypes, long variantCacheSize) {
+		this.minSize = minSize;
+		this.level = level;
+		this.contentTypes = contentTypes;
+		this.variantCache = new ResourceCache(variantCacheSize, variantCacheSize);
+	}
+	
+	public ResourceCache getVariantCache() {
+		return this.variantCache;
+	}
+	
+	/**
+	 * Compresses the response if the client accepts an supported encoding and the response is compressible.
+	 * @return The compressed response, or the unmodified response
+	 */
+	public ResponseInfo compress(RequestInfo request, ResponseInfo response) {
+		HttpHeaders attributes = response.getAttributes();
+		if (response.getResponseCode() != HttpCode.OK || !response.hasContent() || response.getFileSource().isPresent()) return response;
+		if (attributes.containsKey(HttpHeaders.CONTENT_ENCODING) || !isCompressible(attributes.get(HttpHeaders.CONTENT_TYPE))) return response;
+		String length = attributes.get(HttpHeaders.CONTENT_LENGTH);
+		try {
+			if (length != null && Long.parseLong(length) < this.minSize) return response;
+		} catch (NumberFormatException e) {
+			return response;
+		}
+		
+		// The representation depends on the Accept-Encoding field, even if the client does not accept compression
+		String vary = attributes.get(HttpHeaders.VARY);
+		if (vary == null) {
+			attributes.put(HttpHeaders.VARY, "Accept-Encoding");
+		} else if (!RequestInfo.hasToken(vary, "Accept-Encoding")) {
+			attributes.put(HttpHeaders.VARY, vary + ", Accept-Encoding");
+		}
+		
+		String encoding = negotiate(request.getAttributes().get(HttpHeaders.ACCEPT_ENCODING));
+		if (encoding == null) return response;
+		
+		try {
+			ResponseInfo compressed;
+			if (response.getBufferSource().isPresent()) {
+				compressed = ResponseInfo.ofBytes(response.getResponseCode(), response.getResponseMessage(), compressVariant(request.getPath().getPath(), attributes.get(HttpHeaders.ETAG), encoding, response.getBufferSource().get()));
+			} else if (response.getWriterSource().isPresent()) {
+				BodyWriter writer = response.getWriterSource().get();
+				compressed = ResponseInfo.ofWriter(response.getResponseCode(), response.getResponseMessage(), body -> {
+					try (OutputStream output = compressingStream(body, encoding, this.level)) {
+						writer.writeBody(output);
+					}
+				});
+			} else {
+				InputStream source = response.getContentSource().get();
+				compressed = new ResponseInfo(response.getResponseCode(), response.getResponseMessage(), GZIP.equals(encoding) ? gzipStream(source, this.level) : deflateStream(source, this.level));
+			}
+			HttpHeaders compressedAttributes = compressed.getAttributes();
+			attributes.forEachValue((name, value) -> {
+				if (name != HttpHeaders.CONTENT_LENGTH) compressedAttributes.add(name, value);
+			});
+			compressed.getAttributes().put(HttpHeaders.CONTENT_ENCODING, encoding);
+			String etag = attributes.get(HttpHeaders.ETAG);
+			if (etag != null) compressed.getAttributes().put(HttpHeaders.ETAG, variantETag(etag, encoding));
+			return compressed;
+		} catch (IOException e) {
+			Log.defaultLogger().error("Failed to compress response!", e);
+			return response;
+		}
+	}
+	
+	/**
+	 * Compresses an buffered payload, the variants are cached by the path, the entity tag and the encoding of the response.<br>
+	 * The entity tag alone is not sufficient, since it is only unique per resource.
+	 */
+	protected byte[] compressVariant(String path, String etag, String encoding, ByteBuffer content) throws IOException {
+		if (etag == null) return compressBytes(content.duplicate(), encoding, this.level);
+		String variantETag = variantETag(etag, encoding);
+		String key = path + ' ' + variantETag;
+		Resource variant = this.variantCache.get(key);
+		if (variant != null) return variant.content();
+		byte[] compressed = compressBytes(content.duplicate(), encoding, this.level);
+		this.variantCache.put(key, new Resource(compressed, null, -1, variantETag));
+		return compressed;
+	}
+	
+	public boolean isCompressible(String contentType) {
+		if (contentType == null) return false;
+		int parameters = contentType.indexOf(';');
+		String type = (parameters >= 0 ? contentType.substring(0, parameters) : contentType).trim().toLowerCase();
+		for (String allowed : this.contentTypes) {
+			if (allowed.endsWith("/") ? type.startsWith(allowed) : type.equals(allowed)) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Selects the encoding from the Accept-Encoding field of the request, gzip is preferred over deflate if both have the same quality.
+	 * @return The selected encoding or null, if no supported encoding is accepted
+	 */
+	public static String negotiate(String acceptEncoding) {
+		if (acceptEncoding == null) return null;
+		float gzip = -1, deflate = -1, wildcard = -1;
+		for (String entry : acceptEncoding.split(",")) {
+			int parameters = entry.indexOf(';');
+			String coding = (parameters >= 0 ? entry.substring(0, parameters) : entry).trim().toLowerCase();
+			float quality = 1;
+			if (parameters >= 0) {
+				String parameter = entry.substring(parameters + 1).trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						quality = Float.parseFloat(parameter.substring(2));
+					} catch (NumberFormatException e) {
+						quality = 0;
+					}
+				}
+			}
+			switch (coding) {
+			case GZIP: gzip = quality; break;
+			case DEFLATE: deflate = quality; break;
+			case "*": wildcard = quality; break;
+			}
+		}
+		if (gzip < 0) gzip = wildcard;
+		if (deflate < 0) deflate = wildcard;
+		if (gzip <= 0 && deflate <= 0) return null;
+		return gzip >= deflate ? GZIP : DEFLATE;
+	}
+	
+	public static String variantETag(String etag, String encoding) {
+		if (!etag.endsWith("\"")) return etag;
+		return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+	}
+	
+	public static byte[] compressBytes(ByteBuffer content, String encoding, int level) throws IOException {
+		InputStream source;
+		if (content.hasArray()) {
+			source = new ByteArrayInputStream(content.array(), content.arrayOffset() + content.position(), content.remaining());
+		} else {
+			byte[] bytes = new byte[content.remaining()];
+			content.get(bytes);
+			source = new ByteArrayInputStream(bytes);
+		}
+		try (InputStream compressed = GZIP.equals(encoding) ? gzipStream(source, level) : deflateStream(source, level)) {
+			return compressed.readAllBytes();
+		}
+	}
+	
+	/**
+	 * Creates a stream which compresses the written bytes before writing them to the target stream.<br>
+	 * Flushing the stream flushes the compressor, so that all written bytes can be decompressed by the client.
+	 */
+	public static OutputStream compressingStream(OutputStream target, String encoding, int level) throws IOException {
+		if (GZIP.equals(encoding)) {
+			return new GZIPOutputStream(target, true) {
+				{
+					this.def.setLevel(level);
+				}
+			};
+		}
+		Deflater deflater = new Deflater(level);
+		return new DeflaterOutputStream(target, deflater, true) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				deflater.end();
+			}
+		};
+	}
+	
+	/**
+	 * Creates a stream which compresses the source stream in the zlib format ("deflate" content coding) while it is read.
+	 */
+	public static InputStream deflateStream(InputStream source, int level) {
+		Deflater deflater = new Deflater(level);
+		return new DeflaterInputStream(source, deflater) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				deflater.end();
+			}
+		};
+	}
+	
+	/**
+	 * Creates a stream which compresses the source stream in the gzip format while it is read.
+	 */
+	public static InputStream gzipStream(InputStream source, int level) {
+		CRC32 crc = new CRC32();
+		Deflater deflater = new Deflater(level, true);
+		InputStream body = new DeflaterInputStream(new CheckedInputStream(source, crc), deflater);
+		return new SequenceInputStream(new Enumeration<InputStream>() {
+			
+			private int part = 0;
+			
+			@Override
+			public boolean hasMoreElements() {
+				return this.part < 3;
+			}
+			
+			@Override
+			public InputStream nextElement() {
+				switch (this.part++) {
+				case 0: return new ByteArrayInputStream(GZIP_HEADER);
+				case 1: return body;
+				default:
+					// The trailer is requested after the body was read completely
+					long size = deflater.getBytesRead();
+					long checksum = crc.getValue();
+					deflater.end();
+					return new ByteArrayInputStream(new byte[] {
+							(byte) checksum, (byte) (checksum >> 8), (byte) (checksum >> 16), (byte) (checksum >> 24),
+							(byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)
+					});
+				}
+			}
+			
+		});
+	}
+	
+}
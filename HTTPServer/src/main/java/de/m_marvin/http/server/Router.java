@@ -0,0 +1,267 @@
+package de.m_marvin.http.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.m_marvin.http.HttpCode;
+import de.m_marvin.http.HttpHeaders;
+import de.m_marvin.http.HttpRequest;
+import de.m_marvin.http.PathInfo;
+import de.m_marvin.http.ResponseInfo;
+import de.m_marvin.http.metrics.ServerMetrics;
+
+/**
+ * Dispatches requests to handlers registered for a method and a path pattern.<br>
+ * Patterns consist of static segments, parameter segments like <code>{id}</code> and an optional trailing wildcard <code>*</code>,
+ * for example <code>/api/channels/{id}/*</code>.<br>
+ * The routes are stored in a radix tree, so that the time for matching a path only depends on the path length and not on the number of routes.
+ * Static segments take precedence over parameters, parameters over the wildcard.<br>
+ * Paths without matching route are answered with 404 (Not Found), paths with routes for other methods only with 405 (Method Not Allowed).<br>
+ * Routes have to be registered before the router receives requests.
+ * @author Marvin Koehler
+ *
+ */
+public class Router {
+	
+	public static final String WILDCARD = "*";
+	
+	@FunctionalInterface
+	public static interface RouteHandler {
+		/**
+		 * @param path The path of the request
+		 * @param attributes The header fields of the request
+		 * @param parameters The values of the parameter segments of the route, the wildcard is stored under the key "*"
+		 * @param body The payload of the request
+		 */
+		public ResponseInfo handleRequest(PathInfo path, HttpHeaders attributes, Map<String, String> parameters, RequestBody body);
+	}
+	
+	protected static record Route(RouteHandler handler, String[] parameterNames, String pattern) {}
+	
+	protected static class Node {
+		
+		protected String prefix;
+		protected char[] indices = new char[0];
+		protected Node[] children = new Node[0];
+		protected Node parameter;
+		protected Node wildcard;
+		protected EnumMap<HttpRequest, Route> routes;
+		
+		protected Node(String prefix) {
+			this.prefix = prefix;
+		}
+		
+		protected Node child(char c) {
+			for (int i = 0; i < this.indices.length; i++) {
+				if (this.indices[i] == c) return this.children[i];
+			}
+			return null;
+		}
+		
+		protected void addChild(Node child) {
+			this.indices = Arrays.copyOf(this.indices, this.indices.length + 1);
+			this.children = Arrays.copyOf(this.children, this.children.length + 1);
+			this.indices[this.indices.length - 1] = child.prefix.charAt(0);
+			this.children[this.children.length - 1] = child;
+		}
+		
+		protected void replaceChild(Node child) {
+			for (int i = 0; i < this.indices.length; i++) {
+				if (this.indices[i] == child.prefix.charAt(0)) this.children[i] = child;
+			}
+		}
+		
+	}
+	
+	protected final Node root = new Node("");
+	protected int maxParameters = 0;
+	protected RouteHandler notFoundHandler;
+	protected volatile ServerMetrics metrics;
+	
+	/**
+	 * Registers an handler for the method and path pattern.
+	 * @param method The method of the requests
+	 * @param pattern The path pattern, starting with '/'
+	 * @param handler The handler for matching requests
+	 * @throws IllegalArgumentException If the pattern is invalid or already registered for the method
+	 */
+	public Router route(HttpRequest method, String pattern, RouteHandler handler) {
+		if (!pattern.startsWith("/")) throw new IllegalArgumentException("Route pattern has to start with '/': " + pattern);
+		Node node = this.root;
+		List<String> parameterNames = new ArrayList<>();
+		StringBuilder text = new StringBuilder();
+		int start = 0;
+		while (start <= pattern.length()) {
+			int end = pattern.indexOf('/', start);
+			if (end < 0) end = pattern.length();
+			String segment = pattern.substring(start, end);
+			if (segment.startsWith("{") && segment.endsWith("}") && segment.length() > 2) {
+				node = insertStatic(node, text.toString());
+				text.setLength(0);
+				if (node.parameter == null) node.parameter = new Node("");
+				node = node.parameter;
+				parameterNames.add(segment.substring(1, segment.length() - 1));
+			} else if (segment.equals(WILDCARD)) {
+				if (end != pattern.length()) throw new IllegalArgumentException("Wildcard has to be the last segment: " + pattern);
+				node = insertStatic(node, text.toString());
+				text.setLength(0);
+				if (node.wildcard == null) node.wildcard = new Node("");
+				node = node.wildcard;
+				parameterNames.add(WILDCARD);
+			} else if (segment.contains("{") || segment.contains("}") || segment.contains(WILDCARD)) {
+				throw new IllegalArgumentException("Parameters and wildcards have to span a complete segment: " + pattern);
+			} else {
+				text.append(segment);
+			}
+			if (end < pattern.length()) text.append('/');
+			start = end + 1;
+		}
+		node = insertStatic(node, text.toString());
+		if (node.routes == null) node.routes = new EnumMap<>(HttpRequest.class);
+		if (node.routes.containsKey(method)) throw new IllegalArgumentException("Route already registered: " + method.getName() + " " + pattern);
+		node.routes.put(method, new Route(handler, parameterNames.toArray(String[]::new), pattern));
+		this.maxParameters = Math.max(this.maxParameters, parameterNames.size());
+		return this;
+	}
+	
+	public Router get(String pattern, RouteHandler handler) {
+		return route(HttpRequest.GET, pattern, handler);
+	}
+	
+	public Router post(String pattern, RouteHandler handler) {
+		return route(HttpRequest.POST, pattern, handler);
+	}
+	
+	public Router put(String pattern, RouteHandler handler) {
+		return route(HttpRequest.PUT, pattern, handler);
+	}
+	
+	public Router delete(String pattern, RouteHandler handler) {
+		return route(HttpRequest.DELETE, pattern, handler);
+	}
+	
+	/**
+	 * Sets the handler for requests without matching route, instead of answering them with 404 (Not Found).
+	 */
+	public Router setNotFoundHandler(RouteHandler notFoundHandler) {
+		this.notFoundHandler = notFoundHandler;
+		return this;
+	}
+	
+	/**
+	 * Records the number of requests and the handler latency of each route, called by the server the router is set on.
+	 * @param metrics The metrics to record to, or null to disable the recording
+	 */
+	public void setMetrics(ServerMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	protected Node insertStatic(Node node, String text) {
+		while (!text.isEmpty()) {
+			Node child = node.child(text.charAt(0));
+			if (child == null) {
+				child = new Node(text);
+				node.addChild(child);
+				return child;
+			}
+			int common = 0;
+			int length = Math.min(child.prefix.length(), text.length());
+			while (common < length && child.prefix.charAt(common) == text.charAt(common)) common++;
+			if (common < child.prefix.length()) {
+				// Split the child at the end of the common prefix
+				Node split = new Node(child.prefix.substring(0, common));
+				child.prefix = child.prefix.substring(common);
+				split.addChild(child);
+				node.replaceChild(split);
+				child = split;
+			}
+			text = text.substring(common);
+			node = child;
+		}
+		return node;
+	}
+	
+	/**
+	 * Searches the node of the route matching the path, collecting the parameter values.
+	 * @param method The method the route has to be registered for, or null to accept routes of any method
+	 */
+	protected Node find(Node node, String path, int position, String[] values, int count, HttpRequest method) {
+		if (position == path.length() && node.routes != null && (method == null || getRoute(node, method) != null)) return node;
+		if (position < path.length()) {
+			Node child = node.child(path.charAt(position));
+			if (child != null && path.startsWith(child.prefix, position)) {
+				Node result = find(child, path, position + child.prefix.length(), values, count, method);
+				if (result != null) return result;
+			}
+			if (node.parameter != null) {
+				int end = path.indexOf('/', position);
+				if (end < 0) end = path.length();
+				if (end > position) {
+					Node result = find(node.parameter, path, end, values, count + 1, method);
+					if (result != null) {
+						values[count] = path.substring(position, end);
+						return result;
+					}
+				}
+			}
+		}
+		if (node.wildcard != null && node.wildcard.routes != null && (method == null || getRoute(node.wildcard, method) != null)) {
+			values[count] = path.substring(position);
+			return node.wildcard;
+		}
+		return null;
+	}
+	
+	protected static Route getRoute(Node node, HttpRequest method) {
+		Route route = node.routes.get(method);
+		// HEAD requests are answered by the GET handler if no separate handler is registered
+		if (route == null && method == HttpRequest.HEADER) route = node.routes.get(HttpRequest.GET);
+		return route;
+	}
+	
+	/**
+	 * Dispatches the request to the handler of the matching route.
+	 * @return The response of the handler, or an 404 (Not Found) or 405 (Method Not Allowed) response
+	 */
+	public ResponseInfo handleRequest(HttpRequest method, PathInfo path, HttpHeaders attributes, RequestBody body) {
+		String resourcePath = path.getPath();
+		String[] values = new String[this.maxParameters];
+		Node node = find(this.root, resourcePath, 0, values, 0, method);
+		if (node != null) {
+			Route route = getRoute(node, method);
+			Map<String, String> parameters;
+			if (route.parameterNames().length == 0) {
+				parameters = Map.of();
+			} else {
+				parameters = new HashMap<>(route.parameterNames().length * 2);
+				for (int i = 0; i < route.parameterNames().length; i++) parameters.put(route.parameterNames()[i], values[i]);
+			}
+			ServerMetrics metrics = this.metrics;
+			if (metrics == null) return route.handler().handleRequest(path, attributes, parameters, body);
+			long start = System.nanoTime();
+			ResponseInfo response = null;
+			try {
+				response = route.handler().handleRequest(path, attributes, parameters, body);
+				return response;
+			} finally {
+				metrics.recordRoute(route.pattern(), response != null ? response.getResponseCode() : null, System.nanoTime() - start);
+			}
+		}
+		node = find(this.root, resourcePath, 0, values, 0, null);
+		if (node != null) {
+			StringBuilder allow = new StringBuilder();
+			for (HttpRequest allowed : node.routes.keySet()) {
+				if (allow.length() > 0) allow.append(", ");
+				allow.append(allowed.getName());
+			}
+			return new ResponseInfo(HttpCode.METHOD_NOT_ALLOWED, "Method Not Allowed", null).addAdditionalInfo(HttpHeaders.ALLOW, allow);
+		}
+		if (this.notFoundHandler != null) return this.notFoundHandler.handleRequest(path, attributes, Map.of(), body);
+		return new ResponseInfo(HttpCode.NOT_FOUND, "Not Found", null);
+	}
+	
+}
@@ -0,0 +1,1016 @@
+package de.m_marvin.http.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.net.ssl.SSLEngine;
+
+import de.m_marvin.http.BufferPool;
+import de.m_marvin.http.BufferPool.PooledBuffer;
+import de.m_marvin.http.HttpCode;
+import de.m_marvin.http.HttpHeaders;
+import de.m_marvin.http.RequestInfo;
+import de.m_marvin.http.ResponseInfo;
+import de.m_marvin.http.metrics.ServerMetrics;
+import de.m_marvin.simplelogging.Log;
+
+/**
+ * Non-blocking connection engine for the {@link HttpServer}.<br>
+ * Connections are accepted by one or more acceptor threads (shards) and distributed over a fixed number of event-loop threads,
+ * each of which multiplexes its connections with an {@link Selector}. With shard affinity, every shard only uses its own share of the event-loops.<br>
+ * Only the request handlers are run on the executor of the server, reading the request header and writing the response is done non-blocking on the event-loops.<br>
+ * If the server creates an {@link SSLEngine} for the connections, they are encrypted by an {@link TlsChannel}.
+ * The handshake is driven by the event-loops as well, only the delegated tasks of the engine are run on the handshake executor of the server.
+ *
+ * @author Marvin Koehler
+ */
+public class SelectorEngine {
+	
+	public static final int INPUT_BUFFER_SIZE = 0x2000;
+	public static final int TRANSFER_BUFFER_SIZE = 0x4000;
+	public static final int TIMEOUT_CHECK_INTERVAL = 250;
+	protected static final int CHUNK_HEADER_SIZE = 10;
+	
+	protected final HttpServer server;
+	protected final EventLoop[] eventLoops;
+	protected ServerSocketChannel[] serverChannels;
+	
+	public SelectorEngine(HttpServer server, int eventLoops) {
+		if (eventLoops < 1) throw new IllegalArgumentException("At least one event loop is required!");
+		this.server = server;
+		this.eventLoops = new EventLoop[eventLoops];
+	}
+	
+	/**
+	 * Starts the event loops and one acceptor thread per listening channel.
+	 * @param serverChannels The bound listening channels of the shards, the same channel can be used by multiple shards
+	 */
+	public void open(ServerSocketChannel[] serverChannels) throws IOException {
+		this.serverChannels = serverChannels;
+		for (int i = 0; i < this.eventLoops.length; i++) {
+			this.eventLoops[i] = new EventLoop("HTTP Event Loop #" + i);
+		}
+		for (int i = 0; i < serverChannels.length; i++) {
+			int shard = i;
+			Thread acceptorThread = new Thread(() -> acceptConnections(shard), this.server.acceptorName(shard));
+			acceptorThread.setDaemon(true);
+			acceptorThread.start();
+		}
+	}
+	
+	/**
+	 * Closes the listening channels, the accepted connections are still served by the event loops until the engine is closed.
+	 */
+	public void stopAccepting() throws IOException {
+		for (ServerSocketChannel serverChannel : this.serverChannels) serverChannel.close();
+	}
+	
+	public void close() throws IOException {
+		if (this.serverChannels != null) stopAccepting();
+		for (EventLoop loop : this.eventLoops) {
+			if (loop != null) loop.close();
+		}
+	}
+	
+	public boolean isClosed() {
+		if (this.serverChannels == null) return true;
+		for (ServerSocketChannel serverChannel : this.serverChannels) {
+			if (serverChannel.isOpen()) return false;
+		}
+		return true;
+	}
+	
+	protected void acceptConnections(int shard) {
+		ServerSocketChannel serverChannel = this.serverChannels[shard];
+		// With shard affinity every n-th event loop starting at the index of the shard is used, wrapped around if there are less loops than shards
+		int first = this.server.shardAffinity ? shard % this.eventLoops.length : 0;
+		int stride = this.server.shardAffinity ? this.serverChannels.length : 1;
+		int nextLoop = first;
+		while (serverChannel.isOpen()) {
+			try {
+				SocketChannel clientChannel = serverChannel.accept();
+				if (!this.server.admission.acquireConnection()) {
+					this.server.rejectConnection(clientChannel.socket());
+					continue;
+				}
+				try {
+					clientChannel.configureBlocking(false);
+				} catch (IOException e) {
+					Log.defaultLogger().error("Failed to configure accepted connection!", e);
+					closeQuietly(clientChannel);
+					this.server.admission.releaseConnection();
+					continue;
+				}
+				this.eventLoops[nextLoop].register(clientChannel);
+				nextLoop += stride;
+				if (nextLoop >= this.eventLoops.length) nextLoop = first;
+			} catch (ClosedChannelException e) {
+				break;
+			} catch (IOException e) {
+				if (serverChannel.isOpen())
+					Log.defaultLogger().error("IOException while accepting request!", e);
+			}
+		}
+	}
+	
+	protected class EventLoop implements Runnable {
+		
+		protected final Selector selector;
+		protected final Thread thread;
+		protected final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		protected final Set<Connection> connections = new HashSet<>();
+		protected Connection[] timeoutScan = new Connection[0];
+		protected long nextTimeoutCheck = 0;
+		protected volatile boolean running = true;
+		
+		public EventLoop(String name) throws IOException {
+			this.selector = Selector.open();
+			this.thread = new Thread(this, name);
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+		
+		public void register(SocketChannel channel) {
+			execute(() -> {
+				try {
+					SSLEngine engine = SelectorEngine.this.server.createSSLEngine((InetSocketAddress) channel.getRemoteAddress());
+					Connection connection = new Connection(this, channel, engine != null ? new TlsChannel(channel, engine) : null);
+					connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+					this.connections.add(connection);
+				} catch (IOException e) {
+					Log.defaultLogger().error("Failed to register connection on event loop!", e);
+					closeQuietly(channel);
+					SelectorEngine.this.server.admission.releaseConnection();
+				}
+			});
+		}
+		
+		public void execute(Runnable task) {
+			this.tasks.add(task);
+			this.selector.wakeup();
+		}
+		
+		public void close() {
+			this.running = false;
+			this.selector.wakeup();
+		}
+		
+		protected void checkTimeouts(long now) {
+			// Copied into an reused array, since connections remove themselves when they time out
+			this.timeoutScan = this.connections.toArray(this.timeoutScan);
+			for (int i = 0; i < this.timeoutScan.length && this.timeoutScan[i] != null; i++) {
+				this.timeoutScan[i].checkTimeout(now);
+				this.timeoutScan[i] = null;
+			}
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while (this.running) {
+					this.selector.select(TIMEOUT_CHECK_INTERVAL);
+					
+					Runnable task;
+					while ((task = this.tasks.poll()) != null) task.run();
+					
+					Iterator<SelectionKey> selected = this.selector.selectedKeys().iterator();
+					while (selected.hasNext()) {
+						SelectionKey key = selected.next();
+						selected.remove();
+						Connection connection = (Connection) key.attachment();
+						try {
+							if (!key.isValid()) continue;
+							if (key.isReadable()) connection.onReadable();
+							if (key.isValid() && key.isWritable()) connection.onWritable();
+						} catch (IOException e) {
+							connection.close();
+						}
+					}
+					
+					// Wakeups happen on every event, the timeouts are only checked once per interval
+					long now = System.currentTimeMillis();
+					if (now >= this.nextTimeoutCheck) {
+						this.nextTimeoutCheck = now + TIMEOUT_CHECK_INTERVAL;
+						checkTimeouts(now);
+					}
+				}
+			} catch (IOException e) {
+				Log.defaultLogger().error("IOException in HTTP event loop!", e);
+			} finally {
+				for (Connection connection : this.connections.toArray(Connection[]::new)) {
+					connection.close();
+				}
+				try {
+					this.selector.close();
+				} catch (IOException e) {
+					Log.defaultLogger().error("Could not close selector!", e);
+				}
+			}
+		}
+		
+	}
+	
+	protected class Connection {
+		
+		protected final EventLoop loop;
+		protected final SocketChannel channel;
+		protected final TlsChannel tls;
+		protected final InetSocketAddress remoteAddress;
+		protected SelectionKey key;
+		protected final PooledBuffer input = BufferPool.DIRECT.acquire(INPUT_BUFFER_SIZE);
+		protected final ByteBuffer inputBuffer = this.input.buffer();
+		protected final RequestParser parser;
+		protected long receptionStart;
+		protected long requestStart;
+		protected long idleSince;
+		protected boolean handshaking;
+		protected boolean receiving = true;
+		protected int requestCount = 0;
+		protected BodyInput bodyInput;
+		
+		protected ResponseInfo response;
+		protected boolean keepAlive;
+		protected PooledBuffer header;
+		protected PooledBuffer transfer;
+		protected ByteBuffer outputBuffer;
+		protected final ByteBuffer[] gatherBuffers = new ByteBuffer[2];
+		protected ReadableByteChannel contentSource;
+		protected BodyOutput bodyOutput;
+		protected boolean chunked;
+		protected ByteBuffer contentBuffer;
+		protected FileChannel fileSource;
+		protected long filePosition;
+		protected long fileRemaining;
+		protected boolean closed = false;
+		
+		/**
+		 * @param tls The encryption layer of the connection, or null for plain connections
+		 */
+		public Connection(EventLoop loop, SocketChannel channel, TlsChannel tls) {
+			this.loop = loop;
+			this.channel = channel;
+			this.tls = tls;
+			this.handshaking = tls != null;
+			this.remoteAddress = (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+			this.parser = SelectorEngine.this.server.createRequestParser();
+			this.receptionStart = System.currentTimeMillis();
+		}
+		
+		protected int read(ByteBuffer buffer) throws IOException {
+			return this.tls != null ? this.tls.read(buffer) : this.channel.read(buffer);
+		}
+		
+		protected int write(ByteBuffer buffer) throws IOException {
+			return this.tls != null ? this.tls.write(buffer) : this.channel.write(buffer);
+		}
+		
+		protected long write(ByteBuffer[] buffers) throws IOException {
+			return this.tls != null ? this.tls.write(buffers) : this.channel.write(buffers);
+		}
+		
+		/**
+		 * @return True if all encrypted bytes were written to the channel, always true for plain connections
+		 */
+		protected boolean flush() throws IOException {
+			return this.tls == null || this.tls.flush();
+		}
+		
+		/**
+		 * @return True if the encryption layer holds received bytes which fit into the input buffer, the selector does not signal them
+		 */
+		protected boolean hasBufferedInput() {
+			return this.tls != null && this.tls.hasBufferedInput() && this.inputBuffer.hasRemaining();
+		}
+		
+		protected void onReadable() throws IOException {
+			if (this.handshaking) {
+				continueHandshake();
+				return;
+			}
+			if (this.bodyInput != null) {
+				this.bodyInput.onReadable();
+				return;
+			}
+			do {
+				int read = read(this.inputBuffer);
+				if (read < 0) {
+					close();
+					return;
+				}
+				SelectorEngine.this.server.metrics.recordBytesReceived(read);
+				processInput();
+			} while (this.receiving && !this.closed && hasBufferedInput());
+		}
+		
+		/**
+		 * Continues the TLS handshake, called by the event loop when the channel is ready or the delegated tasks are complete.
+		 */
+		protected void continueHandshake() throws IOException {
+			switch (this.tls.handshake()) {
+			case NEED_READ:
+				this.key.interestOps(SelectionKey.OP_READ);
+				break;
+			case NEED_WRITE:
+				this.key.interestOps(SelectionKey.OP_WRITE);
+				break;
+			case NEED_TASK:
+				this.key.interestOps(0);
+				runHandshakeTasks();
+				break;
+			case FINISHED:
+				this.handshaking = false;
+				HttpServer.ProtocolHandler handler = SelectorEngine.this.server.getProtocolHandler(this.tls.getEngine().getApplicationProtocol());
+				if (handler != null) {
+					// The connection uses an other protocol negotiated by ALPN, it is handed over like an kept socket
+					Socket socket = detach();
+					dispatch(() -> SelectorEngine.this.server.handOverConnection(handler, socket));
+					return;
+				}
+				this.receptionStart = System.currentTimeMillis();
+				this.key.interestOps(SelectionKey.OP_READ);
+				// The client might have sent its request together with the end of the handshake
+				if (this.tls.hasBufferedInput()) onReadable();
+				break;
+			}
+		}
+		
+		/**
+		 * Runs the delegated tasks of the handshake, like the key exchange and certificate validation, on the handshake executor.
+		 */
+		protected void runHandshakeTasks() {
+			try {
+				SelectorEngine.this.server.getHandshakeExecutor().execute(() -> {
+					this.tls.runDelegatedTasks();
+					this.loop.execute(this::resumeHandshake);
+				});
+			} catch (RejectedExecutionException e) {
+				Log.defaultLogger().error("Handshake executor rejected connection, closing socket!");
+				close();
+			}
+		}
+		
+		protected void resumeHandshake() {
+			if (this.closed) return;
+			try {
+				continueHandshake();
+			} catch (IOException e) {
+				close();
+			}
+		}
+		
+		protected void processInput() {
+			this.inputBuffer.flip();
+			if (this.requestCount == 0 && this.tls == null && SelectorEngine.this.server.usesHttp2()) {
+				int matched = Http2Connection.matchPreface(this.inputBuffer);
+				if (matched == Http2Connection.PREFACE.length) {
+					startHttp2();
+					return;
+				} else if (matched == this.inputBuffer.remaining()) {
+					// Wait for the rest of the preface
+					this.inputBuffer.compact();
+					return;
+				}
+			}
+			RequestInfo request = null;
+			try {
+				if (!this.inputBuffer.hasRemaining()) return;
+				if (this.requestCount > 0 && this.receptionStart == 0) this.receptionStart = System.currentTimeMillis();
+				if (this.parser.parse(this.inputBuffer)) {
+					this.receiving = false;
+					request = SelectorEngine.this.server.createRequest(this.parser, this.remoteAddress);
+				}
+			} catch (HttpParseException e) {
+				SelectorEngine.this.server.metrics.recordParseError();
+				sendError(e.getCode(), e.getMessage());
+			} catch (IOException e) {
+				SelectorEngine.this.server.metrics.recordParseError();
+				sendError(HttpCode.BAD_REQUEST, "Invalid Request");
+			} finally {
+				this.inputBuffer.compact();
+			}
+			if (request != null) startRequest(request);
+		}
+		
+		/**
+		 * Hands the connection over to an blocking HTTP/2 connection, after the client sent the connection preface (prior knowledge).
+		 */
+		protected void startHttp2() {
+			ByteBuffer received = ByteBuffer.allocate(this.inputBuffer.remaining()).put(this.inputBuffer).flip();
+			try {
+				Socket socket = detach();
+				SelectorEngine.this.server.handOverConnection(s -> SelectorEngine.this.server.handleHttp2(s, SelectorEngine.this.server.continueInput(received, s)), socket);
+			} catch (IOException e) {
+				Log.defaultLogger().error("Failed to hand over HTTP/2 connection!", e);
+				close();
+			}
+		}
+		
+		protected void startRequest(RequestInfo request) {
+			this.requestStart = System.nanoTime();
+			// The payload is read by the handler through the body input, the next request is only read after the response was sent
+			BodyInput bodyInput = request.isChunked() || request.getPayloadLength() > 0 ? new BodyInput() : null;
+			this.bodyInput = bodyInput;
+			ResponseInfo limited = SelectorEngine.this.server.checkRateLimit(request);
+			if (limited != null) {
+				// Answered directly by the event loop, the connection is only reused if the request has no payload
+				sendResponse(request, limited, bodyInput == null);
+				return;
+			}
+			this.key.interestOps(bodyInput != null && this.inputBuffer.hasRemaining() ? SelectionKey.OP_READ : 0);
+			SelectorEngine.this.server.admission.submit(() -> dispatchRequest(request, bodyInput), () -> this.loop.execute(() -> rejectRequest(request)));
+			pollBufferedInput();
+		}
+		
+		/**
+		 * Runs the handler of an request admitted by the admission control on the executor, the slot of the request is released after the handler returned.<br>
+		 * Called on the thread which admitted the request, which is not necessarily the event loop.
+		 */
+		protected void dispatchRequest(RequestInfo request, BodyInput bodyInput) {
+			AdmissionControl admission = SelectorEngine.this.server.admission;
+			try {
+				SelectorEngine.this.server.getExecutor().execute(() -> {
+					try {
+						handleRequest(request, bodyInput);
+					} finally {
+						admission.release();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				admission.release();
+				this.loop.execute(() -> rejectRequest(request));
+			}
+		}
+		
+		/**
+		 * Answers the request with 503 (Service Unavailable) and closes the connection after the response, the payload is not read.
+		 */
+		protected void rejectRequest(RequestInfo request) {
+			if (this.closed) return;
+			sendResponse(request, SelectorEngine.this.server.createUnavailableResponse(), false);
+		}
+		
+		/**
+		 * Sends an response created by the server instead of the handler from the event loop, the payload of the request is not read.
+		 * @param reusable If the connection can be reused after the response
+		 */
+		protected void sendResponse(RequestInfo request, ResponseInfo response, boolean reusable) {
+			if (this.bodyInput != null) {
+				this.bodyInput.abort();
+				this.bodyInput = null;
+			}
+			this.requestCount++;
+			this.keepAlive = SelectorEngine.this.server.prepareConnection(request, response, this.requestCount, reusable);
+			PooledBuffer header = BufferPool.DIRECT.acquire(HttpServer.HEADER_BUFFER_SIZE);
+			startResponse(response, header, SelectorEngine.this.server.encodeHeader(header.buffer(), response.getResponseCode(), response.getResponseMessage(), response.getAttributes()));
+		}
+		
+		protected void dispatch(Runnable task) {
+			try {
+				SelectorEngine.this.server.getExecutor().execute(task);
+			} catch (RejectedExecutionException e) {
+				Log.defaultLogger().error("Executor rejected connection, closing socket!");
+				close();
+			}
+		}
+		
+		protected void handleRequest(RequestInfo request, BodyInput bodyInput) {
+			try {
+				RequestBody body = SelectorEngine.this.server.createRequestBody(request, bodyInput != null ? bodyInput : InputStream.nullInputStream(), this::sendContinue);
+				ResponseInfo response = SelectorEngine.this.server.handleMessage(request, body);
+				if (response == null) {
+					this.loop.execute(this::close);
+					return;
+				}
+				boolean keepAlive = SelectorEngine.this.server.prepareConnection(request, response, this.requestCount + 1, body.isReusable());
+				// Discard the payload not read by the handler, so that the event loop can read the next request after the response
+				boolean reusable = keepAlive && drainBody(body);
+				PooledBuffer header = BufferPool.DIRECT.acquire(HttpServer.HEADER_BUFFER_SIZE);
+				ByteBuffer output = SelectorEngine.this.server.encodeHeader(header.buffer(), response.getResponseCode(), response.getResponseMessage(), response.getAttributes());
+				BodyOutput bodyOutput = response.getWriterSource().isPresent() || isPumped(response) ? new BodyOutput() : null;
+				this.loop.execute(() -> {
+					this.requestCount++;
+					this.keepAlive = reusable;
+					this.bodyInput = null;
+					this.bodyOutput = bodyOutput;
+					startResponse(response, header, output);
+				});
+				if (bodyOutput != null) writeBody(response, bodyOutput);
+			} catch (IOException | RuntimeException e) {
+				Log.defaultLogger().error("Exception while handling request!", e);
+				this.loop.execute(this::close);
+			}
+		}
+		
+		protected boolean drainBody(RequestBody body) {
+			try {
+				return body.drain();
+			} catch (IOException e) {
+				return false;
+			}
+		}
+		
+		/**
+		 * Sends the interim 100 (Continue) response, called on the executor before the handler reads the payload.
+		 */
+		protected void sendContinue() {
+			this.loop.execute(() -> {
+				try {
+					// The previous response was sent completely before this request was read, so the send buffer can take the whole response
+					ByteBuffer response = ByteBuffer.wrap(HttpServer.CONTINUE_RESPONSE);
+					SelectorEngine.this.server.metrics.recordBytesSent(write(response));
+					if (response.hasRemaining() || !flush()) close();
+				} catch (IOException e) {
+					close();
+				}
+			});
+		}
+		
+		/**
+		 * Runs the body writer of the response on the executor, the written payload is handed over to the event loop by the {@link BodyOutput}.<br>
+		 * Payload streams which might block are pumped the same way, so that they are never read on the event loop.
+		 */
+		protected void writeBody(ResponseInfo response, BodyOutput bodyOutput) {
+			try {
+				OutputStream body = response.isChunked() ? new ChunkedOutputStream(bodyOutput) : bodyOutput;
+				if (response.getWriterSource().isPresent()) {
+					response.getWriterSource().get().writeBody(body);
+				} else {
+					try (InputStream source = response.getContentSource().get()) {
+						source.transferTo(body);
+					}
+				}
+				body.close();
+				bodyOutput.close();
+			} catch (IOException | RuntimeException e) {
+				if (!bodyOutput.isAborted()) Log.defaultLogger().error("Exception while writing response body!", e);
+				bodyOutput.abort();
+				this.loop.execute(this::close);
+			}
+		}
+		
+		/**
+		 * Starts sending the response from the event loop.
+		 * @param header The pooled buffer of the header, released after the response was sent
+		 * @param output The encoded header, which is not necessarily contained in the pooled buffer
+		 */
+		protected void startResponse(ResponseInfo response, PooledBuffer header, ByteBuffer output) {
+			if (!this.key.isValid()) {
+				// A pumped payload stream is closed by the executor after the abort
+				if (response != null && this.bodyOutput == null) closeContent(response);
+				if (this.bodyOutput != null) this.bodyOutput.abort();
+				header.release();
+				return;
+			}
+			this.response = response;
+			this.header = header;
+			this.outputBuffer = output;
+			this.chunked = response != null && response.isChunked();
+			if (response != null && response.getContentSource().isPresent() && this.bodyOutput == null) {
+				this.contentSource = Channels.newChannel(response.getContentSource().get());
+			} else if (response != null && response.getBufferSource().isPresent()) {
+				this.contentBuffer = response.getBufferSource().get().duplicate();
+			} else if (response != null && response.getFileSource().isPresent()) {
+				this.fileSource = response.getFileSource().get();
+				this.filePosition = response.getFilePosition();
+				this.fileRemaining = response.getFileLength();
+			}
+			this.key.interestOps(SelectionKey.OP_WRITE);
+		}
+		
+		protected void resumeInput() {
+			if (this.bodyInput != null && this.key.isValid()) this.key.interestOps(SelectionKey.OP_READ);
+			pollBufferedInput();
+		}
+		
+		/**
+		 * Passes payload bytes held by the encryption layer to the body input, since the selector will not signal them.
+		 */
+		protected void pollBufferedInput() {
+			if (this.bodyInput == null || this.closed || !hasBufferedInput()) return;
+			try {
+				this.bodyInput.onReadable();
+			} catch (IOException e) {
+				close();
+			}
+		}
+		
+		protected void resumeOutput() {
+			if (this.bodyOutput != null && this.key.isValid()) this.key.interestOps(SelectionKey.OP_WRITE);
+		}
+		
+		protected void sendError(HttpCode code, String message) {
+			HttpHeaders attributes = new HttpHeaders();
+			attributes.put(HttpHeaders.CONNECTION, "close");
+			PooledBuffer header = BufferPool.DIRECT.acquire(HttpServer.HEADER_BUFFER_SIZE);
+			ByteBuffer output = SelectorEngine.this.server.encodeHeader(header.buffer(), code, message, attributes);
+			this.receiving = false;
+			this.keepAlive = false;
+			startResponse(null, header, output);
+		}
+		
+		protected void onWritable() throws IOException {
+			if (this.handshaking) {
+				continueHandshake();
+				return;
+			}
+			ServerMetrics metrics = SelectorEngine.this.server.metrics;
+			while (true) {
+				if (this.outputBuffer.hasRemaining()) {
+					if (this.contentBuffer != null) {
+						// Send the header and the buffered payload with one gathering write
+						this.gatherBuffers[0] = this.outputBuffer;
+						this.gatherBuffers[1] = this.contentBuffer;
+						metrics.recordBytesSent(write(this.gatherBuffers));
+					} else {
+						metrics.recordBytesSent(write(this.outputBuffer));
+					}
+					if (this.outputBuffer.hasRemaining()) return;
+				}
+				if (this.contentBuffer != null) {
+					metrics.recordBytesSent(write(this.contentBuffer));
+					if (this.contentBuffer.hasRemaining()) return;
+					this.contentBuffer = null;
+				}
+				if (this.fileSource != null) {
+					// Transfer the file directly from the file system to the socket
+					long transfered = this.fileSource.transferTo(this.filePosition, this.fileRemaining, this.tls != null ? this.tls : this.channel);
+					metrics.recordBytesSent(transfered);
+					this.filePosition += transfered;
+					this.fileRemaining -= transfered;
+					if (this.fileRemaining > 0) {
+						if (transfered == 0 && this.filePosition >= this.fileSource.size())
+							throw new IOException("Unable to transfer all payload bytes!");
+						return;
+					}
+					this.fileSource.close();
+					this.fileSource = null;
+					continue;
+				}
+				if (this.bodyOutput != null) {
+					ByteBuffer pending = this.bodyOutput.poll();
+					if (pending != null) {
+						metrics.recordBytesSent(write(pending));
+						if (pending.hasRemaining()) return;
+						this.bodyOutput.release();
+						continue;
+					}
+					if (!this.bodyOutput.isFinished()) {
+						// Wait for the writer, which resumes the output after it submitted the next buffer
+						if (!flush()) return;
+						this.key.interestOps(0);
+						return;
+					}
+					this.bodyOutput.recycle();
+					this.bodyOutput = null;
+					break;
+				}
+				if (this.contentSource == null) break;
+				if (this.transfer == null) this.transfer = BufferPool.DIRECT.acquire(TRANSFER_BUFFER_SIZE);
+				this.outputBuffer = this.transfer.buffer();
+				this.outputBuffer.clear();
+				// Leave space for the chunk size line and the chunk terminator
+				if (this.chunked) this.outputBuffer.position(CHUNK_HEADER_SIZE).limit(this.outputBuffer.capacity() - ChunkedOutputStream.CRLF.length);
+				int read;
+				try {
+					read = this.contentSource.read(this.outputBuffer);
+				} catch (IOException e) {
+					throw new IOException("Unable to transfer all payload bytes!", e);
+				}
+				if (this.chunked) {
+					frameChunk();
+				} else {
+					this.outputBuffer.flip();
+				}
+				if (read < 0) {
+					this.contentSource.close();
+					this.contentSource = null;
+					if (this.chunked) this.outputBuffer = ByteBuffer.wrap(ChunkedOutputStream.LAST_CHUNK);
+				}
+			}
+			// The last encrypted record might still be pending
+			if (!flush()) return;
+			finishResponse();
+		}
+		
+		/**
+		 * Frames the bytes read into the output buffer as a chunk and prepares the buffer for writing.
+		 */
+		protected void frameChunk() {
+			int length = this.outputBuffer.position() - CHUNK_HEADER_SIZE;
+			if (length <= 0) {
+				// An empty chunk would terminate the payload
+				this.outputBuffer.position(0).limit(0);
+				return;
+			}
+			byte[] sizeLine = (Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+			int start = CHUNK_HEADER_SIZE - sizeLine.length;
+			this.outputBuffer.put(start, sizeLine);
+			this.outputBuffer.limit(this.outputBuffer.capacity());
+			this.outputBuffer.put(ChunkedOutputStream.CRLF);
+			this.outputBuffer.limit(this.outputBuffer.position());
+			this.outputBuffer.position(start);
+		}
+		
+		protected void finishResponse() throws IOException {
+			ResponseInfo response = this.response;
+			this.response = null;
+			this.outputBuffer = null;
+			releaseOutput();
+			if (response != null) SelectorEngine.this.server.metrics.recordRequest(response.getResponseCode(), System.nanoTime() - this.requestStart);
+			if (response != null && response.isSocketKept()) {
+				// From this point onward, all control over this socket is transfered to the application.
+				Socket socket = detach();
+				SelectorEngine.this.server.trackHandOver(socket);
+				dispatch(() -> response.freeSocket(socket));
+				return;
+			}
+			if (this.keepAlive) {
+				// Reuse the connection, keep any already received bytes of the next request
+				this.parser.reset();
+				this.receiving = true;
+				this.receptionStart = 0;
+				this.idleSince = System.currentTimeMillis();
+				this.key.interestOps(SelectionKey.OP_READ);
+				processInput();
+				if (this.receiving && hasBufferedInput()) onReadable();
+				return;
+			}
+			close();
+		}
+		
+		/**
+		 * Removes the channel from the selector and switches plain channels back to blocking mode for the Socket API.<br>
+		 * Encrypted channels stay in non-blocking mode, the {@link TlsSocket} waits for them with its own selectors to support read timeouts.<br>
+		 * The connection is no longer handled by the server afterwards, the socket has to be closed by its new owner.
+		 * @return The socket of the connection, encrypted by the TLS engine of the connection if it has one
+		 */
+		protected Socket detach() throws IOException {
+			this.key.cancel();
+			this.loop.selector.selectNow();
+			this.loop.connections.remove(this);
+			this.closed = true;
+			this.input.release();
+			SelectorEngine.this.server.admission.releaseConnection();
+			if (this.tls != null) return new TlsSocket(this.tls);
+			this.channel.configureBlocking(true);
+			return this.channel.socket();
+		}
+		
+		protected void checkTimeout(long now) {
+			if (!this.receiving) return;
+			if (this.handshaking) {
+				// No response can be sent before the handshake is complete
+				if (now - this.receptionStart > SelectorEngine.this.server.receptionTimeout) {
+					SelectorEngine.this.server.metrics.recordTimeout();
+					close();
+				}
+				return;
+			}
+			if (this.receptionStart == 0) {
+				// Idle connections are closed right away when the server shuts down
+				if (SelectorEngine.this.server.shuttingDown || now - this.idleSince > SelectorEngine.this.server.keepAliveTimeout) close();
+			} else if (now - this.receptionStart > SelectorEngine.this.server.receptionTimeout) {
+				SelectorEngine.this.server.metrics.recordTimeout();
+				sendError(HttpCode.BAD_REQUEST, "Reception Timeout");
+			}
+		}
+		
+		protected void releaseOutput() {
+			if (this.header != null) this.header.release();
+			if (this.transfer != null) this.transfer.release();
+			this.header = null;
+			this.transfer = null;
+		}
+		
+		protected void close() {
+			if (this.closed) return;
+			this.closed = true;
+			this.loop.connections.remove(this);
+			if (this.key != null) this.key.cancel();
+			if (this.contentSource != null) closeQuietly(this.contentSource);
+			if (this.fileSource != null) closeQuietly(this.fileSource);
+			if (this.bodyOutput != null) this.bodyOutput.abort();
+			if (this.bodyInput != null) this.bodyInput.abort();
+			closeQuietly(this.tls != null ? this.tls : this.channel);
+			// The handler can no longer access the input buffer after the body input was aborted
+			releaseOutput();
+			this.input.release();
+			SelectorEngine.this.server.admission.releaseConnection();
+		}
+		
+		/**
+		 * Provides the payload received by the event loop to the handler on the executor.<br>
+		 * The handler reads directly from the input buffer of the connection, reading from the channel is paused while the buffer is full.
+		 */
+		protected class BodyInput extends InputStream {
+			
+			protected boolean endOfStream = false;
+			protected boolean aborted = false;
+			
+			protected synchronized void onReadable() throws IOException {
+				do {
+					int read = Connection.this.read(Connection.this.inputBuffer);
+					if (read < 0) {
+						this.endOfStream = true;
+					} else {
+						SelectorEngine.this.server.metrics.recordBytesReceived(read);
+					}
+				} while (!this.endOfStream && hasBufferedInput());
+				if (this.endOfStream || !Connection.this.inputBuffer.hasRemaining()) Connection.this.key.interestOps(0);
+				notifyAll();
+			}
+			
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+			}
+			
+			@Override
+			public synchronized int read(byte[] b, int off, int len) throws IOException {
+				// The input buffer is returned to the pool when the connection is closed
+				if (this.aborted) throw new IOException("Connection closed!");
+				if (len == 0) return 0;
+				ByteBuffer buffer = Connection.this.inputBuffer;
+				long deadline = System.currentTimeMillis() + SelectorEngine.this.server.receptionTimeout;
+				while (buffer.position() == 0) {
+					if (this.aborted) throw new IOException("Connection closed!");
+					if (this.endOfStream) return -1;
+					long timeout = deadline - System.currentTimeMillis();
+					if (timeout <= 0) throw new SocketTimeoutException("Reception Timeout");
+					try {
+						wait(timeout);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while waiting for the payload!");
+					}
+				}
+				boolean wasFull = !buffer.hasRemaining();
+				buffer.flip();
+				int length = Math.min(len, buffer.remaining());
+				buffer.get(b, off, length);
+				buffer.compact();
+				if (wasFull && !this.endOfStream) Connection.this.loop.execute(Connection.this::resumeInput);
+				return length;
+			}
+			
+			@Override
+			public synchronized int available() {
+				return this.aborted ? 0 : Connection.this.inputBuffer.position();
+			}
+			
+			protected synchronized void abort() {
+				this.aborted = true;
+				notifyAll();
+			}
+			
+		}
+		
+		/**
+		 * Hands the payload written by an {@link ResponseInfo.BodyWriter} on the executor over to the event loop.<br>
+		 * At most one buffer is pending, the writer blocks until the event loop has sent it.
+		 */
+		protected class BodyOutput extends OutputStream {
+			
+			// Two pooled buffers alternate between the writer and the event loop
+			protected final PooledBuffer[] pooled = { BufferPool.DIRECT.acquire(TRANSFER_BUFFER_SIZE), BufferPool.DIRECT.acquire(TRANSFER_BUFFER_SIZE) };
+			protected ByteBuffer buffer = this.pooled[0].buffer();
+			protected ByteBuffer spare = this.pooled[1].buffer();
+			protected ByteBuffer pending = null;
+			protected boolean finished = false;
+			protected boolean aborted = false;
+			protected boolean recycled = false;
+			
+			@Override
+			public void write(int b) throws IOException {
+				if (!this.buffer.hasRemaining()) submit();
+				this.buffer.put((byte) b);
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				while (len > 0) {
+					if (!this.buffer.hasRemaining()) submit();
+					int length = Math.min(len, this.buffer.remaining());
+					this.buffer.put(b, off, length);
+					off += length;
+					len -= length;
+				}
+			}
+			
+			@Override
+			public void flush() throws IOException {
+				submit();
+			}
+			
+			@Override
+			public void close() throws IOException {
+				if (this.finished) return;
+				submit();
+				synchronized (this) {
+					this.finished = true;
+				}
+				Connection.this.loop.execute(Connection.this::resumeOutput);
+			}
+			
+			protected void submit() throws IOException {
+				if (this.buffer.position() == 0) return;
+				synchronized (this) {
+					try {
+						while (this.pending != null && !this.aborted) wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while waiting for the connection!");
+					}
+					if (this.aborted) throw new IOException("Connection closed!");
+					this.buffer.flip();
+					this.pending = this.buffer;
+					// The spare buffer is always present after the previous pending buffer was released
+					this.buffer = this.spare;
+					this.spare = null;
+				}
+				Connection.this.loop.execute(Connection.this::resumeOutput);
+			}
+			
+			protected synchronized ByteBuffer poll() {
+				return this.pending;
+			}
+			
+			protected synchronized void release() {
+				this.pending.clear();
+				this.spare = this.pending;
+				this.pending = null;
+				notifyAll();
+			}
+			
+			protected synchronized boolean isFinished() {
+				return this.finished && this.pending == null;
+			}
+			
+			protected synchronized boolean isAborted() {
+				return this.aborted;
+			}
+			
+			/**
+			 * Returns the buffers to the pool after the writer finished and the event loop sent all buffers.
+			 */
+			protected synchronized void recycle() {
+				if (this.aborted || this.recycled) return;
+				this.recycled = true;
+				for (PooledBuffer buffer : this.pooled) buffer.release();
+			}
+			
+			protected synchronized void abort() {
+				this.aborted = true;
+				// The writer might still access the buffers, so they are not returned to the pool
+				if (!this.recycled) for (PooledBuffer buffer : this.pooled) buffer.discard();
+				notifyAll();
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * @return true if the payload stream of the response has to be read on the executor, since only payloads held in memory can be read on the event loop without blocking it
+	 */
+	protected static boolean isPumped(ResponseInfo response) {
+		return response.getContentSource().isPresent() && !(response.getContentSource().get() instanceof ByteArrayInputStream);
+	}
+	
+	protected static void closeContent(ResponseInfo response) {
+		try {
+			response.closeContent();
+		} catch (IOException e) {}
+	}
+	
+	protected static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {}
+	}
+	
+}
@@ -0,0 +1,79 @@
+package de.m_marvin.http.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory methods for the executors which can be used to run the request handlers of an {@link HttpServer}.
+ * @author Marvin Koehler
+ *
+ */
+public class ServerExecutors {
+	
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+	public static final long IDLE_THREAD_TIMEOUT = 60;
+	
+	private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = findVirtualThreadFactory();
+	
+	private ServerExecutors() {}
+	
+	private static Method findVirtualThreadFactory() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Creates a thread pool with a fixed number of daemon threads and a bounded task queue.<br>
+	 * Tasks submitted while the queue is full are rejected with an {@link java.util.concurrent.RejectedExecutionException}.
+	 * @param name The name prefix for the threads of the pool
+	 * @param threads The maximum number of threads
+	 * @param queueSize The maximum number of tasks waiting for a free thread
+	 */
+	public static ExecutorService boundedPool(String name, int threads, int queueSize) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, IDLE_THREAD_TIMEOUT, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), daemonThreads(name));
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+	
+	/**
+	 * @return true if the running JVM supports virtual threads (JDK 21 or newer)
+	 */
+	public static boolean supportsVirtualThreads() {
+		return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+	}
+	
+	/**
+	 * Creates an executor which starts a new virtual thread for each task.<br>
+	 * The library is build for JDK 17, the executor is looked up at runtime and is only available on JDK 21 or newer.
+	 * @throws UnsupportedOperationException If the running JVM does not support virtual threads
+	 */
+	public static ExecutorService virtualThreadPerTask() {
+		if (NEW_VIRTUAL_THREAD_EXECUTOR == null)
+			throw new UnsupportedOperationException("Virtual threads require JDK 21 or newer!");
+		try {
+			return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+		} catch (IllegalAccessException | InvocationTargetException e) {
+			throw new UnsupportedOperationException("Failed to create virtual thread executor!", e);
+		}
+	}
+	
+	public static ThreadFactory daemonThreads(String name) {
+		AtomicInteger counter = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, name + " #" + counter.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+	
+}
@@ -0,0 +1,293 @@
+package de.m_marvin.http.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.m_marvin.http.HttpCode;
+import de.m_marvin.http.HttpHeaders;
+import de.m_marvin.http.PathInfo;
+import de.m_marvin.http.ResponseInfo;
+import de.m_marvin.http.Validators;
+import de.m_marvin.http.server.HttpServer.GetRequestHandler;
+import de.m_marvin.http.server.ResourceCache.Resource;
+import de.m_marvin.simplelogging.Log;
+
+/**
+ * Get handler which serves the files of a directory or a classpath folder.<br>
+ * Resources are held in an memory bounded {@link ResourceCache}, resources of a directory are invalidated if the file is modified.
+ * @author Marvin Koehler
+ *
+ */
+public class StaticResourceHandler implements GetRequestHandler, Closeable {
+	
+	public static final long DEFAULT_MEMORY_BUDGET = 0x2000000;
+	public static final long DEFAULT_MAX_ENTRY_SIZE = 0x100000;
+	public static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+	
+	protected static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+	
+	static {
+		CONTENT_TYPES.put("html", "text/html; charset=utf-8");
+		CONTENT_TYPES.put("htm", "text/html; charset=utf-8");
+		CONTENT_TYPES.put("css", "text/css; charset=utf-8");
+		CONTENT_TYPES.put("js", "text/javascript; charset=utf-8");
+		CONTENT_TYPES.put("mjs", "text/javascript; charset=utf-8");
+		CONTENT_TYPES.put("json", "application/json");
+		CONTENT_TYPES.put("txt", "text/plain; charset=utf-8");
+		CONTENT_TYPES.put("xml", "application/xml");
+		CONTENT_TYPES.put("svg", "image/svg+xml");
+		CONTENT_TYPES.put("png", "image/png");
+		CONTENT_TYPES.put("jpg", "image/jpeg");
+		CONTENT_TYPES.put("jpeg", "image/jpeg");
+		CONTENT_TYPES.put("gif", "image/gif");
+		CONTENT_TYPES.put("webp", "image/webp");
+		CONTENT_TYPES.put("ico", "image/x-icon");
+		CONTENT_TYPES.put("woff", "font/woff");
+		CONTENT_TYPES.put("woff2", "font/woff2");
+		CONTENT_TYPES.put("wasm", "application/wasm");
+		CONTENT_TYPES.put("pdf", "application/pdf");
+		CONTENT_TYPES.put("zip", "application/zip");
+	}
+	
+	protected final Path rootDirectory;
+	protected final ClassLoader classLoader;
+	protected final String classpathRoot;
+	protected final ResourceCache cache;
+	protected WatchService watchService;
+	protected Thread watchThread;
+	protected final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+	
+	protected StaticResourceHandler(Path rootDirectory, ClassLoader classLoader, String classpathRoot, ResourceCache cache) {
+		this.rootDirectory = rootDirectory;
+		this.classLoader = classLoader;
+		this.classpathRoot = classpathRoot;
+		this.cache = cache;
+	}
+	
+	/**
+	 * Creates an handler serving the files of the directory, using the default cache size.
+	 * @param rootDirectory The directory to serve
+	 * @throws IOException If the file system does not support watching for modifications
+	 */
+	public static StaticResourceHandler ofDirectory(Path rootDirectory) throws IOException {
+		return ofDirectory(rootDirectory, DEFAULT_MEMORY_BUDGET, DEFAULT_MAX_ENTRY_SIZE);
+	}
+	
+	/**
+	 * Creates an handler serving the files of the directory.<br>
+	 * Files larger than the maximum entry size are not cached and transfered directly from the file system.
+	 * @param rootDirectory The directory to serve
+	 * @param memoryBudget The maximum number of bytes held in the cache
+	 * @param maxEntrySize The maximum size of a cached file
+	 * @throws IOException If the file system does not support watching for modifications
+	 */
+	public static StaticResourceHandler ofDirectory(Path rootDirectory, long memoryBudget, long maxEntrySize) throws IOException {
+		StaticResourceHandler handler = new StaticResourceHandler(rootDirectory.toAbsolutePath().normalize(), null, null, new ResourceCache(memoryBudget, maxEntrySize));
+		handler.startWatching();
+		return handler;
+	}
+	
+	/**
+	 * Creates an handler serving the resources of a classpath folder, using the default cache size.
+	 * @param classLoader The class loader to load the resources from
+	 * @param classpathRoot The folder to serve, for example "/web"
+	 */
+	public static StaticResourceHandler ofClasspath(ClassLoader classLoader, String classpathRoot) {
+		return ofClasspath(classLoader, classpathRoot, DEFAULT_MEMORY_BUDGET, DEFAULT_MAX_ENTRY_SIZE);
+	}
+	
+	/**
+	 * Creates an handler serving the resources of a classpath folder.
+	 * @param classLoader The class loader to load the resources from
+	 * @param classpathRoot The folder to serve, for example "/web"
+	 * @param memoryBudget The maximum number of bytes held in the cache
+	 * @param maxEntrySize The maximum size of a cached resource
+	 */
+	public static StaticResourceHandler ofClasspath(ClassLoader classLoader, String classpathRoot, long memoryBudget, long maxEntrySize) {
+		String root = classpathRoot.startsWith("/") ? classpathRoot.substring(1) : classpathRoot;
+		if (root.endsWith("/")) root = root.substring(0, root.length() - 1);
+		return new StaticResourceHandler(null, classLoader, root, new ResourceCache(memoryBudget, maxEntrySize));
+	}
+	
+	public ResourceCache getCache() {
+		return this.cache;
+	}
+	
+	@Override
+	public ResponseInfo handleRequest(PathInfo path, HttpHeaders attributes) {
+		String resourcePath = path.getPath();
+		if (!resourcePath.startsWith("/")) return new ResponseInfo(HttpCode.NOT_FOUND, "Not found!", null);
+		Resource resource = this.cache.get(resourcePath);
+		if (resource != null) {
+			// Evaluate conditional requests before creating the full response
+			if (Validators.isNotModified(attributes, resource.etag(), resource.lastModified()))
+				return new ResponseInfo(HttpCode.NOT_MODIFIED, "Not Modified", null).setValidators(resource.etag(), resource.lastModified());
+			return makeResponse(resource);
+		}
+		try {
+			ResponseInfo response = this.rootDirectory != null ? loadFile(resourcePath, attributes) : loadClasspath(resourcePath);
+			if (response != null) return response;
+		} catch (IOException e) {
+			Log.defaultLogger().error("Failed to load resource %s!", resourcePath, e);
+			return new ResponseInfo(HttpCode.INTERNAL_SERVER_ERROR, "Internal Error", null);
+		}
+		return new ResponseInfo(HttpCode.NOT_FOUND, "Not found!", null);
+	}
+	
+	protected ResponseInfo makeResponse(Resource resource) {
+		return ResponseInfo.ofBytes(HttpCode.OK, "OK", resource.content())
+				.addAdditionalInfo("Content-Type", resource.contentType())
+				.setValidators(resource.etag(), resource.lastModified());
+	}
+	
+	protected ResponseInfo loadFile(String resourcePath, HttpHeaders attributes) throws IOException {
+		Path file = this.rootDirectory.resolve(resourcePath.substring(1)).normalize();
+		if (!file.startsWith(this.rootDirectory) || !Files.isRegularFile(file)) return null;
+		String contentType = getContentType(resourcePath);
+		BasicFileAttributes fileAttributes = Files.readAttributes(file, BasicFileAttributes.class);
+		long lastModified = fileAttributes.lastModifiedTime().toMillis();
+		if (!this.cache.isCacheable(fileAttributes.size())) {
+			// Evaluate conditional requests before opening the file
+			String etag = Validators.makeWeakETag(fileAttributes.size(), lastModified);
+			if (Validators.isNotModified(attributes, etag, lastModified))
+				return new ResponseInfo(HttpCode.NOT_MODIFIED, "Not Modified", null).setValidators(etag, lastModified);
+			return ResponseInfo.ofFile(HttpCode.OK, "OK", file)
+					.addAdditionalInfo("Content-Type", contentType);
+		}
+		watchDirectory(file.getParent());
+		Resource resource = Resource.of(Files.readAllBytes(file), contentType, lastModified);
+		this.cache.put(resourcePath, resource);
+		// An modification event arriving before the put did not find the entry, so the file is checked again after it was cached
+		try {
+			BasicFileAttributes cachedAttributes = Files.readAttributes(file, BasicFileAttributes.class);
+			if (cachedAttributes.size() != resource.size() || cachedAttributes.lastModifiedTime().toMillis() != lastModified)
+				this.cache.invalidate(resourcePath, resource);
+		} catch (IOException e) {
+			this.cache.invalidate(resourcePath, resource);
+		}
+		return makeResponse(resource);
+	}
+	
+	protected ResponseInfo loadClasspath(String resourcePath) throws IOException {
+		if (resourcePath.contains("..")) return null;
+		URL url = this.classLoader.getResource(this.classpathRoot + resourcePath);
+		if (url == null) return null;
+		String contentType = getContentType(resourcePath);
+		URLConnection connection = url.openConnection();
+		long lastModified = connection.getLastModified() > 0 ? connection.getLastModified() : -1;
+		InputStream stream = connection.getInputStream();
+		long size = connection.getContentLengthLong();
+		if (size >= 0 && !this.cache.isCacheable(size)) {
+			return new ResponseInfo(HttpCode.OK, "OK", stream)
+					.addAdditionalInfo("Content-Type", contentType)
+					.addAdditionalInfo("Content-Length", size);
+		}
+		byte[] content;
+		try (stream) {
+			content = stream.readAllBytes();
+		}
+		Resource resource = Resource.of(content, contentType, lastModified);
+		this.cache.put(resourcePath, resource);
+		return makeResponse(resource);
+	}
+	
+	public static String getContentType(String resourcePath) {
+		int extension = resourcePath.lastIndexOf('.');
+		if (extension < 0 || extension < resourcePath.lastIndexOf('/')) return DEFAULT_CONTENT_TYPE;
+		return CONTENT_TYPES.getOrDefault(resourcePath.substring(extension + 1).toLowerCase(), DEFAULT_CONTENT_TYPE);
+	}
+	
+	protected void startWatching() throws IOException {
+		this.watchService = this.rootDirectory.getFileSystem().newWatchService();
+		this.watchThread = new Thread(this::watchModifications, "Resource Watcher [" + this.rootDirectory + "]");
+		this.watchThread.setDaemon(true);
+		this.watchThread.start();
+	}
+	
+	/**
+	 * Watches the directory and its parents up to the root directory, so that replacing an directory, for example by an rename, is noticed as well.
+	 */
+	protected void watchDirectory(Path directory) throws IOException {
+		if (this.watchService == null) return;
+		for (; directory != null && directory.startsWith(this.rootDirectory); directory = directory.getParent()) {
+			// The parents of an watched directory are watched as well
+			if (this.watchedDirectories.containsValue(directory)) return;
+			WatchKey key = directory.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+			this.watchedDirectories.put(key, directory);
+		}
+	}
+	
+	protected void watchModifications() {
+		try {
+			while (true) {
+				WatchKey key = this.watchService.take();
+				Path directory = this.watchedDirectories.get(key);
+				// Keys cancelled by unwatchDirectories might still be queued, their resources were already invalidated
+				if (directory == null && !key.isValid()) continue;
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (directory == null) {
+						this.cache.clear();
+						continue;
+					}
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						// Events were lost, so any resource of the directory might be stale
+						this.cache.invalidatePrefix(getResourcePath(directory) + "/");
+						continue;
+					}
+					Path file = directory.resolve((Path) event.context());
+					// The file might be an directory which was replaced, for example by an rename, its watch keys refer to the old directory
+					unwatchDirectories(file);
+					String resourcePath = getResourcePath(file);
+					this.cache.invalidate(resourcePath);
+					this.cache.invalidatePrefix(resourcePath + "/");
+				}
+				if (!key.reset()) {
+					// The directory was deleted or is no longer accessible
+					this.watchedDirectories.remove(key);
+					if (directory != null) this.cache.invalidatePrefix(getResourcePath(directory) + "/");
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// Handler closed
+		}
+	}
+	
+	/**
+	 * Cancels the watch keys of the directory and its sub directories, they are registered again when their resources are loaded the next time.
+	 */
+	protected void unwatchDirectories(Path directory) {
+		this.watchedDirectories.entrySet().removeIf(entry -> {
+			if (!entry.getValue().startsWith(directory)) return false;
+			entry.getKey().cancel();
+			return true;
+		});
+	}
+	
+	protected String getResourcePath(Path file) {
+		StringBuilder resourcePath = new StringBuilder();
+		for (Path element : this.rootDirectory.relativize(file)) {
+			if (!element.toString().isEmpty()) resourcePath.append('/').append(element);
+		}
+		return resourcePath.toString();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (this.watchService != null) this.watchService.close();
+	}
+	
+}
@@ -0,0 +1,304 @@
+package de.m_marvin.http.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+import de.m_marvin.http.BufferPool;
+import de.m_marvin.http.BufferPool.PooledBuffer;
+
+/**
+ * Encrypts the traffic of an socket channel with an {@link SSLEngine}.<br>
+ * Works with blocking and non-blocking channels. In non-blocking mode, read and write return zero if the channel is not ready,
+ * encrypted bytes which could not be written are kept and sent first on the next write or by {@link #flush()}.<br>
+ * The handshake is driven by {@link #handshake()}, the delegated tasks of the engine are run by the caller.
+ * Messages after the handshake, like session tickets or key updates, are handled transparently by read and write.<br>
+ * One thread can read while an other one writes, the packet buffers are taken from the {@link BufferPool} and returned by {@link #close()}.
+ * @author Marvin Koehler
+ *
+ */
+public class TlsChannel implements ByteChannel, GatheringByteChannel {
+	
+	public static enum HandshakeState {
+		/** The handshake is complete, application data can be exchanged */
+		FINISHED,
+		/** The handshake waits for data from the peer */
+		NEED_READ,
+		/** The handshake waits until the channel can take the pending output */
+		NEED_WRITE,
+		/** The engine has delegated tasks which have to be run before the handshake can continue */
+		NEED_TASK;
+	}
+	
+	protected static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	
+	protected final SocketChannel channel;
+	protected final SSLEngine engine;
+	protected final Object readLock = new Object();
+	protected final Object writeLock = new Object();
+	// Received encrypted bytes, in write mode
+	protected final PooledBuffer netInPooled;
+	protected final ByteBuffer netIn;
+	// Decrypted bytes not yet read, in write mode
+	protected final PooledBuffer appInPooled;
+	protected final ByteBuffer appIn;
+	// Encrypted bytes not yet sent, in read mode
+	protected final PooledBuffer netOutPooled;
+	protected final ByteBuffer netOut;
+	protected boolean underflow = false;
+	protected boolean inboundClosed = false;
+	protected boolean closed = false;
+	
+	/**
+	 * @param channel The connected channel
+	 * @param engine The configured engine, the handshake is started by the constructor
+	 * @throws SSLException If the handshake could not be started
+	 */
+	public TlsChannel(SocketChannel channel, SSLEngine engine) throws SSLException {
+		this.channel = channel;
+		this.engine = engine;
+		SSLSession session = engine.getSession();
+		this.netInPooled = BufferPool.DIRECT.acquire(session.getPacketBufferSize());
+		this.netIn = this.netInPooled.buffer();
+		this.appInPooled = BufferPool.DIRECT.acquire(session.getApplicationBufferSize());
+		this.appIn = this.appInPooled.buffer();
+		this.netOutPooled = BufferPool.DIRECT.acquire(session.getPacketBufferSize());
+		this.netOut = this.netOutPooled.buffer();
+		this.netOut.flip();
+		engine.beginHandshake();
+	}
+	
+	public SSLEngine getEngine() {
+		return this.engine;
+	}
+	
+	public SocketChannel getChannel() {
+		return this.channel;
+	}
+	
+	/**
+	 * Continues the handshake until it is complete or has to wait.
+	 * @return The state of the handshake
+	 * @throws IOException If the handshake failed or the connection was closed during the handshake
+	 */
+	public HandshakeState handshake() throws IOException {
+		synchronized (this.readLock) {
+			synchronized (this.writeLock) {
+				while (true) {
+					if (!flushOutput()) return HandshakeState.NEED_WRITE;
+					switch (this.engine.getHandshakeStatus()) {
+					case NEED_TASK:
+						return HandshakeState.NEED_TASK;
+					case NEED_WRAP:
+						if (wrap(EMPTY).getStatus() == SSLEngineResult.Status.CLOSED && !this.netOut.hasRemaining())
+							throw new SSLException("Connection closed during handshake!");
+						break;
+					case NEED_UNWRAP:
+					case NEED_UNWRAP_AGAIN:
+						SSLEngineResult result = unwrap();
+						if (result.getStatus() == SSLEngineResult.Status.CLOSED) throw new SSLException("Connection closed during handshake!");
+						if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+							int read = this.channel.read(this.netIn);
+							if (read < 0) throw new EOFException("Connection closed during handshake!");
+							if (read == 0) return HandshakeState.NEED_READ;
+						}
+						break;
+					default:
+						return HandshakeState.FINISHED;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Runs the delegated tasks of the engine, called on an separate thread since the tasks can take some time.
+	 */
+	public void runDelegatedTasks() {
+		Runnable task;
+		while ((task = this.engine.getDelegatedTask()) != null) task.run();
+	}
+	
+	/**
+	 * @return True if decrypted bytes or encrypted bytes not yet decrypted are buffered, which will not be signaled by the selector
+	 */
+	public boolean hasBufferedInput() {
+		synchronized (this.readLock) {
+			if (this.closed) return false;
+			return this.appIn.position() > 0 || (this.netIn.position() > 0 && !this.underflow);
+		}
+	}
+	
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		synchronized (this.readLock) {
+			if (this.closed) throw new ClosedChannelException();
+			while (this.appIn.position() == 0) {
+				if (this.inboundClosed) return -1;
+				SSLEngineResult result = unwrap();
+				switch (result.getStatus()) {
+				case BUFFER_UNDERFLOW:
+					int read = this.channel.read(this.netIn);
+					if (read < 0) {
+						this.inboundClosed = true;
+						return -1;
+					}
+					if (read == 0) {
+						this.underflow = true;
+						return 0;
+					}
+					this.underflow = false;
+					break;
+				case CLOSED:
+					this.inboundClosed = true;
+					break;
+				default:
+					break;
+				}
+				handlePostHandshake(result);
+			}
+			this.appIn.flip();
+			int length = Math.min(dst.remaining(), this.appIn.remaining());
+			dst.put(dst.position(), this.appIn, this.appIn.position(), length);
+			dst.position(dst.position() + length);
+			this.appIn.position(this.appIn.position() + length);
+			this.appIn.compact();
+			return length;
+		}
+	}
+	
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		return (int) write(new ByteBuffer[] { src }, 0, 1);
+	}
+	
+	@Override
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+	
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		synchronized (this.writeLock) {
+			if (this.closed) throw new ClosedChannelException();
+			long written = 0;
+			while (flushOutput()) {
+				if (!hasRemaining(srcs, offset, length)) break;
+				this.netOut.compact();
+				SSLEngineResult result;
+				try {
+					result = this.engine.wrap(srcs, offset, length, this.netOut);
+				} finally {
+					this.netOut.flip();
+				}
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED) throw new SSLException("Connection closed by the peer!");
+				written += result.bytesConsumed();
+			}
+			return written;
+		}
+	}
+	
+	protected static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			if (buffers[i].hasRemaining()) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Writes the pending encrypted bytes to the channel.
+	 * @return True if all encrypted bytes were written
+	 */
+	public boolean flush() throws IOException {
+		synchronized (this.writeLock) {
+			return flushOutput();
+		}
+	}
+	
+	protected boolean flushOutput() throws IOException {
+		while (this.netOut.hasRemaining()) {
+			if (this.channel.write(this.netOut) == 0) return false;
+		}
+		return true;
+	}
+	
+	protected SSLEngineResult unwrap() throws SSLException {
+		this.netIn.flip();
+		try {
+			return this.engine.unwrap(this.netIn, this.appIn);
+		} finally {
+			this.netIn.compact();
+		}
+	}
+	
+	protected SSLEngineResult wrap(ByteBuffer src) throws SSLException {
+		this.netOut.compact();
+		try {
+			return this.engine.wrap(src, this.netOut);
+		} finally {
+			this.netOut.flip();
+		}
+	}
+	
+	/**
+	 * Answers messages of the peer received after the handshake, the answer is sent with the next write if the channel is not ready.
+	 */
+	protected void handlePostHandshake(SSLEngineResult result) throws IOException {
+		switch (result.getHandshakeStatus()) {
+		case NEED_TASK:
+			runDelegatedTasks();
+			break;
+		case NEED_WRAP:
+			synchronized (this.writeLock) {
+				while (this.engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP && flushOutput()) {
+					if (wrap(EMPTY).getStatus() == SSLEngineResult.Status.CLOSED) break;
+				}
+				flushOutput();
+			}
+			break;
+		default:
+			break;
+		}
+	}
+	
+	@Override
+	public boolean isOpen() {
+		return !this.closed && this.channel.isOpen();
+	}
+	
+	/**
+	 * Sends the close notification if the channel can take it without blocking, closes the channel and returns the buffers to the pool.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this.writeLock) {
+			if (this.closed) return;
+			this.closed = true;
+			try {
+				this.engine.closeOutbound();
+				if (this.channel.isOpen() && flushOutput()) {
+					wrap(EMPTY);
+					flushOutput();
+				}
+			} catch (IOException e) {
+			} finally {
+				this.channel.close();
+				this.netOutPooled.release();
+			}
+		}
+		synchronized (this.readLock) {
+			this.netInPooled.release();
+			this.appInPooled.release();
+		}
+	}
+	
+}
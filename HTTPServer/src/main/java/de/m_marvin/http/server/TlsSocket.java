@@ -0,0 +1,276 @@
+package de.m_marvin.http.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Objects;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * The socket handed to the application by {@link de.m_marvin.http.ResponseInfo#keepSocket()} for connections encrypted by the selector engine.<br>
+ * Reads and writes through the {@link TlsChannel} of the connection, which stays in non-blocking mode.
+ * The streams wait for the channel with an selector, so that reads time out after {@link #setSoTimeout(int)} like on an plain socket.<br>
+ * All other socket operations are forwarded to the socket of the channel.
+ * @author Marvin Koehler
+ *
+ */
+public class TlsSocket extends Socket {
+	
+	protected final TlsChannel tls;
+	protected final Socket socket;
+	protected final InputStream input;
+	protected final OutputStream output;
+	protected Selector readSelector;
+	protected Selector writeSelector;
+	protected int timeout = 0;
+	
+	public TlsSocket(TlsChannel tls) {
+		this.tls = tls;
+		this.socket = tls.getChannel().socket();
+		this.input = new TlsInputStream();
+		this.output = new TlsOutputStream();
+	}
+	
+	public SSLSession getSession() {
+		return this.tls.getEngine().getSession();
+	}
+	
+	/**
+	 * @return The application protocol negotiated by ALPN, an empty string if none was negotiated
+	 */
+	public String getApplicationProtocol() {
+		return this.tls.getEngine().getApplicationProtocol();
+	}
+	
+	@Override
+	public SocketChannel getChannel() {
+		// The channel would bypass the encryption
+		return null;
+	}
+	
+	@Override
+	public InputStream getInputStream() throws IOException {
+		if (isClosed()) throw new SocketException("Socket is closed");
+		return this.input;
+	}
+	
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		if (isClosed()) throw new SocketException("Socket is closed");
+		return this.output;
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		this.tls.close();
+		// Wakes up threads waiting for the channel
+		if (this.readSelector != null) this.readSelector.close();
+		if (this.writeSelector != null) this.writeSelector.close();
+	}
+	
+	@Override
+	public boolean isClosed() {
+		return !this.tls.isOpen();
+	}
+	
+	@Override
+	public boolean isConnected() {
+		return this.socket.isConnected();
+	}
+	
+	@Override
+	public boolean isBound() {
+		return this.socket.isBound();
+	}
+	
+	@Override
+	public void shutdownInput() throws IOException {
+		this.socket.shutdownInput();
+	}
+	
+	@Override
+	public void shutdownOutput() throws IOException {
+		this.socket.shutdownOutput();
+	}
+	
+	@Override
+	public boolean isInputShutdown() {
+		return this.socket.isInputShutdown();
+	}
+	
+	@Override
+	public boolean isOutputShutdown() {
+		return this.socket.isOutputShutdown();
+	}
+	
+	@Override
+	public InetAddress getInetAddress() {
+		return this.socket.getInetAddress();
+	}
+	
+	@Override
+	public int getPort() {
+		return this.socket.getPort();
+	}
+	
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return this.socket.getRemoteSocketAddress();
+	}
+	
+	@Override
+	public InetAddress getLocalAddress() {
+		return this.socket.getLocalAddress();
+	}
+	
+	@Override
+	public int getLocalPort() {
+		return this.socket.getLocalPort();
+	}
+	
+	@Override
+	public SocketAddress getLocalSocketAddress() {
+		return this.socket.getLocalSocketAddress();
+	}
+	
+	@Override
+	public synchronized void setSoTimeout(int timeout) throws SocketException {
+		if (isClosed()) throw new SocketException("Socket is closed");
+		if (timeout < 0) throw new IllegalArgumentException("timeout can't be negative");
+		this.timeout = timeout;
+	}
+	
+	@Override
+	public synchronized int getSoTimeout() throws SocketException {
+		if (isClosed()) throw new SocketException("Socket is closed");
+		return this.timeout;
+	}
+	
+	@Override
+	public void setTcpNoDelay(boolean on) throws SocketException {
+		this.socket.setTcpNoDelay(on);
+	}
+	
+	@Override
+	public boolean getTcpNoDelay() throws SocketException {
+		return this.socket.getTcpNoDelay();
+	}
+	
+	@Override
+	public void setKeepAlive(boolean on) throws SocketException {
+		this.socket.setKeepAlive(on);
+	}
+	
+	@Override
+	public boolean getKeepAlive() throws SocketException {
+		return this.socket.getKeepAlive();
+	}
+	
+	@Override
+	public String toString() {
+		return "TlsSocket[" + this.socket + "]";
+	}
+	
+	protected synchronized Selector openSelector(int ops) throws IOException {
+		if (isClosed()) throw new SocketException("Socket is closed");
+		Selector selector = Selector.open();
+		try {
+			this.tls.getChannel().register(selector, ops);
+		} catch (IOException e) {
+			selector.close();
+			throw e;
+		}
+		if (ops == SelectionKey.OP_READ) {
+			this.readSelector = selector;
+		} else {
+			this.writeSelector = selector;
+		}
+		return selector;
+	}
+	
+	/**
+	 * Waits until the channel is ready for the operation of the selector.
+	 * @param timeout The maximum time to wait in milliseconds, zero to wait indefinitely
+	 */
+	protected void await(Selector selector, long timeout) throws IOException {
+		try {
+			selector.select(timeout);
+			selector.selectedKeys().clear();
+		} catch (ClosedSelectorException e) {
+			throw new SocketException("Socket is closed");
+		}
+		if (isClosed()) throw new SocketException("Socket is closed");
+	}
+	
+	protected class TlsInputStream extends InputStream {
+		
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+		
+		@Override
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			Objects.checkFromIndexSize(off, len, b.length);
+			if (len == 0) return 0;
+			ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			long deadline = TlsSocket.this.timeout > 0 ? System.currentTimeMillis() + TlsSocket.this.timeout : 0;
+			int read;
+			while ((read = TlsSocket.this.tls.read(buffer)) == 0) {
+				long wait = 0;
+				if (deadline > 0) {
+					wait = deadline - System.currentTimeMillis();
+					if (wait <= 0) throw new SocketTimeoutException("Read timed out");
+				}
+				Selector selector = TlsSocket.this.readSelector;
+				await(selector != null ? selector : openSelector(SelectionKey.OP_READ), wait);
+			}
+			return read;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			TlsSocket.this.close();
+		}
+		
+	}
+	
+	protected class TlsOutputStream extends OutputStream {
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			Objects.checkFromIndexSize(off, len, b.length);
+			ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			// The stream does not buffer, so the last encrypted record is sent before returning
+			while (buffer.hasRemaining() || !TlsSocket.this.tls.flush()) {
+				if (buffer.hasRemaining() && TlsSocket.this.tls.write(buffer) > 0) continue;
+				Selector selector = TlsSocket.this.writeSelector;
+				await(selector != null ? selector : openSelector(SelectionKey.OP_WRITE), 0);
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			TlsSocket.this.close();
+		}
+		
+	}
+	
+}
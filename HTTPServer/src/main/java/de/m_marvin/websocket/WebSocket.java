@@ -1,5 +1,6 @@
 package de.m_marvin.websocket;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -16,7 +17,11 @@ import java.util.Objects;
 import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import de.m_marvin.http.BufferPool;
+import de.m_marvin.http.BufferPool.PooledBuffer;
+import de.m_marvin.http.metrics.WebSocketMetrics;
 import de.m_marvin.simplelogging.Log;
 
 /**
@@ -56,6 +61,7 @@ public class WebSocket {
 	private final Object txlock;
 	private final Queue<ControlFrame> txcontrol = new ArrayDeque<WebSocket.ControlFrame>();
 	private CompletableFuture<byte[]> pendingPing = null;
+	private final AtomicInteger activeThreads = new AtomicInteger(2);
 	private final boolean logverbose;
 	private WebSocketCode closeCode = null;
 	private byte[] closeReason = null;
@@ -70,6 +76,12 @@ public class WebSocket {
 		PING(0x9),
 		PONG(0xA);
 		
+		private static final OPC[] BY_OPC = new OPC[16];
+		
+		static {
+			for (OPC e : values()) BY_OPC[e.opc] = e;
+		}
+		
 		private int opc;
 		
 		private OPC(int code) {
@@ -81,9 +93,7 @@ public class WebSocket {
 		}
 		
 		public static OPC of(int opc) {
-			for (OPC e : values())
-				if (e.opc() == opc) return e;
-			return null;
+			return opc >= 0 && opc < BY_OPC.length ? BY_OPC[opc] : null;
 		}
 		
 		public boolean control() {
@@ -135,6 +145,7 @@ public class WebSocket {
 		var txinPipe = new PipedInputStream(this.txin, this.txframesize * 2);
 		this.receptor = new Thread(() -> reception(rxoutPipe), "WebSocket-RX [" + this.socket.getInetAddress() + "]");
 		this.transmitter = new Thread(() -> transmission(txinPipe), "WebSocket-TX [" + this.socket.getInetAddress() + "]");
+		WebSocketMetrics.GLOBAL.recordOpen();
 		this.receptor.setDaemon(true);
 		this.transmitter.setDaemon(true);
 		this.receptor.start();
@@ -149,8 +160,11 @@ public class WebSocket {
 	public static final int MAX_PING_FRAME = Integer.MAX_VALUE;
 	
 	public static final SecureRandom MASK_RANDOM = new SecureRandom();
+	public static final int RX_BUFFER_SIZE = 0x2000;
+	public static final int MAX_FRAME_HEADER = 14;
 	
 	private void reception(OutputStream rxout) {
+		PooledBuffer rxbuffer = BufferPool.HEAP.acquire(RX_BUFFER_SIZE);
 		try {
 			this.socket.setSoTimeout(0);
 			txl: while (!this.rxclosing) {
@@ -205,6 +219,8 @@ public class WebSocket {
 						mask |= this.rxs.read() << 0;
 					}
 					
+					WebSocketMetrics.GLOBAL.recordFrameReceived(payLen);
+					
 					// If control frame, prepate payload
 					byte[] data = null;
 					if (op.control()) {
@@ -213,11 +229,9 @@ public class WebSocket {
 							sendClose(WebSocketCode.MESSSAGE_TO_LONG, "control payload to long!".getBytes(StandardCharsets.UTF_8));
 							break;
 						}
-						data = new byte[(int) payLen];
-						for (int p = 0; p < payLen; p++) {
-							int b = this.rxs.read();
-							data[p] = (byte) (b ^ ((mask >> (3 - (p % 4)) * 8) & 0xFF));
-						}
+						data = this.rxs.readNBytes((int) payLen);
+						if (data.length < payLen) throw new EOFException("Connection closed within frame!");
+						if (masked) applyMask(data, 0, data.length, mask, 0);
 					}
 					
 					switch (op) {
@@ -273,14 +287,16 @@ public class WebSocket {
 						break;
 					}
 					
-					// Process payload
+					// Process payload, read in blocks through the pooled buffer
 					this.rxavailable = payLen;
+					byte[] buffer = rxbuffer.buffer().array();
 					long p = 0;
 					while (p < payLen) {
-						int b = this.rxs.read();
-						if (masked) b = b ^ ((mask >> (3 - (p % 4)) * 8) & 0xFF);
-						p++;
-						rxout.write(b);
+						int len = this.rxs.read(buffer, 0, (int) Math.min(buffer.length, payLen - p));
+						if (len < 0) throw new EOFException("Connection closed within frame!");
+						if (masked) applyMask(buffer, 0, len, mask, p);
+						p += len;
+						rxout.write(buffer, 0, len);
 					}
 					rxout.flush();
 					
@@ -310,10 +326,34 @@ public class WebSocket {
 				}
 			} catch (IOException e) {}
 			this.rxclosing = true;
+			rxbuffer.release();
+			if (this.activeThreads.decrementAndGet() == 0) WebSocketMetrics.GLOBAL.recordClose();
 		}
 	}
 
+	/**
+	 * Applies the masking key to a section of an frame payload, masking and unmasking are the same operation.
+	 * @param mask The masking key, its first byte is applied to the first payload byte
+	 * @param position The position of the section within the payload
+	 */
+	protected static void applyMask(byte[] data, int offset, int length, int mask, long position) {
+		// Rotate the key so that its first byte applies to the start of the section
+		int shift = (int) (position & 3) * 8;
+		int key = shift == 0 ? mask : mask << shift | mask >>> (32 - shift);
+		int i = 0;
+		for (; i + 4 <= length; i += 4) {
+			int p = offset + i;
+			data[p] ^= (byte) (key >>> 24);
+			data[p + 1] ^= (byte) (key >>> 16);
+			data[p + 2] ^= (byte) (key >>> 8);
+			data[p + 3] ^= (byte) key;
+		}
+		for (; i < length; i++) data[offset + i] ^= (byte) (key >>> (24 - (i & 3) * 8));
+	}
+	
 	private void transmission(PipedInputStream txin) {
+		// The frame header is placed directly in front of the payload, so that the frame is sent with one write
+		PooledBuffer txbuffer = BufferPool.HEAP.acquire(MAX_FRAME_HEADER + this.txframesize);
 		try {
 			synchronized (txin) {
 				while (true) {
@@ -329,13 +369,15 @@ public class WebSocket {
 					
 					// Prepare payload
 					int payLen = 0;
-					byte[] data = null;
+					byte[] data = txbuffer.buffer().array();
 					if (cf == null) {
 						payLen = Math.min(this.txframesize, txin.available());
-						data = txin.readNBytes(payLen);
+						txin.readNBytes(data, MAX_FRAME_HEADER, payLen);
 					} else {
 						payLen = cf.data().length;
-						data = cf.data();
+						// Control frames larger than the buffer are only possible for pings
+						if (MAX_FRAME_HEADER + payLen > data.length) data = new byte[MAX_FRAME_HEADER + payLen];
+						System.arraycopy(cf.data(), 0, data, MAX_FRAME_HEADER, payLen);
 					}
 					
 					// Reset flush if buffer empty
@@ -345,10 +387,7 @@ public class WebSocket {
 					int mask = 0;
 					if (this.txmasking) {
 						mask = MASK_RANDOM.nextInt();
-						for (int p = 0; p < payLen; p++) {
-							int b = data[p];
-							data[p] = (byte) (b ^ ((mask >> (3 - (p % 4)) * 8) & 0xFF));
-						}
+						applyMask(data, MAX_FRAME_HEADER, payLen, mask, 0);
 					}
 					
 					// Prepare OPC, detect start of new frame
@@ -366,45 +405,51 @@ public class WebSocket {
 					// Reset final if buffer empty
 					//if (cf == null && finalFragment) this.txfinal = false;
 					
-					// Send fragment start
+					// Determine header length
+					int headerLen = 2 + (payLen < 126 ? 0 : payLen < 0xFFFF ? 2 : 8) + (this.txmasking ? 4 : 0);
+					int h = MAX_FRAME_HEADER - headerLen;
+					
+					// Fragment start
 					int frameStart = 0;
 					if (finalFragment) frameStart |= 0x80;
 					frameStart |= op.opc();
-					this.txs.write(frameStart);
+					data[h++] = (byte) frameStart;
 					
-					// Send payload length
+					// Payload length
 					int payload = this.txmasking ? 0x80 : 0x0;
 					if (payLen < 126) {
 						payload |= payLen;
-						this.txs.write(payload);
+						data[h++] = (byte) payload;
 					} else if (payLen < 0xFFFF) {
 						payload |= 0x7E;
-						this.txs.write(payload);
-						this.txs.write((payLen >> 8) & 0xFF);
-						this.txs.write((payLen >> 0) & 0xFF);
+						data[h++] = (byte) payload;
+						data[h++] = (byte) ((payLen >> 8) & 0xFF);
+						data[h++] = (byte) ((payLen >> 0) & 0xFF);
 					} else {
 						payload |= 0x7F;
-						this.txs.write(payload);
-						this.txs.write((payLen >> 56) & 0xFF);
-						this.txs.write((payLen >> 48) & 0xFF);
-						this.txs.write((payLen >> 40) & 0xFF);
-						this.txs.write((payLen >> 32) & 0xFF);
-						this.txs.write((payLen >> 24) & 0xFF);
-						this.txs.write((payLen >> 16) & 0xFF);
-						this.txs.write((payLen >> 8) & 0xFF);
-						this.txs.write((payLen >> 0) & 0xFF);
+						data[h++] = (byte) payload;
+						// The length is an int, the upper four bytes are always zero
+						data[h++] = 0;
+						data[h++] = 0;
+						data[h++] = 0;
+						data[h++] = 0;
+						data[h++] = (byte) ((payLen >> 24) & 0xFF);
+						data[h++] = (byte) ((payLen >> 16) & 0xFF);
+						data[h++] = (byte) ((payLen >> 8) & 0xFF);
+						data[h++] = (byte) ((payLen >> 0) & 0xFF);
 					}
 					
-					// Send MASK
+					// MASK
 					if (this.txmasking) {
-						this.txs.write((mask >> 24) & 0xFF);
-						this.txs.write((mask >> 16) & 0xFF);
-						this.txs.write((mask >> 8) & 0xFF);
-						this.txs.write((mask >> 0) & 0xFF);
+						data[h++] = (byte) ((mask >> 24) & 0xFF);
+						data[h++] = (byte) ((mask >> 16) & 0xFF);
+						data[h++] = (byte) ((mask >> 8) & 0xFF);
+						data[h++] = (byte) ((mask >> 0) & 0xFF);
 					}
 					
-					// Send payload
-					this.txs.write(data);
+					// Send header and payload
+					this.txs.write(data, MAX_FRAME_HEADER - headerLen, headerLen + payLen);
+					WebSocketMetrics.GLOBAL.recordFrameSent(payLen);
 					
 					// Terminate current frame
 					if (finalFragment) this.frameOutgoing = false;
@@ -423,6 +468,8 @@ public class WebSocket {
 				}
 			} catch (IOException e) {}
 			this.txclosed = true;
+			txbuffer.release();
+			if (this.activeThreads.decrementAndGet() == 0) WebSocketMetrics.GLOBAL.recordClose();
 		}
 	}
 	
@@ -542,6 +589,20 @@ public class WebSocket {
 		closeSocket(statusCode, reason == null ? null : reason.getBytes(StandardCharsets.UTF_8), TimeUnit.SECONDS, 2);
 	}
 	
+	/**
+	 * Closes the underlying socket immediately, without waiting for the close frame of the other end.
+	 */
+	public void abort() throws IOException {
+		this.socket.close();
+	}
+	
+	/**
+	 * @return true if the underlying socket is closed, which happens after the close frames where exchanged or the connection failed
+	 */
+	public boolean isClosed() {
+		return this.socket.isClosed();
+	}
+	
 	/**
 	 * @return true if and only if the last received frame contains textual data.
 	 */
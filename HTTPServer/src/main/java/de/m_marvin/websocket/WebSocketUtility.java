@@ -7,6 +7,8 @@ import java.util.Base64;
 import java.util.Map;
 
 import de.m_marvin.http.HttpCode;
+import de.m_marvin.http.HttpHeaders;
+import de.m_marvin.http.RequestInfo;
 import de.m_marvin.http.ResponseInfo;
 import de.m_marvin.simplelogging.Log;
 
@@ -20,18 +22,20 @@ public class WebSocketUtility {
 	 */
 	public static ResponseInfo verifyUpgradeHttpSocket(Map<String, String> httpAttributes, String subProtocolUsed) {
 		
-		String upgrade = httpAttributes.get("Upgrade");
-		String connection = httpAttributes.get("Connection");
+		HttpHeaders headers = HttpHeaders.of(httpAttributes);
+		String upgrade = headers.get(HttpHeaders.UPGRADE);
+		String connection = headers.get(HttpHeaders.CONNECTION);
 		
-		if (!"websocket".equals(upgrade) || !"Upgrade".equals(connection)) {
+		// Both fields are case-insensitive token lists, browsers send for example "Connection: keep-alive, Upgrade"
+		if (!RequestInfo.hasToken(upgrade, "websocket") || !RequestInfo.hasToken(connection, "Upgrade")) {
 			return new ResponseInfo(HttpCode.UPGRADE_REQUIRED, "WebSocket Required", null);
 		}
 		
-		String clientKey = httpAttributes.get("Sec-WebSocket-Key");
-		String websockVer = httpAttributes.get("Sec-WebSocket-Version");
-		String protocoll = httpAttributes.get("Sec-WebSocket-Protocol");
+		String clientKey = headers.get(HttpHeaders.SEC_WEBSOCKET_KEY);
+		String websockVer = headers.get(HttpHeaders.SEC_WEBSOCKET_VERSION);
+		String protocoll = headers.get(HttpHeaders.SEC_WEBSOCKET_PROTOCOL);
 		
-		if (!websockVer.equals("13")) {
+		if (clientKey == null || !"13".equals(websockVer)) {
 			return new ResponseInfo(HttpCode.BAD_REQUEST, "WebSocket Version", null);
 		}
 		
@@ -47,11 +51,12 @@ public class WebSocketUtility {
 			return new ResponseInfo(HttpCode.INTERNAL_SERVER_ERROR, "Internal Error", null);
 		}
 		
-		return new ResponseInfo(HttpCode.SWITCHING_PROTOCOLS, "Switching Protocols", null)
-				.addAdditionalInfo("Upgrade", upgrade)
-				.addAdditionalInfo("Connection", connection)
-				.addAdditionalInfo("Sec-WebSocket-Accept", serverKey)
-				.addAdditionalInfo("Sec-WebSocket-Protocol", subProtocolUsed);
+		ResponseInfo response = new ResponseInfo(HttpCode.SWITCHING_PROTOCOLS, "Switching Protocols", null)
+				.addAdditionalInfo(HttpHeaders.UPGRADE, "websocket")
+				.addAdditionalInfo(HttpHeaders.CONNECTION, "Upgrade")
+				.addAdditionalInfo(HttpHeaders.SEC_WEBSOCKET_ACCEPT, serverKey);
+		if (subProtocolUsed != null) response.addAdditionalInfo(HttpHeaders.SEC_WEBSOCKET_PROTOCOL, subProtocolUsed);
+		return response;
 		
 	}
 	
@@ -0,0 +1,487 @@
+package de.m_marvin.httpserver;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import de.m_marvin.http.HttpCode;
+import de.m_marvin.http.HttpHeaders;
+import de.m_marvin.http.ResponseInfo;
+import de.m_marvin.http.metrics.LatencyHistogram;
+import de.m_marvin.http.server.HttpServer;
+import de.m_marvin.http.server.HttpsServer;
+import de.m_marvin.http.server.Router;
+import de.m_marvin.websocket.WebSocket;
+import de.m_marvin.websocket.WebSocketCode;
+import de.m_marvin.websocket.WebSocketUtility;
+
+/**
+ * Macro benchmark which drives an in-process server over loopback connections and reports the throughput, the errors and the latency distribution.<br>
+ * Scenarios:<br>
+ * <b>closed</b> - each connection sends its next request as soon as the response of the previous one was received<br>
+ * <b>open</b> - requests are started at a fixed rate, independent of the response times. The latency is measured from the intended start time,
+ * so the time requests had to wait for an free connection is included and an overloaded server is not hidden by the load generator slowing down (coordinated omission)<br>
+ * <b>echo</b> - each WebSocket connection sends an message and waits for the echo of the server<br>
+ * <b>broadcast</b> - one publisher sends timestamped messages at a fixed rate, the server forwards them to all other WebSocket connections<br>
+ * Usage: <code>LoadGenerator [--scenario closed|open|echo|broadcast] [--connections 64] [--rate 10000] [--duration 10] [--warmup 3] [--payload 128]
+ * [--engine 0] [--acceptors 1] [--affinity] [--threads n] [--tls] [--keystore run/keystore.pfx] [--password password]</code><br>
+ * The engine option selects the blocking engine (0) or the number of event loops of the selector engine.
+ * @author Marvin Koehler
+ *
+ */
+public class LoadGenerator {
+	
+	public static final double[] PERCENTILES = { 0, 10, 25, 50, 75, 90, 95, 99, 99.9, 99.99, 99.999, 100 };
+	
+	/**
+	 * The results of one phase of the run, the warmup results are discarded.
+	 */
+	protected static class Phase {
+		
+		protected final LatencyHistogram latency = new LatencyHistogram();
+		protected final LongAdder completed = new LongAdder();
+		protected final LongAdder connectionErrors = new LongAdder();
+		protected final LongAdder statusErrors = new LongAdder();
+		
+	}
+	
+	protected final String scenario;
+	protected final int connections;
+	protected final double rate;
+	protected final int duration;
+	protected final int warmup;
+	protected final int payloadSize;
+	protected final int engine;
+	protected final int acceptors;
+	protected final boolean affinity;
+	protected final int threads;
+	protected final boolean tls;
+	protected final File keystore;
+	protected final String password;
+	
+	protected HttpServer server;
+	protected int port;
+	protected SSLContext clientContext;
+	protected byte[] request;
+	protected final List<WebSocket> subscribers = new CopyOnWriteArrayList<>();
+	protected volatile boolean running;
+	protected volatile Phase phase = new Phase();
+	protected long startTime;
+	protected final AtomicLong nextRequest = new AtomicLong();
+	
+	public LoadGenerator(Map<String, String> options) {
+		this.scenario = options.getOrDefault("scenario", "closed");
+		this.connections = Integer.parseInt(options.getOrDefault("connections", "64"));
+		this.rate = Double.parseDouble(options.getOrDefault("rate", "10000"));
+		this.duration = Integer.parseInt(options.getOrDefault("duration", "10"));
+		this.warmup = Integer.parseInt(options.getOrDefault("warmup", "3"));
+		this.payloadSize = Math.max(16, Integer.parseInt(options.getOrDefault("payload", "128")));
+		this.engine = Integer.parseInt(options.getOrDefault("engine", "0"));
+		this.acceptors = Integer.parseInt(options.getOrDefault("acceptors", "1"));
+		this.affinity = options.containsKey("affinity");
+		// The blocking engine occupies an handler thread per connection, the WebSocket scenarios keep their sockets on own threads
+		this.threads = Integer.parseInt(options.getOrDefault("threads", Integer.toString(this.engine > 0 ? Runtime.getRuntime().availableProcessors() * 2 : this.connections + 16)));
+		this.tls = options.containsKey("tls");
+		this.keystore = new File(options.getOrDefault("keystore", "run/keystore.pfx"));
+		this.password = options.getOrDefault("password", "password");
+	}
+	
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		for (int i = 0; i < args.length; i++) {
+			if (!args[i].startsWith("--")) throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+			String name = args[i].substring(2);
+			options.put(name, i + 1 < args.length && !args[i + 1].startsWith("--") ? args[++i] : "");
+		}
+		new LoadGenerator(options).run();
+	}
+	
+	public void run() throws IOException, InterruptedException, GeneralSecurityException {
+		startServer();
+		try {
+			List<Thread> workers = startWorkers();
+			if (this.warmup > 0) {
+				Thread.sleep(TimeUnit.SECONDS.toMillis(this.warmup));
+				this.phase = new Phase();
+			}
+			long measureStart = System.nanoTime();
+			long scheduledBefore = this.nextRequest.get();
+			Thread.sleep(TimeUnit.SECONDS.toMillis(this.duration));
+			Phase result = this.phase;
+			long measured = System.nanoTime() - measureStart;
+			long scheduled = this.nextRequest.get() - scheduledBefore;
+			this.running = false;
+			for (WebSocket subscriber : this.subscribers) closeQuietly(subscriber);
+			for (Thread worker : workers) worker.join(TimeUnit.SECONDS.toMillis(5));
+			report(result, measured, scheduled);
+		} finally {
+			this.server.close();
+		}
+	}
+	
+	/* Server side */
+	
+	protected void startServer() throws IOException, GeneralSecurityException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			this.port = socket.getLocalPort();
+		}
+		this.server = this.tls ? new HttpsServer(this.port, this.keystore, this.password) : new HttpServer(this.port);
+		if (this.engine > 0) this.server.setSelectorEngine(this.engine);
+		this.server.setAcceptors(this.acceptors);
+		this.server.setShardAffinity(this.affinity);
+		this.server.setDedicatedExecutor(this.threads);
+		this.server.setKeepAlive(60000, Integer.MAX_VALUE);
+		byte[] payload = new byte[this.payloadSize];
+		ThreadLocalRandom.current().nextBytes(payload);
+		Router router = new Router();
+		router.get("/payload", (path, attributes, parameters, body) -> ResponseInfo.ofBytes(HttpCode.OK, "OK", payload).addAdditionalInfo(HttpHeaders.CONTENT_TYPE, "application/octet-stream"));
+		router.get("/echo", (path, attributes, parameters, body) -> upgrade(attributes, this::echo));
+		router.get("/broadcast", (path, attributes, parameters, body) -> upgrade(attributes, this::forward));
+		this.server.setRouter(router);
+		this.server.open();
+		this.request = ("GET /payload HTTP/1.1\r\nHost: localhost:" + this.port + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+		if (this.tls) {
+			// The example certificate is self-signed
+			this.clientContext = SSLContext.getInstance("TLS");
+			this.clientContext.init(null, new TrustManager[] { new X509TrustManager() {
+				@Override
+				public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+				@Override
+				public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+				@Override
+				public X509Certificate[] getAcceptedIssuers() {
+					return new X509Certificate[0];
+				}
+			} }, null);
+		}
+	}
+	
+	protected ResponseInfo upgrade(HttpHeaders attributes, Consumer<WebSocket> handler) {
+		ResponseInfo response = WebSocketUtility.verifyUpgradeHttpSocket(attributes, null);
+		if (response.getResponseCode() == HttpCode.SWITCHING_PROTOCOLS) {
+			response.keepSocket().thenAccept(socket -> {
+				Thread thread = new Thread(() -> {
+					try {
+						handler.accept(new WebSocket(socket, false));
+					} catch (IOException e) {
+						if (this.running) e.printStackTrace();
+					}
+				}, "LoadGenerator WebSocket Handler");
+				thread.setDaemon(true);
+				thread.start();
+			});
+		}
+		return response;
+	}
+	
+	protected void echo(WebSocket webSocket) {
+		byte[] message = new byte[this.payloadSize];
+		try {
+			while (this.running) {
+				readMessage(webSocket, message);
+				webSocket.sendBinary(message);
+			}
+		} catch (IOException e) {
+			if (this.running) e.printStackTrace();
+		}
+		closeQuietly(webSocket);
+	}
+	
+	protected void forward(WebSocket webSocket) {
+		this.subscribers.add(webSocket);
+		byte[] message = new byte[this.payloadSize];
+		try {
+			while (this.running) {
+				readMessage(webSocket, message);
+				for (WebSocket subscriber : this.subscribers) {
+					if (subscriber != webSocket) subscriber.sendBinary(message);
+				}
+			}
+		} catch (IOException e) {
+			if (this.running) e.printStackTrace();
+		}
+		this.subscribers.remove(webSocket);
+		closeQuietly(webSocket);
+	}
+	
+	/* Client side */
+	
+	protected List<Thread> startWorkers() throws IOException {
+		this.running = true;
+		this.startTime = System.nanoTime();
+		List<Thread> workers = new ArrayList<>();
+		switch (this.scenario) {
+		case "closed":
+			for (int i = 0; i < this.connections; i++) workers.add(startWorker("Closed Loop " + i, this::closedLoop));
+			break;
+		case "open":
+			for (int i = 0; i < this.connections; i++) workers.add(startWorker("Open Loop " + i, this::openLoop));
+			break;
+		case "echo":
+			for (int i = 0; i < this.connections; i++) workers.add(startWorker("Echo " + i, this::echoLoop));
+			break;
+		case "broadcast":
+			for (int i = 0; i < this.connections; i++) {
+				WebSocket subscriber = connectWebSocket("/broadcast");
+				workers.add(startWorker("Subscriber " + i, () -> subscribeLoop(subscriber)));
+			}
+			// Wait until the server registered all subscribers before publishing
+			while (this.subscribers.size() < this.connections) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+			workers.add(startWorker("Publisher", this::publishLoop));
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown scenario: " + this.scenario);
+		}
+		return workers;
+	}
+	
+	protected Thread startWorker(String name, Runnable task) {
+		Thread thread = new Thread(task, "LoadGenerator " + name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+	
+	protected Socket connect() throws IOException {
+		Socket socket = this.tls ? this.clientContext.getSocketFactory().createSocket(InetAddress.getLoopbackAddress(), this.port) : new Socket(InetAddress.getLoopbackAddress(), this.port);
+		socket.setTcpNoDelay(true);
+		return socket;
+	}
+	
+	protected void closedLoop() {
+		HttpConnection connection = null;
+		while (this.running) {
+			Phase phase = this.phase;
+			try {
+				if (connection == null) connection = new HttpConnection(connect());
+				long start = System.nanoTime();
+				int status = connection.exchange(this.request);
+				record(phase, status, System.nanoTime() - start);
+			} catch (IOException e) {
+				if (this.running) phase.connectionErrors.increment();
+				connection = closeQuietly(connection);
+			}
+		}
+		closeQuietly(connection);
+	}
+	
+	protected void openLoop() {
+		long interval = (long) (TimeUnit.SECONDS.toNanos(1) / this.rate);
+		HttpConnection connection = null;
+		while (this.running) {
+			// The intended start times follow the fixed rate, no matter how long the previous requests took
+			long intended = this.startTime + this.nextRequest.getAndIncrement() * interval;
+			long delay = intended - System.nanoTime();
+			if (delay > 0) LockSupport.parkNanos(delay);
+			if (!this.running) break;
+			Phase phase = this.phase;
+			try {
+				if (connection == null) connection = new HttpConnection(connect());
+				int status = connection.exchange(this.request);
+				record(phase, status, System.nanoTime() - intended);
+			} catch (IOException e) {
+				if (this.running) phase.connectionErrors.increment();
+				connection = closeQuietly(connection);
+			}
+		}
+		closeQuietly(connection);
+	}
+	
+	protected void echoLoop() {
+		byte[] message = new byte[this.payloadSize];
+		ThreadLocalRandom.current().nextBytes(message);
+		byte[] echo = new byte[this.payloadSize];
+		WebSocket webSocket = null;
+		try {
+			webSocket = connectWebSocket("/echo");
+			while (this.running) {
+				Phase phase = this.phase;
+				long start = System.nanoTime();
+				webSocket.sendBinary(message);
+				readMessage(webSocket, echo);
+				record(phase, HttpCode.OK.code(), System.nanoTime() - start);
+			}
+		} catch (IOException e) {
+			if (this.running) this.phase.connectionErrors.increment();
+		}
+		closeQuietly(webSocket);
+	}
+	
+	protected void publishLoop() {
+		long interval = (long) (TimeUnit.SECONDS.toNanos(1) / this.rate);
+		byte[] message = new byte[this.payloadSize];
+		ByteBuffer timestamp = ByteBuffer.wrap(message, 0, Long.BYTES);
+		WebSocket webSocket = null;
+		try {
+			webSocket = connectWebSocket("/broadcast");
+			long start = System.nanoTime();
+			for (long i = 0; this.running; i++) {
+				long intended = start + i * interval;
+				long delay = intended - System.nanoTime();
+				if (delay > 0) LockSupport.parkNanos(delay);
+				// The subscribers measure the latency from the intended send time
+				timestamp.putLong(0, intended);
+				webSocket.sendBinary(message);
+				this.nextRequest.incrementAndGet();
+			}
+		} catch (IOException e) {
+			if (this.running) this.phase.connectionErrors.increment();
+		}
+		closeQuietly(webSocket);
+	}
+	
+	protected void subscribeLoop(WebSocket webSocket) {
+		byte[] message = new byte[this.payloadSize];
+		ByteBuffer timestamp = ByteBuffer.wrap(message, 0, Long.BYTES);
+		try {
+			while (this.running) {
+				readMessage(webSocket, message);
+				record(this.phase, HttpCode.OK.code(), System.nanoTime() - timestamp.getLong(0));
+			}
+		} catch (IOException e) {
+			if (this.running) this.phase.connectionErrors.increment();
+		}
+	}
+	
+	protected void record(Phase phase, int status, long nanos) {
+		phase.completed.increment();
+		if (status < 200 || status >= 300) phase.statusErrors.increment();
+		phase.latency.record(nanos);
+	}
+	
+	/**
+	 * Opens an WebSocket to the server, the client side masks its frames like an browser.
+	 */
+	protected WebSocket connectWebSocket(String path) throws IOException {
+		Socket socket = connect();
+		byte[] nonce = new byte[16];
+		ThreadLocalRandom.current().nextBytes(nonce);
+		String handshake = "GET " + path + " HTTP/1.1\r\nHost: localhost:" + this.port + "\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+				+ "Sec-WebSocket-Key: " + Base64.getEncoder().encodeToString(nonce) + "\r\nSec-WebSocket-Version: 13\r\n\r\n";
+		socket.getOutputStream().write(handshake.getBytes(StandardCharsets.US_ASCII));
+		// The header is read byte by byte, so that no frame data is consumed
+		InputStream input = socket.getInputStream();
+		StringBuilder header = new StringBuilder();
+		while (header.length() < 4 || !header.substring(header.length() - 4).equals("\r\n\r\n")) {
+			int b = input.read();
+			if (b < 0) throw new EOFException("Connection closed during the WebSocket handshake!");
+			header.append((char) b);
+		}
+		if (!header.toString().startsWith("HTTP/1.1 101")) {
+			socket.close();
+			throw new IOException("WebSocket handshake failed: " + header.substring(0, header.indexOf("\r\n")));
+		}
+		return new WebSocket(socket, 0x2800, true, false);
+	}
+	
+	protected static void readMessage(WebSocket webSocket, byte[] message) throws IOException {
+		if (webSocket.getInputStream().readNBytes(message, 0, message.length) < message.length)
+			throw new EOFException("WebSocket closed!");
+	}
+	
+	protected static <T> T closeQuietly(T connection) {
+		try {
+			if (connection instanceof HttpConnection http) http.socket.close();
+			if (connection instanceof WebSocket webSocket && webSocket.isOutputOpen()) webSocket.sendClose(WebSocketCode.CLOSE_NORMALY, new byte[0]);
+		} catch (IOException e) {}
+		return null;
+	}
+	
+	/**
+	 * An keep-alive HTTP/1.1 connection to the server, which sends one request at a time.
+	 */
+	protected static class HttpConnection {
+		
+		protected final Socket socket;
+		protected final InputStream input;
+		protected final OutputStream output;
+		protected final byte[] buffer = new byte[8192];
+		
+		public HttpConnection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.input = socket.getInputStream();
+			this.output = socket.getOutputStream();
+		}
+		
+		/**
+		 * Sends the request and reads the response header and the payload with the announced Content-Length.
+		 * @return The status code of the response
+		 */
+		public int exchange(byte[] request) throws IOException {
+			this.output.write(request);
+			this.output.flush();
+			int length = 0;
+			int headerEnd = -1;
+			while (headerEnd < 0) {
+				if (length == this.buffer.length) throw new IOException("Response header too large!");
+				int read = this.input.read(this.buffer, length, this.buffer.length - length);
+				if (read < 0) throw new EOFException("Connection closed by the server!");
+				for (int i = Math.max(3, length); i < length + read; i++) {
+					if (this.buffer[i] == '\n' && this.buffer[i - 1] == '\r' && this.buffer[i - 2] == '\n' && this.buffer[i - 3] == '\r') {
+						headerEnd = i + 1;
+						break;
+					}
+				}
+				length += read;
+			}
+			String header = new String(this.buffer, 0, headerEnd, StandardCharsets.US_ASCII);
+			int status = Integer.parseInt(header.substring(9, 12));
+			int field = header.indexOf("\r\n" + HttpHeaders.CONTENT_LENGTH + ": ");
+			long contentLength = 0;
+			if (field >= 0) {
+				field += HttpHeaders.CONTENT_LENGTH.length() + 4;
+				contentLength = Long.parseLong(header.substring(field, header.indexOf('\r', field)));
+			}
+			long remaining = headerEnd + contentLength - length;
+			if (remaining > 0) this.input.skipNBytes(remaining);
+			if (header.contains("\r\n" + HttpHeaders.CONNECTION + ": close\r\n")) throw new EOFException("Connection closed by the server!");
+			return status;
+		}
+		
+	}
+	
+	/* Reporting */
+	
+	protected void report(Phase result, long measured, long scheduled) {
+		double seconds = measured / 1e9;
+		long completed = result.completed.sum();
+		LatencyHistogram.Snapshot latency = result.latency.snapshot();
+		System.out.printf(Locale.ROOT, "Scenario %s, %d connections, %s engine, %s, %d byte payload, %d s%n", this.scenario, this.connections,
+				this.engine > 0 ? "selector (" + this.engine + " event loops)" : "blocking", this.tls ? "TLS" : "plain", this.payloadSize, this.duration);
+		if (this.scenario.equals("open") || this.scenario.equals("broadcast"))
+			System.out.printf(Locale.ROOT, "Target rate:   %.1f/s, %d due, %d sent%n", this.rate, (long) (this.rate * seconds), scheduled);
+		System.out.printf(Locale.ROOT, "Completed:     %d (%.1f/s)%n", completed, completed / seconds);
+		System.out.printf(Locale.ROOT, "Errors:        %d connection, %d status%n", result.connectionErrors.sum(), result.statusErrors.sum());
+		System.out.printf(Locale.ROOT, "Latency (ms):  mean %.3f%n", latency.getMean() / 1e6);
+		for (double percentile : PERCENTILES) {
+			System.out.printf(Locale.ROOT, "  %8.3f%%  %10.3f%n", percentile, latency.getValueAtQuantile(percentile / 100) / 1e6);
+		}
+	}
+	
+}
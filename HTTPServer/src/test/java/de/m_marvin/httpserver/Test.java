@@ -2,14 +2,16 @@ package de.m_marvin.httpserver;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URISyntaxException;
+import java.time.Duration;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 import de.m_marvin.http.HttpCode;
 import de.m_marvin.http.ResponseInfo;
 import de.m_marvin.http.server.HttpServer;
+import de.m_marvin.http.server.Router;
+import de.m_marvin.http.server.StaticResourceHandler;
 import de.m_marvin.websocket.WebSocket;
 import de.m_marvin.websocket.WebSocketCode;
 import de.m_marvin.websocket.WebSocketUtility;
@@ -26,49 +28,48 @@ public class Test {
 		try {
 			HttpServer server = new HttpServer(80);
 			//HttpServer server = new HttpsServer(443, certificateFile, "password");
-			server.setGetHandler((path, attributes) -> {
+			StaticResourceHandler resources = StaticResourceHandler.ofClasspath(Test.class.getClassLoader(), HTML_FOLDER);
+			Router router = new Router();
+			router.get("/websock", (path, attributes, parameters, body) -> {
 				
-				if (path.getPath().startsWith("/websock")) {
-					
-					ResponseInfo response = WebSocketUtility.verifyUpgradeHttpSocket(attributes, "logs");
-					
-					if (response.getResponseCode() == HttpCode.SWITCHING_PROTOCOLS) {
+				ResponseInfo response = WebSocketUtility.verifyUpgradeHttpSocket(attributes, "logs");
+				
+				if (response.getResponseCode() == HttpCode.SWITCHING_PROTOCOLS) {
 
-						response.keepSocket().thenAccept(socket -> {
+					response.keepSocket().thenAccept(socket -> {
+						
+						try {
 							
-							try {
-								
-								WebSocket webSocket = new WebSocket(socket, true);
-								String line = webSocket.readLine();
-								System.out.println(line);
-								String pong = new String(webSocket.sendPing("PING PING".getBytes()).orTimeout(1, TimeUnit.SECONDS).join());
-								System.out.println(pong);
-								webSocket.sendText("Hello World");
-								webSocket.closeSocket(WebSocketCode.CLOSE_NORMALY, "Bye");
-								
-							} catch (IOException e) {
-								e.printStackTrace();
-							} catch (InterruptedException e) {
-								// TODO Auto-generated catch block
-								e.printStackTrace();
-							}
+							WebSocket webSocket = new WebSocket(socket, true);
+							server.registerWebSocket(webSocket);
+							String line = webSocket.readLine();
+							System.out.println(line);
+							String pong = new String(webSocket.sendPing("PING PING".getBytes()).orTimeout(1, TimeUnit.SECONDS).join());
+							System.out.println(pong);
+							webSocket.sendText("Hello World");
+							webSocket.closeSocket(WebSocketCode.CLOSE_NORMALY, "Bye");
 							
-						});
+						} catch (IOException e) {
+							e.printStackTrace();
+						} catch (InterruptedException e) {
+							// TODO Auto-generated catch block
+							e.printStackTrace();
+						}
 						
-					}
-					
-					return response;
+					});
 					
 				}
 				
-				InputStream pageSource = Test.class.getResourceAsStream(HTML_FOLDER + path.getPath());
-				return new ResponseInfo(pageSource == null ? HttpCode.NOT_FOUND : HttpCode.OK, pageSource == null ? "Not found!" : "OK", pageSource);
+				return response;
+				
 			});
+			router.setNotFoundHandler((path, attributes, parameters, body) -> resources.handleRequest(path, attributes));
+			server.setRouter(router);
 			server.open();
 			
 			Thread.sleep(600000000);
 			
-			server.close();
+			server.shutdown(Duration.ofSeconds(10));
 		} catch (IOException e) {
 			e.printStackTrace();
 		}